@@ -0,0 +1,35 @@
+package com.sandeepmore.benchmarks;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the broker and pool benchmarks once per thread count (1, 2, 4 ... 64), JMH itself only takes a single
+ * thread count per run. Extra JMH command line options (e.g. -prof gc, -rf json) are passed through.
+ *
+ * @author Sandeep More
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .parent(cli)
+                    .include(BrokerBenchmark.class.getSimpleName())
+                    .include(PoolBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
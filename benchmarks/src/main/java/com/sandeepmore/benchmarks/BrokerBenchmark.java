@@ -0,0 +1,91 @@
+package com.sandeepmore.benchmarks;
+
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.CachingException;
+import com.sandeepmore.caching.ICachingBroker;
+import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.testing.LoopbackMemcached;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CachingBroker} get/set/delete against the loopback memcached. Every parameter combination runs in its
+ * own fork because {@link CachingPool} is a process wide singleton. Use {@link BenchmarkRunner} (or -t) to
+ * sweep the thread count.
+ *
+ * @author Sandeep More
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BrokerBenchmark {
+
+    private static final int KEYS = 1024;
+
+    @Param({"5", "64"})
+    public int maxactive;
+
+    private LoopbackMemcached server;
+    private CachingBroker broker;
+    private final String[] keys = new String[KEYS];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LoopbackMemcached();
+        broker = new CachingBroker(CachingPool.init(server.getServer(), maxactive, 3000, "block"));
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "bench" + i;
+            broker.set(keys[i], ICachingBroker.HOURS_1, "Memcached using pooling " + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Per thread cursor so threads walk the key space independently.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next() {
+            return next++ & (KEYS - 1);
+        }
+    }
+
+    @Benchmark
+    public Object get(Cursor cursor) throws CachingException {
+        return broker.get(keys[cursor.next()]);
+    }
+
+    @Benchmark
+    public void set(Cursor cursor) {
+        int i = cursor.next();
+        broker.set(keys[i], ICachingBroker.HOURS_1, "Memcached using pooling " + i);
+    }
+
+    @Benchmark
+    public void delete(Cursor cursor) throws CachingException {
+        broker.delete("missing" + cursor.next());
+    }
+}
@@ -0,0 +1,73 @@
+package com.sandeepmore.benchmarks;
+
+import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.pool.ICachingPool;
+import com.sandeepmore.testing.LoopbackMemcached;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention on {@link CachingPool#borrowObject()}/{@link CachingPool#returnObject(Object)} for several pool sizes
+ * and exhausted actions. With "fail" an exhausted pool shows up as failed borrows rather than lower throughput,
+ * run with -prof gc or compare against "block" to see both sides.
+ *
+ * @author Sandeep More
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PoolBenchmark {
+
+    @Param({"4", "16", "64"})
+    public int maxactive;
+
+    @Param({"block", "grow", "fail"})
+    public String exhaustedAction;
+
+    private LoopbackMemcached server;
+    private ICachingPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LoopbackMemcached();
+        pool = CachingPool.init(server.getServer(), maxactive, 3000, exhaustedAction);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public void borrowReturn(Blackhole bh) throws Exception {
+        Object client = null;
+        try {
+            client = pool.borrowObject();
+            bh.consume(client);
+        } catch (NoSuchElementException ex) {
+            // exhausted with "fail", count it as a completed (failed) call
+            bh.consume(ex);
+        } finally {
+            pool.returnObject(client);
+        }
+    }
+}
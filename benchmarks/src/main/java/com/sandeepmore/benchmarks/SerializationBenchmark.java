@@ -0,0 +1,88 @@
+package com.sandeepmore.benchmarks;
+
+import com.sandeepmore.caching.codec.CodecRegistry;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Value encode/decode cost by size: spymemcached's default {@link SerializingTranscoder} against
+ * {@link CodecRegistry}, for raw bytes, strings and a serialized collection. No server is involved.
+ *
+ * @author Sandeep More
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"64", "1024", "16384", "262144"})
+    public int size;
+
+    private final SerializingTranscoder serializing = new SerializingTranscoder();
+    private final CodecRegistry codecs = new CodecRegistry();
+
+    private byte[] bytes;
+    private String string;
+    private ArrayList<String> list;
+    private CachedData serializedList;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'x');
+        string = new String(bytes);
+        list = new ArrayList<String>();
+        for (int i = 0; i < Math.max(1, size / 16); i++) {
+            list.add("Memcached" + i);
+        }
+        serializedList = serializing.encode(list);
+    }
+
+    @Benchmark
+    public Object bytesSerializing() {
+        return serializing.decode(serializing.encode(bytes));
+    }
+
+    @Benchmark
+    public Object bytesCodec() {
+        return codecs.decode(codecs.encode(bytes));
+    }
+
+    @Benchmark
+    public Object stringSerializing() {
+        return serializing.decode(serializing.encode(string));
+    }
+
+    @Benchmark
+    public Object stringCodec() {
+        return codecs.decode(codecs.encode(string));
+    }
+
+    @Benchmark
+    public CachedData listEncode() {
+        return serializing.encode(list);
+    }
+
+    @Benchmark
+    public Object listDecode() {
+        return serializing.decode(serializedList);
+    }
+}
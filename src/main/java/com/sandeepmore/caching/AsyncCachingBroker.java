@@ -0,0 +1,477 @@
+package com.sandeepmore.caching;
+
+import com.sandeepmore.caching.codec.CodecRegistry;
+import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.pool.CachingPoolRegistry;
+import com.sandeepmore.pool.ICachingPool;
+import com.sandeepmore.pool.IRoutingCachingPool;
+import com.sandeepmore.pool.PoolMetrics;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non blocking API used to Set, Get and Delete values from the cache pool.
+ * The borrowed client goes back to the pool as soon as the operation is queued on it, so a slow
+ * server no longer keeps pooled clients checked out for the whole round trip.
+ * <p/>
+ * spymemcached futures do not offer completion callbacks, so a single poller thread per broker watches the
+ * queued operations and never blocks on any of them: each one completes as soon as its reply is in, or fails
+ * once the operation timeout has passed since it was queued, so a slow node cannot hold up the replies of the
+ * others. The poll interval starts at 50 microseconds and doubles up to 1 millisecond while nothing completes.
+ * <p/>
+ * The returned futures are completed on a completion executor so the callers' callbacks never run on the
+ * poller. The default one has a bounded queue, when it is full the poller runs the callbacks itself.
+ *
+ * @author Sandeep More
+ *         <p> Example usage </p>
+ *         <pre>
+ *                 {@code
+ *                  	private AsyncCachingBroker acb = new AsyncCachingBroker();
+ *
+ *                  	acb.setAsync(key ,TTL, value);                 // set
+ *                  	acb.getAsync(key).thenAccept(value -> ...);    // get
+ *                  	acb.deleteAsync(key);                          // delete
+ *                 }
+ *                 </pre>
+ */
+public class AsyncCachingBroker implements IAsyncCachingBroker {
+
+    private static final Log logger = LogFactory.getLog(AsyncCachingBroker.class);
+    /**
+     * Number of completion threads used when no executor is passed in.
+     */
+    private static final int DEFAULT_COMPLETION_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int DEFAULT_COMPLETION_QUEUE = 1024;
+    private static final long MIN_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final AtomicInteger POLLER_COUNT = new AtomicInteger();
+
+    private ICachingPool deligatePool = null;
+    private final ExecutorService completionExecutor;
+    private final boolean ownsExecutor;
+    private final Poller poller = new Poller();
+    /**
+     * Optional per type / per key prefix codecs, null to use the client's serializing transcoder.
+     */
+    private volatile CodecRegistry codecs = null;
+
+    public AsyncCachingBroker() {
+        this(CachingPool.getInstance()); // get the session instance
+        if (this.deligatePool == null) {
+            logger.error("Retured a null instance for session caching pool");
+        }
+    }
+
+    public AsyncCachingBroker(final ICachingPool deligatePool) {
+        this(deligatePool, newCompletionExecutor(DEFAULT_COMPLETION_THREADS), true);
+    }
+
+    /**
+     * Use a named pool of the {@link CachingPoolRegistry}, created from the properties file on first use.
+     *
+     * @param poolName Name of the pool.
+     */
+    public AsyncCachingBroker(final String poolName) {
+        this(CachingPoolRegistry.getPool(poolName));
+    }
+
+    /**
+     * Use the given executor to complete the futures, its tasks never block. The executor is not shut down by
+     * {@link #shutdown()}.
+     *
+     * @param deligatePool       Pool to borrow the clients from.
+     * @param completionExecutor Executor used to hand the results over to the returned futures.
+     */
+    public AsyncCachingBroker(final ICachingPool deligatePool, final ExecutorService completionExecutor) {
+        this(deligatePool, completionExecutor, false);
+    }
+
+    private AsyncCachingBroker(final ICachingPool deligatePool, final ExecutorService completionExecutor, boolean ownsExecutor) {
+        this.deligatePool = deligatePool;
+        this.completionExecutor = completionExecutor;
+        this.ownsExecutor = ownsExecutor;
+        Thread thread = new Thread(poller, "caching-async-poller-" + POLLER_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        poller.thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Set an object in the cache regardless of any existing value.
+     * If the pool is full the failure is logged and the future completes with false.
+     * <p>
+     * @param key The key under which this object should be stored.
+     * @param exp Time To Live value for the object in seconds.
+     * @param obj Object value to be stored in the cache.
+     * @return future holding true if the value was stored.
+     */
+    public CompletableFuture<Boolean> setAsync(String key, int exp, Object obj) {
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("SETASYNC:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //queue the set operation
+            return complete(client.set(key, exp, obj, writeTranscoder(client, key)),
+                    CachingBroker.operationTimeout(client), "Set", key, pool);
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, set for key:" + key + " unsuccessful");
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        } catch (Exception ex) {
+            logger.error("Set session cache failed for key:" + key, ex);
+            return failed(new CachingException(ex));
+        } finally {
+            //return the borrowed object back to pool, the operation is already queued
+            pool.returnObject(client);
+            logger.debug("SETASYNC:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Get the object from the cache with a single key.
+     * If the key is not found (or the pool is full) the future completes with null. A value stored in chunks
+     * by {@link CachingBroker} completes it exceptionally, read those with {@link CachingBroker#get(String)}.
+     * <p>
+     * @param key Key of the object to be retrieved from the cache.
+     * @return future holding the result from the cache (null if there is none).
+     */
+    public CompletableFuture<Object> getAsync(String key) {
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("GETASYNC:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //queue the get operation
+            return complete(client.asyncGet(key, new ChunkedValues.ReadTranscoder(readTranscoder(client))),
+                    CachingBroker.operationTimeout(client), "Get", key, pool);
+        } catch (NoSuchElementException ex) {
+            // The pool is full, return null.
+            logger.warn("Session pool full, get for key:" + key + " returning null ");
+            return CompletableFuture.completedFuture(null);
+        } catch (Exception ex) {
+            logger.error("Get for key:" + key + " caused an unplanned exception ", ex);
+            return failed(new CachingException(ex));
+        } finally {
+            //return the borrowed object back to pool, the operation is already queued
+            pool.returnObject(client);
+            logger.debug("GETASYNC:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Delete the given key from the session cache.
+     * If the pool is full the failure is logged and the future completes with false.
+     * <p>
+     * @param key Key of the object to be deleted from the cache.
+     * @return future holding true if the key was deleted.
+     */
+    public CompletableFuture<Boolean> deleteAsync(String key) {
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("DELETEASYNC:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //queue the delete operation
+            return complete(client.delete(key), CachingBroker.operationTimeout(client), "Delete", key, pool);
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, delete for key:" + key + " unsuccessful");
+            return CompletableFuture.completedFuture(Boolean.FALSE);
+        } catch (Exception ex) {
+            logger.error("Delete for key:" + key + " unsuccessful", ex);
+            return failed(new CachingException(ex));
+        } finally {
+            //return the borrowed object back to pool, the operation is already queued
+            pool.returnObject(client);
+            logger.debug("DELETEASYNC:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Return the server string associated with this Caching Broker.
+     * @return The string used to initialize the memcache server.
+     */
+    public String getServer() {
+        return deligatePool.getServer();
+    }
+
+    /**
+     * Return the codecs used by this broker.
+     * @return The codec registry, or null if values go through the client's serializing transcoder.
+     */
+    public CodecRegistry getCodecs() {
+        return codecs;
+    }
+
+    /**
+     * Encode and decode values with the given codecs (or with the client's serializing transcoder by passing null),
+     * set the same ones as on the {@link CachingBroker} reading and writing the same keys.
+     * @param codecs Codecs picked per value type or key prefix.
+     */
+    public void setCodecs(CodecRegistry codecs) {
+        this.codecs = codecs;
+    }
+
+    /**
+     * Stop the poller and the completion threads created by this broker once the pending operations are
+     * complete, they complete exceptionally at the latest when their operation times out. Operations
+     * queued afterwards fail right away.
+     */
+    public void shutdown() {
+        poller.stop();
+    }
+
+    /**
+     * Hand the result of a queued spymemcached operation over to a {@link CompletableFuture}.
+     */
+    private <T> CompletableFuture<T> complete(final Future<T> operation, long timeoutMillis, final String op,
+                                              final String key, final ICachingPool pool) {
+        Pending<T> pending = new Pending<T>(operation, timeoutMillis, op, key, pool);
+        if (!poller.add(pending)) {
+            operation.cancel(false);
+            pending.result.completeExceptionally(new CachingException(op + " for key:" + key + " rejected, broker is shut down"));
+        }
+        return pending.result;
+    }
+
+    /**
+     * Record a completed operation, latency runs from queueing to the reply.
+     */
+    private static void record(PoolMetrics metrics, String op, long nanos, Object value) {
+        if ("Get".equals(op)) {
+            metrics.recordGet(nanos, value != null);
+        } else if ("Set".equals(op)) {
+            metrics.recordSet(nanos);
+        } else {
+            metrics.recordDelete(nanos);
+        }
+    }
+
+    private Transcoder<Object> writeTranscoder(MemcachedClient client, String key) {
+        CodecRegistry registry = codecs;
+        return registry == null ? client.getTranscoder() : registry.transcoderFor(key);
+    }
+
+    private Transcoder<Object> readTranscoder(MemcachedClient client) {
+        CodecRegistry registry = codecs;
+        return registry == null ? client.getTranscoder() : registry;
+    }
+
+    /**
+     * Pick the pool for a key, for a cluster that is the pool of the node owning the key.
+     */
+    private ICachingPool poolFor(String key) {
+        if (deligatePool instanceof IRoutingCachingPool) {
+            return ((IRoutingCachingPool) deligatePool).route(key);
+        }
+        return deligatePool;
+    }
+
+    private void reportSuccess(ICachingPool pool) {
+        if (deligatePool instanceof IRoutingCachingPool) {
+            ((IRoutingCachingPool) deligatePool).reportSuccess(pool);
+        }
+    }
+
+    private void reportFailure(ICachingPool pool) {
+        if (deligatePool instanceof IRoutingCachingPool) {
+            ((IRoutingCachingPool) deligatePool).reportFailure(pool);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(CachingException ex) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        result.completeExceptionally(ex);
+        return result;
+    }
+
+    private static ExecutorService newCompletionExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        // a full queue makes the poller run the callbacks, slowing it down rather than queueing without bound
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_COMPLETION_QUEUE), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "caching-async-completion-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * A queued operation and the future waiting for it.
+     */
+    private final class Pending<T> {
+        final Future<T> operation;
+        final String op;
+        final String key;
+        final ICachingPool pool;
+        final long timeoutMillis;
+        final long start = System.nanoTime();
+        final long deadline;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+
+        Pending(Future<T> operation, long timeoutMillis, String op, String key, ICachingPool pool) {
+            this.operation = operation;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            this.op = op;
+            this.key = key;
+            this.pool = pool;
+        }
+
+        /**
+         * Take the result of the done operation, the get does not block.
+         */
+        void finish() {
+            try {
+                T value = operation.get();
+                record(pool.getMetrics(), op, System.nanoTime() - start, value);
+                reportSuccess(pool);
+                if (value instanceof ChunkedValues.Manifest) {
+                    hand(null, new CachingException(op + " for key:" + key + " found a value stored in chunks, the async broker does not read those"));
+                    return;
+                }
+                // a value stored for refresh ahead comes in its envelope
+                hand(unwrap(value), null);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                hand(null, new CachingException(op + " for key:" + key + " interrupted", ex));
+            } catch (ExecutionException ex) {
+                logger.error(op + " for key:" + key + " caused an unplanned exception ", ex.getCause());
+                pool.getMetrics().recordError();
+                reportFailure(pool);
+                hand(null, new CachingException(ex.getCause()));
+            } catch (RuntimeException ex) {
+                hand(null, new CachingException(ex));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private T unwrap(T value) {
+            return (T) RefreshEnvelope.unwrap(value);
+        }
+
+        void timeout() {
+            operation.cancel(false);
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            hand(null, new CachingException(op + " for key:" + key + " timed out",
+                    new TimeoutException("No reply within " + timeoutMillis + "ms")));
+        }
+
+        private void hand(final T value, final CachingException failure) {
+            Runnable completion = new Runnable() {
+                public void run() {
+                    if (failure == null) {
+                        result.complete(value);
+                    } else {
+                        result.completeExceptionally(failure);
+                    }
+                }
+            };
+            try {
+                completionExecutor.execute(completion);
+            } catch (RejectedExecutionException ex) {
+                completion.run();
+            }
+        }
+    }
+
+    /**
+     * Watches the queued operations without blocking on any of them.
+     */
+    private final class Poller implements Runnable {
+        private final ConcurrentLinkedQueue<Pending<?>> incoming = new ConcurrentLinkedQueue<Pending<?>>();
+        private volatile Thread thread;
+        private volatile boolean idle = false;
+        private volatile boolean stopped = false;
+
+        boolean add(Pending<?> pending) {
+            incoming.add(pending);
+            if (stopped && incoming.remove(pending)) {
+                // the poller may be gone, the ones it took before stopping still complete
+                return false;
+            }
+            if (idle) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
+        }
+
+        public void run() {
+            List<Pending<?>> pending = new ArrayList<Pending<?>>();
+            long pollNanos = MIN_POLL_NANOS;
+            while (true) {
+                Pending<?> next;
+                while ((next = incoming.poll()) != null) {
+                    pending.add(next);
+                }
+                if (pending.isEmpty()) {
+                    if (stopped && incoming.isEmpty()) {
+                        break;
+                    }
+                    idle = true;
+                    if (incoming.isEmpty() && !stopped) {
+                        LockSupport.park(this);
+                    }
+                    idle = false;
+                    pollNanos = MIN_POLL_NANOS;
+                    continue;
+                }
+                long now = System.nanoTime();
+                boolean progress = false;
+                for (Iterator<Pending<?>> it = pending.iterator(); it.hasNext(); ) {
+                    Pending<?> candidate = it.next();
+                    if (candidate.operation.isDone()) {
+                        candidate.finish();
+                    } else if (now - candidate.deadline >= 0) {
+                        candidate.timeout();
+                    } else {
+                        continue;
+                    }
+                    it.remove();
+                    progress = true;
+                }
+                if (!pending.isEmpty()) {
+                    // back off while the server is slow, poll fast again once replies come in
+                    pollNanos = progress ? MIN_POLL_NANOS : Math.min(MAX_POLL_NANOS, pollNanos * 2);
+                    LockSupport.parkNanos(this, pollNanos);
+                }
+            }
+            if (ownsExecutor) {
+                completionExecutor.shutdown();
+            }
+        }
+    }
+}
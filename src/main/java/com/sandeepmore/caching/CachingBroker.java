@@ -1,13 +1,45 @@
 package com.sandeepmore.caching;
 
+import com.sandeepmore.caching.codec.CodecRegistry;
+import com.sandeepmore.caching.codec.RawTranscoder;
 import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.pool.CachingPoolRegistry;
 import com.sandeepmore.pool.ICachingPool;
+import com.sandeepmore.pool.IRoutingCachingPool;
+import com.sandeepmore.pool.PooledMemcachedClient;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.transcoders.Transcoder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
 
 /**
  * API Used to Set, Get and Delete values from the cache pool.
@@ -23,6 +55,7 @@ import java.util.NoSuchElementException;
  *
  *                  	cb.set(key ,TTL, value); // set
  *                  	cb.get(key);             // get
+ *                  	cb.getMulti(keys);       // bulk get
  *                  	cb.delete(key);	         // delete
  *                 }
  *                 </pre>
@@ -30,7 +63,70 @@ import java.util.NoSuchElementException;
 public class CachingBroker implements ICachingBroker {
 
     private static final Log logger = LogFactory.getLog(CachingBroker.class);
+    /**
+     * Attempts of {@link #update(String, int, UnaryOperator)} before giving up, and the cap of the random
+     * backoff between two attempts.
+     */
+    private static final int MAX_CAS_ATTEMPTS = 10;
+    private static final long MAX_CAS_BACKOFF_MICROS = 20000;
+    private static final int MAX_COUNTER_READS = 3;
+    /**
+     * Encoded values above this size are stored in chunks, it stays under memcached's default 1MB item limit
+     * with room for the key and the item header.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1000 * 1000;
+    /**
+     * Threads and queue length of the executor refreshing values in the background when none is set.
+     */
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+    private static final int DEFAULT_REFRESH_QUEUE = 256;
+    private static final int MAX_REFRESHED_KEYS = 10000;
+    private static final long REFRESHED_RETENTION_MILLIS = 60 * 1000;
+    /**
+     * Keys fetched per bulk get when a restored hot set is prefetched from memcached.
+     */
+    private static final int PREFETCH_BATCH = 100;
     private ICachingPool deligatePool = null;
+    /**
+     * Optional in-process tier consulted before memcached, null when switched off.
+     */
+    private volatile NearCache nearCache = null;
+    private final SingleFlight loads = new SingleFlight();
+    /**
+     * Optional per type / per key prefix codecs, null to use the client's serializing transcoder.
+     */
+    private volatile CodecRegistry codecs = null;
+    /**
+     * Optional write-behind stage for set and delete, null when writes are synchronous.
+     */
+    private volatile WriteBehindQueue writeBehind = null;
+    /**
+     * Optional hot key tracking with short lived local copies, null when switched off.
+     */
+    private volatile HotKeyDetector hotKeys = null;
+    /**
+     * Optional local aggregation of counter deltas, null when switched off.
+     */
+    private volatile CounterAggregator counters = null;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile ChunkedValues.ReadTranscoder chunkedRead = null;
+    private volatile ExecutorService refreshExecutor = null;
+    /**
+     * Copies of the values on other nodes of a cluster and hedged gets, null when switched off.
+     */
+    private volatile Replication replication = null;
+    /**
+     * Periodic snapshot of the hot set for warm restarts, null when switched off.
+     */
+    private volatile HotSetSnapshot snapshot = null;
+    /**
+     * Refresh time of the stale value each key was last refreshed for. It outlives the refresh so a reader
+     * that got the stale value just before the new one landed does not refresh it again.
+     */
+    private final ConcurrentHashMap<String, Long> refreshed = new ConcurrentHashMap<String, Long>();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshesRejected = new LongAdder();
+    private final NamespaceGenerations namespaces = new NamespaceGenerations(this);
 
     public CachingBroker() {
         this.deligatePool = CachingPool.getInstance(); // get the session instance
@@ -43,6 +139,26 @@ public class CachingBroker implements ICachingBroker {
         this.deligatePool = deligatePool;
     }
 
+    /**
+     * Use a named pool of the {@link CachingPoolRegistry}, created from the properties file on first use.
+     *
+     * @param poolName Name of the pool.
+     */
+    public CachingBroker(final String poolName) {
+        this.deligatePool = CachingPoolRegistry.getPool(poolName);
+    }
+
+    /**
+     * Use the given pool with an in-process near cache in front of it.
+     *
+     * @param deligatePool Pool to borrow the clients from.
+     * @param nearCache    Near cache consulted before memcached, null to switch it off.
+     */
+    public CachingBroker(final ICachingPool deligatePool, final NearCache nearCache) {
+        this.deligatePool = deligatePool;
+        this.nearCache = nearCache;
+    }
+
     /**
      * Set an object in the cache regardless of any existing value.
      * If the set fails exception will be logged silently.
@@ -52,25 +168,75 @@ public class CachingBroker implements ICachingBroker {
      * @param obj Object value to be stored in the cache.
      */
     public void set(String key, int exp, Object obj) {
+        write(key, exp, obj);
+    }
+
+    /**
+     * Set an object like {@link #set(String, int, Object)} and hand back the pending store.
+     * @return The future of the store, null if the write was queued behind or failed.
+     */
+    private Future<Boolean> write(String key, int exp, Object obj) {
+        invalidateHot(key);
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            if (nearCache != null) {
+                nearCache.put(key, obj, exp);
+            }
+            if (queue.offerSet(key, exp, obj)) {
+                return null;
+            }
+        }
+        ICachingPool pool = poolFor(key);
         MemcachedClient client = null;
         try {
             // borrow an object from the pool to work on
             logger.debug("SET:Borrowing object from the pool");
-            client = (MemcachedClient) deligatePool.borrowObject();
-            //do the set operation
-            client.set(key, exp, obj);
+            client = (MemcachedClient) pool.borrowObject();
+            //do the set operation, not timed as it only queues the set on the client
+            Future<Boolean> stored = store(client, key, exp, obj);
+            if (nearCache != null) {
+                nearCache.put(key, obj, exp);
+            }
+            Replication replicated = replication;
+            if (replicated != null) {
+                replicated.copy(key, exp, obj);
+            }
+            return stored;
         } catch (NoSuchElementException ex) {
             // The pool is full
             logger.error("Session pool full");
             ex.printStackTrace();
+            invalidateNear(key);
         } catch (Exception ex) {
             logger.error("Set session cache failed for key:" + key);
             ex.printStackTrace();
+            recordError(pool, client);
+            invalidateNear(key);
         } finally {
             //return the borrowed object back to pool
-            deligatePool.returnObject(client);
+            pool.returnObject(client);
             logger.debug("SET:Returned object to the pool");
         }
+        return null;
+    }
+
+    /**
+     * Store a loaded value and wait for memcached to have it, so the flight of the load ends only once
+     * the callers arriving after it can read the value on any client of the pool.
+     */
+    private void storeLoaded(String key, int exp, Object value) {
+        Future<Boolean> stored = write(key, exp, value);
+        if (stored == null) {
+            return;
+        }
+        try {
+            // bounded by the operation timeout of the client
+            stored.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            logger.warn("Storing the loaded value of key:" + key + " failed", ex);
+        }
     }
 
     /**
@@ -82,33 +248,722 @@ public class CachingBroker implements ICachingBroker {
      * @return The result from the cache (null if there is none).
      */
     public Object get(String key) throws CachingException {
+        return RefreshEnvelope.unwrap(read(key));
+    }
+
+    /**
+     * Get the value as it is stored, a value loaded by {@link #get(String, int, double, Callable)} comes back in
+     * its {@link RefreshEnvelope}. The near and the hot cache hold the stored values too.
+     */
+    private Object read(String key) throws CachingException {
+        HotKeyDetector hot = hotKeys;
+        if (hot != null) {
+            hot.record(key);
+            Object hotValue = hot.getHotCache().get(key);
+            if (hotValue != null) {
+                return hotValue;
+            }
+        }
+        NearCache near = nearCache;
+        if (near != null) {
+            Object nearValue = near.get(key);
+            if (nearValue != null) {
+                return nearValue;
+            }
+        }
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            WriteBehindQueue.Write write = queue.peek(key);
+            if (write != null) {
+                // not written yet, a queued delete reads as a miss
+                return write.value;
+            }
+        }
+        ICachingPool pool = poolFor(key);
         MemcachedClient client = null;
         Object getValue = null;
         try {
             // borrow an object from the pool to work on
             logger.debug("GET:Borrowing object from the pool");
-            client = (MemcachedClient) deligatePool.borrowObject();
+            client = (MemcachedClient) pool.borrowObject();
             //do the get operation
-            getValue = client.get(key);
+            long start = System.nanoTime();
+            Replication replicated = replication;
+            if (replicated != null) {
+                getValue = replicated.get(key, pool, client);
+            } else {
+                getValue = client.get(key, chunkedReadTranscoder(client));
+            }
+            if (getValue instanceof ChunkedValues.Manifest) {
+                getValue = ChunkedValues.resolve(client, key, (ChunkedValues.Manifest) getValue, readTranscoder(client));
+            }
+            pool.getMetrics().recordGet(System.nanoTime() - start, getValue != null);
+            reportSuccess(pool);
+            if (near != null && getValue != null) {
+                near.put(key, getValue);
+            }
+            if (hot != null && getValue != null && hot.isHot(key)) {
+                hot.getHotCache().put(key, getValue);
+            }
             return getValue;
         } catch (NoSuchElementException ex) {
             // The pool is full, return null.
             logger.warn("Session pool full, get for key:" + key + " returning null ");
             return null;
         } catch (OperationTimeoutException ex) {
-            logger.error("Timed out while waiting for the memcache connection to: " + deligatePool.getServer());
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
             throw new CachingException(ex);
         } catch (Exception ex) {
             logger.error("Get for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
             throw new CachingException(ex);
         } finally {
             //return the borrowed object back to pool
-            deligatePool.returnObject(client);
+            pool.returnObject(client);
             logger.debug("GET:Returned object to the pool");
         }
 
     }
 
+    /**
+     * Get the object from the cache with a single key, loading it on a miss.
+     * When many threads miss the same key at once only one of them goes to memcached and to the loader,
+     * the others wait for that result. A loaded value is stored with the given TTL, and the load stays in flight
+     * until memcached has it, so a caller arriving right after it does not miss and load again.
+     * <p>
+     * @param key    Key of the object to be retrieved from the cache.
+     * @param exp    Time To Live value in seconds for a loaded object.
+     * @param loader Loads the object on a miss, may return null.
+     * @throws CachingException if the lookup or the loader failed.
+     * @return The result from the cache or the loader (null if there is none).
+     */
+    public Object get(final String key, final int exp, final Callable<Object> loader) throws CachingException {
+        NearCache near = nearCache;
+        if (near != null) {
+            Object nearValue = near.get(key);
+            if (nearValue != null) {
+                return RefreshEnvelope.unwrap(nearValue);
+            }
+        }
+        return loads.execute(key, new Callable<Object>() {
+            public Object call() throws Exception {
+                Object value = get(key);
+                if (value == null) {
+                    logger.debug("GET:Miss for key:" + key + ", calling the loader");
+                    value = loader.call();
+                    if (value != null) {
+                        storeLoaded(key, exp, value);
+                    }
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Get the object from the cache with a single key, loading it on a miss and refreshing it ahead of its expiry.
+     * A loaded value is stored with the time after which it should be refreshed, {@code refreshAfter} of its TTL.
+     * A caller finding the value past that time gets it right away and the loader runs on the refresh executor,
+     * so only a real miss pays the loader latency. Misses are coalesced like in {@link #get(String, int, Callable)}.
+     * A refresh that fails or is turned down by a full executor leaves the current value, a later caller tries again.
+     * The refresh time is stored with the value, every other read of the key returns the value alone.
+     * <p>
+     * @param key          Key of the object to be retrieved from the cache.
+     * @param exp          Time To Live value in seconds for a loaded object.
+     * @param refreshAfter Fraction of the TTL after which the object is refreshed, between 0 and 1.
+     * @param loader       Loads the object, may return null. Refreshes call it on another thread.
+     * @throws CachingException if the lookup or the loader failed on a miss.
+     * @return The result from the cache or the loader (null if there is none).
+     */
+    public Object get(final String key, final int exp, final double refreshAfter, final Callable<Object> loader)
+            throws CachingException {
+        if (!(refreshAfter > 0 && refreshAfter <= 1)) {
+            throw new IllegalArgumentException("refreshAfter must be within (0, 1], was " + refreshAfter);
+        }
+        Object value = read(key);
+        if (value == null) {
+            value = loads.execute(key, new Callable<Object>() {
+                public Object call() throws Exception {
+                    // another caller may have loaded it while we were waiting
+                    Object current = read(key);
+                    if (current != null) {
+                        return current;
+                    }
+                    logger.debug("GET:Miss for key:" + key + ", calling the loader");
+                    Object loaded = loader.call();
+                    if (loaded != null) {
+                        storeLoaded(key, exp, new RefreshEnvelope(loaded, refreshAt(exp, refreshAfter)));
+                    }
+                    return loaded;
+                }
+            });
+        }
+        if (!(value instanceof RefreshEnvelope)) {
+            // stored by a plain set, it has no logical expiry
+            return value;
+        }
+        RefreshEnvelope envelope = (RefreshEnvelope) value;
+        if (envelope.isStale(System.currentTimeMillis())) {
+            refreshAsync(key, exp, refreshAfter, loader, envelope.refreshAtMillis);
+        }
+        return envelope.value;
+    }
+
+    /**
+     * Get the objects for a set of keys using a single borrowed client and one bulk request per node.
+     * Keys that are not found, or whose node did not answer within the operation timeout,
+     * are left out of the result instead of failing the whole batch.
+     * <p>
+     * @param keys Keys of the objects to be retrieved from the cache.
+     * @throws CachingException
+     * @return The keys that were found and their values (empty if there are none).
+     */
+    public Map<String, Object> getMulti(Collection<String> keys) throws CachingException {
+        Map<String, Object> values = readMulti(keys);
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            entry.setValue(RefreshEnvelope.unwrap(entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Get the values as they are stored, like {@link #read(String)}.
+     */
+    private Map<String, Object> readMulti(Collection<String> keys) throws CachingException {
+        if (keys == null || keys.isEmpty()) {
+            return new HashMap<String, Object>();
+        }
+        NearCache near = nearCache;
+        Map<String, Object> nearValues = new HashMap<String, Object>();
+        if (near != null) {
+            Collection<String> remoteKeys = new ArrayList<String>(keys.size());
+            for (String key : keys) {
+                Object nearValue = near.get(key);
+                if (nearValue != null) {
+                    nearValues.put(key, nearValue);
+                } else {
+                    remoteKeys.add(key);
+                }
+            }
+            if (remoteKeys.isEmpty()) {
+                return nearValues;
+            }
+            keys = remoteKeys;
+        }
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            Collection<String> remoteKeys = new ArrayList<String>(keys.size());
+            for (String key : keys) {
+                WriteBehindQueue.Write write = queue.peek(key);
+                if (write == null) {
+                    remoteKeys.add(key);
+                } else if (write.value != null) {
+                    nearValues.put(key, write.value);
+                }
+            }
+            if (remoteKeys.isEmpty()) {
+                return nearValues;
+            }
+            keys = remoteKeys;
+        }
+        // one borrow and one bulk request per node, all nodes are queried in parallel
+        Map<ICachingPool, Collection<String>> groups = groupByPool(keys);
+        List<ICachingPool> pools = new ArrayList<ICachingPool>(groups.size());
+        List<MemcachedClient> clients = new ArrayList<MemcachedClient>(groups.size());
+        List<BulkFuture<Map<String, Object>>> futures = new ArrayList<BulkFuture<Map<String, Object>>>(groups.size());
+        List<Integer> keyCounts = new ArrayList<Integer>(groups.size());
+        Exception failure = null;
+        long start = System.nanoTime();
+        try {
+            for (Map.Entry<ICachingPool, Collection<String>> group : groups.entrySet()) {
+                ICachingPool pool = group.getKey();
+                try {
+                    // borrow an object from the pool to work on
+                    logger.debug("GETMULTI:Borrowing object from the pool");
+                    MemcachedClient client = (MemcachedClient) pool.borrowObject();
+                    clients.add(client);
+                    pools.add(pool);
+                    keyCounts.add(group.getValue().size());
+                    futures.add(client.asyncGetBulk(group.getValue(), chunkedReadTranscoder(client)));
+                } catch (NoSuchElementException ex) {
+                    // The pool is full, leave these keys out.
+                    logger.warn("Session pool full, get for " + group.getValue().size() + " keys on " + pool.getServer() +
+                            " skipped");
+                } catch (Exception ex) {
+                    logger.error("Get for " + group.getValue().size() + " keys on " + pool.getServer() +
+                            " caused an unplanned exception ", ex);
+                    reportFailure(pool);
+                    failure = ex;
+                }
+            }
+            // keep whatever arrived before the timeout
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+            Map<String, Object> result = nearValues;
+            for (int i = 0; i < futures.size(); i++) {
+                BulkFuture<Map<String, Object>> future = futures.get(i);
+                try {
+                    Map<String, Object> values = resolveChunks(clients.get(i),
+                            future.getSome(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                    pools.get(i).getMetrics().recordGetMulti(System.nanoTime() - start, values.size(),
+                            keyCounts.get(i) - values.size());
+                    if (future.isTimeout()) {
+                        logger.warn("Bulk get timed out on " + pools.get(i).getServer() + ", returning " + values.size() +
+                                " of its keys");
+                        pools.get(i).getMetrics().recordTimeout();
+                        reportFailure(pools.get(i));
+                    } else {
+                        reportSuccess(pools.get(i));
+                    }
+                    if (near != null) {
+                        for (Map.Entry<String, Object> entry : values.entrySet()) {
+                            near.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    result.putAll(values);
+                } catch (ExecutionException ex) {
+                    logger.error("Bulk get on " + pools.get(i).getServer() + " caused an unplanned exception ", ex);
+                    pools.get(i).getMetrics().recordError();
+                    reportFailure(pools.get(i));
+                    failure = ex;
+                }
+            }
+            if (futures.isEmpty() && failure != null && result.isEmpty()) {
+                // nothing got through, report the failure rather than a silent miss
+                throw new CachingException(failure);
+            }
+            return result;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed objects back to their pools
+            for (int i = 0; i < clients.size(); i++) {
+                pools.get(i).returnObject(clients.get(i));
+            }
+            logger.debug("GETMULTI:Returned objects to the pool");
+        }
+    }
+
+    /**
+     * Set already encoded bytes in the cache, bypassing serialization and the codecs.
+     * The raw path does not go through the near cache, the hot key copies or the write-behind queue,
+     * it only drops the key from the local tiers.
+     * If the set fails exception will be logged silently.
+     * <p>
+     * @param key   The key under which the bytes should be stored.
+     * @param exp   Time To Live value for the bytes in seconds.
+     * @param value Bytes to be stored in the cache, stored without a copy.
+     */
+    public void setBytes(String key, int exp, byte[] value) {
+        flushQueued(key);
+        invalidateNear(key);
+        invalidateHot(key);
+        dropCopies(key);
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("SETBYTES:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //do the set operation, not timed as it only queues the set on the client
+            client.set(key, exp, value, RawTranscoder.INSTANCE);
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full");
+            ex.printStackTrace();
+        } catch (Exception ex) {
+            logger.error("Set bytes failed for key:" + key);
+            ex.printStackTrace();
+            recordError(pool, client);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("SETBYTES:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Set the remaining bytes of a buffer in the cache, bypassing serialization and the codecs.
+     * A heap buffer covering its whole backing array is stored without a copy, other buffers are copied once.
+     * <p>
+     * @param key   The key under which the bytes should be stored.
+     * @param exp   Time To Live value for the bytes in seconds.
+     * @param value Bytes between position and limit, the position is not moved.
+     */
+    public void setBytes(String key, int exp, ByteBuffer value) {
+        byte[] bytes;
+        if (value.hasArray() && value.arrayOffset() == 0 && value.position() == 0
+                && value.remaining() == value.array().length) {
+            bytes = value.array();
+        } else {
+            bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+        }
+        setBytes(key, exp, bytes);
+    }
+
+    /**
+     * Get the bytes stored under a key without deserializing them, the array is the one spymemcached
+     * read the value into. A value stored in chunks comes back as its reassembled encoded bytes.
+     * <p>
+     * @param key Key of the bytes to be retrieved from the cache.
+     * @throws CachingException
+     * @return The stored bytes (null if there are none).
+     */
+    public byte[] getBytes(String key) throws CachingException {
+        flushQueued(key);
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("GETBYTES:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //do the get operation
+            long start = System.nanoTime();
+            Object value = client.get(key, ChunkedValues.RAW_READ);
+            if (value instanceof ChunkedValues.Manifest) {
+                value = ChunkedValues.resolve(client, key, (ChunkedValues.Manifest) value, ChunkedValues.RAW_READ);
+            }
+            pool.getMetrics().recordGet(System.nanoTime() - start, value != null);
+            reportSuccess(pool);
+            return (byte[]) value;
+        } catch (NoSuchElementException ex) {
+            // The pool is full, return null.
+            logger.warn("Session pool full, get bytes for key:" + key + " returning null ");
+            return null;
+        } catch (OperationTimeoutException ex) {
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } catch (Exception ex) {
+            logger.error("Get bytes for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("GETBYTES:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Get the object from the cache with its CAS identifier, the near cache is not consulted.
+     * A value stored in chunks comes back with the CAS identifier of its manifest, so a cas replaces it whole;
+     * if its chunks are gone it reads as a miss.
+     * <p>
+     * @param key Key of the object to be retrieved from the cache.
+     * @throws CachingException
+     * @return The value and its CAS identifier (null if there is none).
+     */
+    public CASValue<Object> gets(String key) throws CachingException {
+        flushQueued(key);
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("GETS:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //do the gets operation
+            long start = System.nanoTime();
+            CASValue<Object> value = resolveChunks(client, key, client.gets(key, chunkedReadTranscoder(client)));
+            if (value != null && value.getValue() == null) {
+                value = null;
+            } else if (value != null && value.getValue() instanceof RefreshEnvelope) {
+                value = new CASValue<Object>(value.getCas(), RefreshEnvelope.unwrap(value.getValue()));
+            }
+            pool.getMetrics().recordGet(System.nanoTime() - start, value != null);
+            reportSuccess(pool);
+            return value;
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, gets for key:" + key + " unsuccessful");
+            throw new CachingException(ex);
+        } catch (OperationTimeoutException ex) {
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } catch (Exception ex) {
+            logger.error("Gets for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("GETS:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Set an object in the cache if its CAS identifier still matches.
+     * <p>
+     * @param key   The key under which this object should be stored.
+     * @param casId CAS identifier returned by {@link #gets(String)}.
+     * @param exp   Time To Live value for the object in seconds.
+     * @param obj   Object value to be stored in the cache.
+     * @throws CachingException
+     * @return OK if stored, EXISTS if the value was modified in between, NOT_FOUND if the key is gone.
+     */
+    public CASResponse cas(String key, long casId, int exp, Object obj) throws CachingException {
+        flushQueued(key);
+        invalidateNear(key);
+        invalidateHot(key);
+        dropCopies(key);
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("CAS:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //do the cas operation
+            long start = System.nanoTime();
+            CASResponse response = client.cas(key, casId, exp, obj, writeTranscoder(client, key));
+            if (response == CASResponse.OK) {
+                pool.getMetrics().recordCas(System.nanoTime() - start, 0);
+                // a get running alongside may have put the old value back since the first invalidation
+                invalidateNear(key);
+                invalidateHot(key);
+            } else {
+                pool.getMetrics().recordCasConflict(0);
+            }
+            reportSuccess(pool);
+            return response;
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, cas for key:" + key + " unsuccessful");
+            throw new CachingException(ex);
+        } catch (OperationTimeoutException ex) {
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } catch (Exception ex) {
+            logger.error("Cas for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("CAS:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Read-modify-write a key with optimistic concurrency: read the value with its CAS identifier, compute the
+     * new value and store it only if nobody wrote in between, otherwise back off a random time and try again.
+     * All the attempts run on one borrowed client. A missing key is created with add, which fails the same way
+     * if another writer created it first. A write queued behind for the key is written out first.
+     * <p>
+     * @param key The key to update.
+     * @param exp Time To Live value for the object in seconds.
+     * @param fn  Computes the new value from the current one (null if there is none), null leaves the key untouched.
+     * @throws CachingException if memcached failed or every attempt lost the race.
+     * @return The value stored, null if the function returned null.
+     */
+    public Object update(String key, int exp, UnaryOperator<Object> fn) throws CachingException {
+        flushQueued(key);
+        invalidateNear(key);
+        invalidateHot(key);
+        dropCopies(key);
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        long start = System.nanoTime();
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("UPDATE:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    backoff(attempt);
+                }
+                // a chunked value whose chunks are gone reads as null but is still replaced through its CAS
+                CASValue<Object> current = resolveChunks(client, key, client.gets(key, chunkedReadTranscoder(client)));
+                // a value in a refresh envelope is replaced by a plain one
+                Object next = fn.apply(current == null ? null : RefreshEnvelope.unwrap(current.getValue()));
+                if (next == null) {
+                    pool.getMetrics().recordCas(System.nanoTime() - start, attempt);
+                    return null;
+                }
+                boolean stored;
+                if (current == null) {
+                    stored = client.add(key, exp, next, writeTranscoder(client, key)).get();
+                } else {
+                    stored = client.cas(key, current.getCas(), exp, next, writeTranscoder(client, key)) == CASResponse.OK;
+                }
+                if (stored) {
+                    pool.getMetrics().recordCas(System.nanoTime() - start, attempt);
+                    // as in cas, drop an old value a concurrent get cached meanwhile
+                    invalidateNear(key);
+                    invalidateHot(key);
+                    reportSuccess(pool);
+                    return next;
+                }
+                logger.debug("UPDATE:Lost the race for key:" + key + " on attempt " + (attempt + 1));
+            }
+            pool.getMetrics().recordCasConflict(MAX_CAS_ATTEMPTS - 1);
+            reportSuccess(pool);
+            throw new CachingException("Update for key:" + key + " lost the race " + MAX_CAS_ATTEMPTS + " times");
+        } catch (CachingException ex) {
+            throw ex;
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, update for key:" + key + " unsuccessful");
+            throw new CachingException(ex);
+        } catch (OperationTimeoutException ex) {
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CachingException(ex);
+        } catch (Exception ex) {
+            logger.error("Update for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("UPDATE:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Atomically increment a counter on memcached, creating it with the default value if it does not exist.
+     * <p>
+     * @param key The key of the counter.
+     * @param by  Amount to add.
+     * @param def Value of the counter if it does not exist.
+     * @param exp Time To Live value in seconds of a created counter.
+     * @throws CachingException
+     * @return The new value of the counter.
+     */
+    public long incr(String key, long by, long def, int exp) throws CachingException {
+        return mutate(key, by, def, exp, true);
+    }
+
+    /**
+     * Atomically decrement a counter on memcached, creating it with the default value if it does not exist.
+     * <p>
+     * @param key The key of the counter.
+     * @param by  Amount to subtract.
+     * @param def Value of the counter if it does not exist.
+     * @param exp Time To Live value in seconds of a created counter.
+     * @throws CachingException
+     * @return The new value of the counter, never below 0.
+     */
+    public long decr(String key, long by, long def, int exp) throws CachingException {
+        return mutate(key, by, def, exp, false);
+    }
+
+    /**
+     * Read a counter. With counter aggregation switched on the deltas not written yet are included, also while
+     * a flush is writing them.
+     * <p>
+     * @param key The key of the counter.
+     * @throws CachingException
+     * @return The value of the counter, -1 if it does not exist.
+     */
+    public long getCounter(String key) throws CachingException {
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("GETCOUNTER:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            CounterAggregator aggregator = counters;
+            Object value;
+            long pending;
+            for (int attempt = 1; ; attempt++) {
+                long sequence = aggregator == null ? 0 : aggregator.awaitReadable(key);
+                //do the get operation, memcached keeps counters as decimal text
+                long start = System.nanoTime();
+                value = client.get(key);
+                pool.getMetrics().recordGet(System.nanoTime() - start, value != null);
+                pending = aggregator == null ? 0 : aggregator.getPending(key);
+                // read again if a flush may have moved a delta to memcached after the get
+                if (aggregator == null || sequence == aggregator.getFlushSequence() || attempt == MAX_COUNTER_READS) {
+                    break;
+                }
+            }
+            reportSuccess(pool);
+            if (value == null) {
+                return pending == 0 ? -1 : Math.max(0, pending);
+            }
+            return Math.max(0, Long.parseLong(value.toString().trim()) + pending);
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, get counter for key:" + key + " unsuccessful");
+            throw new CachingException(ex);
+        } catch (OperationTimeoutException ex) {
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } catch (Exception ex) {
+            logger.error("Get counter for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("GETCOUNTER:Returned object to the pool");
+        }
+    }
+
+    private long mutate(String key, long by, long def, int exp, boolean incr) throws CachingException {
+        flushQueued(key);
+        invalidateNear(key);
+        invalidateHot(key);
+        if (by != 0) {
+            // a read like the generation lookup of a namespace leaves the value, and so its copies, as it is
+            dropCopies(key);
+        }
+        ICachingPool pool = poolFor(key);
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("INCR:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            //do the incr/decr operation
+            long start = System.nanoTime();
+            long value = incr ? client.incr(key, by, def, exp) : client.decr(key, by, def, exp);
+            pool.getMetrics().recordSet(System.nanoTime() - start);
+            // as in cas, a concurrent get may have cached the old counter again
+            invalidateNear(key);
+            invalidateHot(key);
+            reportSuccess(pool);
+            return value;
+        } catch (NoSuchElementException ex) {
+            // The pool is full
+            logger.error("Session pool full, " + (incr ? "incr" : "decr") + " for key:" + key + " unsuccessful");
+            throw new CachingException(ex);
+        } catch (OperationTimeoutException ex) {
+            logger.error("Timed out while waiting for the memcache connection to: " + pool.getServer());
+            pool.getMetrics().recordTimeout();
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } catch (Exception ex) {
+            logger.error((incr ? "Incr" : "Decr") + " for key:" + key + " caused an unplanned exception ", ex);
+            recordError(pool, client);
+            reportFailure(pool);
+            throw new CachingException(ex);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("INCR:Returned object to the pool");
+        }
+    }
+
     /**
      * Delete the given key from the session cache.
      * <p>
@@ -116,13 +971,24 @@ public class CachingBroker implements ICachingBroker {
      * @throws CachingException
      */
     public void delete(String key) throws CachingException {
+        invalidateNear(key);
+        invalidateHot(key);
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && queue.offerDelete(key)) {
+            return;
+        }
+        ICachingPool pool = poolFor(key);
         MemcachedClient client = null;
         try {
             // borrow an object from the pool to work on
             logger.debug("DELETE:Borrowing object from the pool");
-            client = (MemcachedClient) deligatePool.borrowObject();
-            //do the delete operation
+            client = (MemcachedClient) pool.borrowObject();
+            //do the delete operation, not timed as it only queues the delete on the client
             client.delete(key);
+            Replication replicated = replication;
+            if (replicated != null) {
+                replicated.copy(key, 0, null);
+            }
         } catch (NoSuchElementException ex) {
             // The pool is full
             logger.error("Session pool full, delete for key:" + key + " unsuccessful");
@@ -131,14 +997,85 @@ public class CachingBroker implements ICachingBroker {
             // The pool is full
             logger.error("Delete for key:" + key + " unsuccessful");
             ex.printStackTrace();
+            recordError(pool, client);
             throw new CachingException(ex);
         } finally {
             //return the borrowed object back to pool
-            deligatePool.returnObject(client);
+            pool.returnObject(client);
             logger.debug("DELETE:Returned object to the pool");
         }
     }
 
+    /**
+     * Get a key of a namespace, see {@link #invalidateNamespace(String)}.
+     * <p>
+     * @param ns  The namespace, e.g. a tenant id.
+     * @param key The key within the namespace.
+     * @throws CachingException
+     * @return The value stored under the key in the current generation of the namespace, null if there is none.
+     */
+    public Object get(String ns, String key) throws CachingException {
+        return get(namespaces.key(ns, key));
+    }
+
+    /**
+     * Set a key of a namespace, see {@link #invalidateNamespace(String)}.
+     * If the set fails exception will be logged silently.
+     * <p>
+     * @param ns  The namespace, e.g. a tenant id.
+     * @param key The key within the namespace.
+     * @param exp Time To Live value for the object in seconds.
+     * @param obj Object value to be stored in the cache.
+     */
+    public void set(String ns, String key, int exp, Object obj) {
+        try {
+            set(namespaces.key(ns, key), exp, obj);
+        } catch (CachingException ex) {
+            logger.error("Set for key:" + key + " of namespace:" + ns + " unsuccessful, the generation could not be read", ex);
+        }
+    }
+
+    /**
+     * Delete a key of a namespace.
+     * <p>
+     * @param ns  The namespace, e.g. a tenant id.
+     * @param key The key within the namespace.
+     * @throws CachingException
+     */
+    public void delete(String ns, String key) throws CachingException {
+        delete(namespaces.key(ns, key));
+    }
+
+    /**
+     * Drop every key of a namespace with a single incr of its generation counter, the keys stored under the
+     * previous generation are no longer read and age out of memcached. This process sees the change right away,
+     * other ones once their copy of the generation is older than {@link #getNamespaceTtlMillis()}.
+     * <p>
+     * @param ns The namespace, e.g. a tenant id.
+     * @throws CachingException
+     */
+    public void invalidateNamespace(String ns) throws CachingException {
+        long generation = namespaces.invalidate(ns);
+        logger.debug("Namespace " + ns + " moved to generation " + generation);
+    }
+
+    /**
+     * Return how long a namespace generation read from memcached is used before it is read again.
+     */
+    public long getNamespaceTtlMillis() {
+        return namespaces.getTtlMillis();
+    }
+
+    /**
+     * Set how long a namespace generation read from memcached is used before it is read again, 0 to read it on
+     * every call. This is how late an invalidation made by another process can be seen here.
+     *
+     * @param ttlMillis Time in milliseconds, 1000 by default.
+     */
+    public void setNamespaceTtlMillis(long ttlMillis) {
+        namespaces.setTtlMillis(ttlMillis);
+    }
+
     /**
      * Return the server string associated with this Caching Broker.
      * @return The string used to initialize the memcache server.
@@ -146,4 +1083,534 @@ public class CachingBroker implements ICachingBroker {
     public String getServer() {
         return deligatePool.getServer();
     }
+
+    /**
+     * Return the near cache used by this broker.
+     * @return The near cache, or null if it is switched off.
+     */
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Switch the near cache for this broker instance on (or off by passing null).
+     * @param nearCache Near cache consulted before memcached.
+     */
+    public void setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    /**
+     * Return the codecs used by this broker.
+     * @return The codec registry, or null if values go through the client's serializing transcoder.
+     */
+    public CodecRegistry getCodecs() {
+        return codecs;
+    }
+
+    /**
+     * Encode and decode values with the given codecs (or with the client's serializing transcoder by passing null).
+     * Every process sharing the cache must register the same codec ids.
+     * @param codecs Codecs picked per value type or key prefix.
+     */
+    public void setCodecs(CodecRegistry codecs) {
+        this.codecs = codecs;
+    }
+
+    /**
+     * Return the hot key detector of this broker.
+     * @return The detector, or null if hot keys are not tracked.
+     */
+    public HotKeyDetector getHotKeyDetector() {
+        return hotKeys;
+    }
+
+    /**
+     * Track the keys read most often and serve them from a short lived local copy (or stop by passing null).
+     * Only this process sees its own sets and deletes on a hot key, other processes may read the old value
+     * until their copy expires.
+     * @param hotKeys Detector sampling the keys read through {@link #get(String)}.
+     */
+    public void setHotKeyDetector(HotKeyDetector hotKeys) {
+        this.hotKeys = hotKeys;
+    }
+
+    /**
+     * Return the keys currently hot, with their approximate reads per second.
+     * @return The hot keys hottest first, empty if hot keys are not tracked.
+     */
+    public Map<String, Long> getHotKeys() {
+        HotKeyDetector hot = hotKeys;
+        return hot == null ? new LinkedHashMap<String, Long>() : hot.getHotKeys();
+    }
+
+    /**
+     * Add counter deltas locally and flush them to memcached in batches, see {@link CounterAggregator}.
+     * A broker already aggregating first flushes its current deltas.
+     * @param flushIntervalMillis Time between two flushes.
+     * @param flushThreshold      Absolute delta of one counter that triggers a flush before the interval.
+     * @param exp                 Time To Live value in seconds of the counters created by a flush.
+     * @return The aggregator to add the deltas to.
+     */
+    public synchronized CounterAggregator enableCounterAggregation(long flushIntervalMillis, long flushThreshold, int exp) {
+        disableCounterAggregation();
+        counters = new CounterAggregator(this, flushIntervalMillis, flushThreshold, exp);
+        return counters;
+    }
+
+    /**
+     * Stop aggregating counter deltas, blocks until the pending deltas are flushed.
+     */
+    public synchronized void disableCounterAggregation() {
+        CounterAggregator aggregator = counters;
+        if (aggregator != null) {
+            aggregator.close();
+            counters = null;
+        }
+    }
+
+    /**
+     * Return the counter aggregator of this broker.
+     * @return The aggregator, or null if counters are not aggregated.
+     */
+    public CounterAggregator getCounterAggregator() {
+        return counters;
+    }
+
+    /**
+     * Queue sets and deletes and write them in the background, see {@link WriteBehindQueue}.
+     * A broker already writing behind first flushes its current queue.
+     * @param capacity     Maximum number of distinct keys waiting to be written.
+     * @param batchSize    Maximum number of writes sent in one pipelined batch.
+     * @param backpressure What happens to a write for a new key when the queue is full.
+     * @return The queue, for its counters.
+     */
+    public synchronized WriteBehindQueue enableWriteBehind(int capacity, int batchSize, WriteBehindQueue.Backpressure backpressure) {
+        disableWriteBehind();
+        writeBehind = new WriteBehindQueue(this, capacity, batchSize, backpressure);
+        return writeBehind;
+    }
+
+    /**
+     * Go back to synchronous writes, blocks until the queued writes are written.
+     */
+    public synchronized void disableWriteBehind() {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            // reads keep seeing the queue until it is flushed
+            queue.close();
+            writeBehind = null;
+        }
+    }
+
+    /**
+     * Return the write-behind queue of this broker.
+     * @return The queue, or null if writes are synchronous.
+     */
+    public WriteBehindQueue getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Write every set and delete to {@code replicas} nodes of the cluster and hedge slow gets onto a copy,
+     * see {@link Replication}. The broker must use an {@link IRoutingCachingPool}.
+     * Synchronous sets and deletes send the copies on the calling thread.
+     * @param replicas      Number of nodes holding a value, the owner included.
+     * @param maxHedgeRatio Largest share of the gets that may be hedged, between 0 and 1.
+     * @return The replication, for its counters.
+     */
+    public synchronized Replication enableReplication(int replicas, double maxHedgeRatio) {
+        if (!(deligatePool instanceof IRoutingCachingPool)) {
+            throw new IllegalStateException("Replication needs a cluster pool, " + deligatePool.getServer() + " is a single node");
+        }
+        replication = new Replication(this, (IRoutingCachingPool) deligatePool, replicas, maxHedgeRatio);
+        logger.info("Replicating over " + replicas + " nodes of " + deligatePool.getServer() + ", hedging up to "
+                + maxHedgeRatio + " of the gets");
+        return replication;
+    }
+
+    /**
+     * Stop writing copies and hedging gets, the copies already written expire with their TTL.
+     */
+    public synchronized void disableReplication() {
+        replication = null;
+    }
+
+    /**
+     * Return the replication of this broker.
+     * @return The replication, or null if values live on their owner only.
+     */
+    public Replication getReplication() {
+        return replication;
+    }
+
+    /**
+     * Record the hot set of this broker to a file every {@code intervalMillis} and when the JVM exits normally,
+     * see {@link HotSetSnapshot}. A broker already recording first writes and stops its current snapshot.
+     * @param file           The snapshot file, replaced by every snapshot.
+     * @param intervalMillis Time between two snapshots.
+     * @param maxKeys        Maximum number of keys recorded.
+     * @param withValues     Record the values held by the near cache too, or the keys only. Cached values are
+     *                       then persisted to disk, in a file readable by its owner only.
+     * @return The snapshot, for its counters.
+     */
+    public synchronized HotSetSnapshot enableHotSetSnapshot(File file, long intervalMillis, int maxKeys, boolean withValues) {
+        disableHotSetSnapshot();
+        snapshot = new HotSetSnapshot(this, file, intervalMillis, maxKeys, withValues);
+        return snapshot;
+    }
+
+    /**
+     * Stop recording the hot set, after a last snapshot.
+     */
+    public synchronized void disableHotSetSnapshot() {
+        HotSetSnapshot current = snapshot;
+        if (current != null) {
+            current.close();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Return the hot set snapshot of this broker.
+     * @return The snapshot, or null if the hot set is not recorded.
+     */
+    public HotSetSnapshot getHotSetSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Warm the near cache from a snapshot written by {@link #enableHotSetSnapshot(File, long, int, boolean)},
+     * typically on startup before taking traffic. Recorded values are held until the time their near cache entry
+     * was due to expire, the other keys are fetched from memcached with bulk gets. A missing, damaged or
+     * incompatible snapshot warms nothing, or only the records read before the damage.
+     * @param file The snapshot file.
+     * @return The number of keys now held by the near cache.
+     */
+    public int restoreHotSet(File file) {
+        NearCache near = nearCache;
+        if (near == null) {
+            throw new IllegalStateException("Restoring a hot set needs a near cache");
+        }
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        List<String> prefetch = new ArrayList<String>();
+        for (HotSetSnapshot.Record record : HotSetSnapshot.read(file, codecs)) {
+            if (record.value != null && record.expiresAtMillis > now) {
+                near.restore(record.key, record.value, record.expiresAtMillis);
+                restored++;
+            } else {
+                prefetch.add(record.key);
+            }
+        }
+        int prefetched = 0;
+        for (int from = 0; from < prefetch.size(); from += PREFETCH_BATCH) {
+            try {
+                // getMulti puts what it finds in the near cache
+                prefetched += getMulti(prefetch.subList(from, Math.min(prefetch.size(), from + PREFETCH_BATCH))).size();
+            } catch (CachingException ex) {
+                logger.warn("Prefetching " + prefetch.size() + " hot keys stopped after " + prefetched, ex);
+                break;
+            }
+        }
+        logger.info("Restored " + restored + " hot values from " + file + " and prefetched " + prefetched + " of "
+                + prefetch.size() + " hot keys");
+        return restored + prefetched;
+    }
+
+    /**
+     * Run the background refreshes of {@link #get(String, int, double, Callable)} on the given executor,
+     * its queue should be bounded so a slow loader cannot pile up work. The broker does not shut it down.
+     * @param refreshExecutor Executor running the loaders of stale values.
+     */
+    public void setRefreshExecutor(ExecutorService refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Return the number of background refreshes that stored a new value.
+     * @return The number of refreshes.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * Return the number of background refreshes turned down because the refresh executor was full.
+     * @return The number of rejected refreshes.
+     */
+    public long getRefreshRejectedCount() {
+        return refreshesRejected.sum();
+    }
+
+    private void refreshAsync(final String key, final int exp, final double refreshAfter, final Callable<Object> loader,
+                              final long staleAt) {
+        Long previous = refreshed.get(key);
+        if (previous != null && previous >= staleAt) {
+            // this value is being or was already refreshed
+            return;
+        }
+        if (previous == null ? refreshed.putIfAbsent(key, staleAt) != null : !refreshed.replace(key, previous, staleAt)) {
+            return;
+        }
+        if (refreshed.size() > MAX_REFRESHED_KEYS) {
+            pruneRefreshed();
+        }
+        try {
+            refreshExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        logger.debug("GET:Refreshing key:" + key + " in the background");
+                        Object loaded = loader.call();
+                        if (loaded != null) {
+                            set(key, exp, new RefreshEnvelope(loaded, refreshAt(exp, refreshAfter)));
+                            refreshes.increment();
+                        }
+                    } catch (Exception ex) {
+                        logger.error("Background refresh of key:" + key + " failed, keeping the current value", ex);
+                        // let a later caller try again
+                        refreshed.remove(key, staleAt);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            logger.warn("Refresh executor is full, refresh of key:" + key + " skipped");
+            refreshesRejected.increment();
+            refreshed.remove(key, staleAt);
+        }
+    }
+
+    /**
+     * Forget the keys refreshed for values that went stale a while ago, readers of those are long done.
+     */
+    private void pruneRefreshed() {
+        long horizon = System.currentTimeMillis() - REFRESHED_RETENTION_MILLIS;
+        for (Map.Entry<String, Long> entry : refreshed.entrySet()) {
+            if (entry.getValue() < horizon) {
+                refreshed.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private ExecutorService refreshExecutor() {
+        ExecutorService executor = refreshExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (refreshExecutor == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_REFRESH_THREADS, DEFAULT_REFRESH_THREADS,
+                            60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(DEFAULT_REFRESH_QUEUE), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "caching-refresh-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    refreshExecutor = pool;
+                }
+                executor = refreshExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Wall clock time after which a value stored now with the given TTL should be refreshed.
+     */
+    private static long refreshAt(int exp, double refreshAfter) {
+        long ttlNanos = NearCache.expToNanos(exp);
+        if (ttlNanos == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() + (long) (TimeUnit.NANOSECONDS.toMillis(ttlNanos) * refreshAfter);
+    }
+
+    /**
+     * Return the size above which an encoded value is split in chunks.
+     * @return The chunk size in bytes.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Split the encoded values larger than the given size in chunks, see {@link ChunkedValues}.
+     * Lower it to match a memcached started with a smaller item size (-I).
+     * @param chunkSize The chunk size in bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Encode and store a value on the client, in chunks when it is too large for one item.
+     * @return The future of the set, for a chunked value the set of its manifest.
+     */
+    Future<Boolean> store(MemcachedClient client, String key, int exp, Object obj) throws Exception {
+        return ChunkedValues.store(client, key, exp, writeTranscoder(client, key).encode(obj), chunkSize);
+    }
+
+    /**
+     * Replace the manifests found by a bulk get with the values they point to, dropping the torn or failed ones.
+     */
+    private Map<String, Object> resolveChunks(MemcachedClient client, Map<String, Object> values) {
+        Map<String, Object> resolved = values;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof ChunkedValues.Manifest) {
+                if (resolved == values) {
+                    resolved = new HashMap<String, Object>(values);
+                }
+                Object value = null;
+                try {
+                    value = ChunkedValues.resolve(client, entry.getKey(), (ChunkedValues.Manifest) entry.getValue(),
+                            readTranscoder(client));
+                } catch (Exception ex) {
+                    logger.error("Fetching the chunks of key:" + entry.getKey() + " failed, leaving it out", ex);
+                }
+                if (value == null) {
+                    resolved.remove(entry.getKey());
+                } else {
+                    resolved.put(entry.getKey(), value);
+                }
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Replace a manifest read with gets by the value of its chunks, null if they are gone, keeping the CAS
+     * identifier of the manifest.
+     */
+    private CASValue<Object> resolveChunks(MemcachedClient client, String key, CASValue<Object> value) throws Exception {
+        if (value == null || !(value.getValue() instanceof ChunkedValues.Manifest)) {
+            return value;
+        }
+        Object resolved = ChunkedValues.resolve(client, key, (ChunkedValues.Manifest) value.getValue(), readTranscoder(client));
+        return new CASValue<Object>(value.getCas(), resolved);
+    }
+
+    Transcoder<Object> chunkedReadTranscoder(MemcachedClient client) {
+        Transcoder<Object> transcoder = readTranscoder(client);
+        ChunkedValues.ReadTranscoder chunked = chunkedRead;
+        if (chunked == null || chunked.delegate != transcoder) {
+            chunked = new ChunkedValues.ReadTranscoder(transcoder);
+            chunkedRead = chunked;
+        }
+        return chunked;
+    }
+
+    Transcoder<Object> writeTranscoder(MemcachedClient client, String key) {
+        CodecRegistry registry = codecs;
+        return registry == null ? client.getTranscoder() : registry.transcoderFor(key);
+    }
+
+    Transcoder<Object> readTranscoder(MemcachedClient client) {
+        CodecRegistry registry = codecs;
+        return registry == null ? client.getTranscoder() : registry;
+    }
+
+    /**
+     * @return The operation timeout in milliseconds of a pooled client, the spymemcached default for any other.
+     */
+    static long operationTimeout(MemcachedClient client) {
+        return client instanceof PooledMemcachedClient ? ((PooledMemcachedClient) client).getOperationTimeout()
+                : DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT;
+    }
+
+    /**
+     * Pick the pool for a key, for a cluster that is the pool of the node owning the key.
+     */
+    ICachingPool poolFor(String key) {
+        if (deligatePool instanceof IRoutingCachingPool) {
+            return ((IRoutingCachingPool) deligatePool).route(key);
+        }
+        return deligatePool;
+    }
+
+    private Map<ICachingPool, Collection<String>> groupByPool(Collection<String> keys) {
+        Map<ICachingPool, Collection<String>> groups = new LinkedHashMap<ICachingPool, Collection<String>>();
+        if (!(deligatePool instanceof IRoutingCachingPool)) {
+            groups.put(deligatePool, keys);
+            return groups;
+        }
+        for (String key : keys) {
+            ICachingPool pool = poolFor(key);
+            Collection<String> group = groups.get(pool);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(pool, group);
+            }
+            group.add(key);
+        }
+        return groups;
+    }
+
+    /**
+     * Count a failed operation, failures to borrow are already counted by the pool.
+     */
+    private static void recordError(ICachingPool pool, MemcachedClient client) {
+        if (client != null) {
+            pool.getMetrics().recordError();
+        }
+    }
+
+    void reportSuccess(ICachingPool pool) {
+        if (deligatePool instanceof IRoutingCachingPool) {
+            ((IRoutingCachingPool) deligatePool).reportSuccess(pool);
+        }
+    }
+
+    void reportFailure(ICachingPool pool) {
+        if (deligatePool instanceof IRoutingCachingPool) {
+            ((IRoutingCachingPool) deligatePool).reportFailure(pool);
+        }
+    }
+
+    /**
+     * Sleep a random time up to an exponentially growing, capped bound so racing writers spread out.
+     */
+    private static void backoff(int attempt) throws InterruptedException {
+        long bound = Math.min(MAX_CAS_BACKOFF_MICROS, 100L << Math.min(attempt, 10));
+        TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextLong(bound / 2, bound + 1));
+    }
+
+    /**
+     * Write out a set or delete queued behind for the key, so an operation going straight to memcached neither
+     * reads around it nor gets overwritten by it later.
+     */
+    private void flushQueued(String key) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            queue.flush(key);
+        }
+    }
+
+    /**
+     * The write going to the owner only, drop the copies so a hedged get does not serve an older value.
+     */
+    private void dropCopies(String key) {
+        Replication replicated = replication;
+        if (replicated != null) {
+            replicated.drop(key);
+        }
+    }
+
+    private void invalidateHot(String key) {
+        HotKeyDetector hot = hotKeys;
+        if (hot != null) {
+            hot.getHotCache().invalidate(key);
+        }
+    }
+
+    void invalidateNear(String key) {
+        NearCache near = nearCache;
+        if (near != null) {
+            near.invalidate(key);
+        }
+    }
 }
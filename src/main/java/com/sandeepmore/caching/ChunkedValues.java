@@ -0,0 +1,241 @@
+package com.sandeepmore.caching;
+
+import com.sandeepmore.caching.codec.RawTranscoder;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Stores values larger than a memcached item as chunks.
+ * <p/>
+ * The encoded value is cut into chunks stored under {@code key#version:index}, then a small manifest holding the
+ * version, the chunk count, the length and a CRC32 of the whole value is stored under the key itself. Chunks are
+ * written before the manifest, and a rewrite uses a new version so it never touches the chunks a reader of the
+ * previous manifest is fetching. A reader fetches all the chunks in one bulk request and treats a missing chunk
+ * or a CRC mismatch, from an eviction or an interrupted write, as a miss.
+ * <p/>
+ * Chunks are read and written on the client of the key, so on a cluster they live on the node owning the key.
+ * Chunks of an overwritten value are left to expire with the TTL they were written with. Every read path of
+ * {@link CachingBroker} resolves manifests, {@link AsyncCachingBroker} fails the read of a chunked value rather
+ * than blocking its poller on the chunks.
+ *
+ * @author Sandeep More
+ */
+final class ChunkedValues {
+
+    private static final Log logger = LogFactory.getLog(ChunkedValues.class);
+
+    /**
+     * Manifests use the last codec id reserved for the built-ins, no other value is stored with these flags.
+     */
+    static final int MANIFEST_FLAGS = 15 << 16;
+    private static final int MAGIC = 0x50344D43; // "P4MC"
+    private static final int MANIFEST_SIZE = 28;
+
+    /**
+     * Passes values that were encoded beforehand through to the client.
+     */
+    static final Transcoder<CachedData> ENCODED = new Transcoder<CachedData>() {
+        public boolean asyncDecode(CachedData d) {
+            return false;
+        }
+
+        public CachedData encode(CachedData o) {
+            return o;
+        }
+
+        public CachedData decode(CachedData d) {
+            return d;
+        }
+
+        public int getMaxSize() {
+            return Integer.MAX_VALUE;
+        }
+    };
+
+    /**
+     * Reads values as the bytes they were stored with and manifests as {@link Manifest}s.
+     */
+    static final ReadTranscoder RAW_READ = new ReadTranscoder(new Transcoder<Object>() {
+        public boolean asyncDecode(CachedData d) {
+            return false;
+        }
+
+        public CachedData encode(Object o) {
+            throw new UnsupportedOperationException("Read only transcoder");
+        }
+
+        public Object decode(CachedData d) {
+            return d.getData();
+        }
+
+        public int getMaxSize() {
+            return CachedData.MAX_SIZE;
+        }
+    });
+
+    private ChunkedValues() {
+    }
+
+    /**
+     * Location and checksum of a chunked value.
+     */
+    static final class Manifest {
+        final long version;
+        final int count;
+        final int length;
+        final int crc;
+        final int flags;
+
+        Manifest(long version, int count, int length, int crc, int flags) {
+            this.version = version;
+            this.count = count;
+            this.length = length;
+            this.crc = crc;
+            this.flags = flags;
+        }
+
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(MANIFEST_SIZE);
+            buffer.putInt(MAGIC).putLong(version).putInt(count).putInt(length).putInt(crc).putInt(flags);
+            return buffer.array();
+        }
+
+        /**
+         * @return The manifest, null if the bytes are not one.
+         */
+        static Manifest decode(byte[] data) {
+            if (data == null || data.length != MANIFEST_SIZE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != MAGIC) {
+                return null;
+            }
+            return new Manifest(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+        }
+    }
+
+    /**
+     * Decodes manifests into {@link Manifest}s, raw values stored with {@link RawTranscoder} into {@code byte[]}
+     * whatever the delegate, and everything else with the given transcoder.
+     */
+    static final class ReadTranscoder implements Transcoder<Object> {
+        final Transcoder<Object> delegate;
+
+        ReadTranscoder(Transcoder<Object> delegate) {
+            this.delegate = delegate;
+        }
+
+        public boolean asyncDecode(CachedData d) {
+            return d.getFlags() != MANIFEST_FLAGS && d.getFlags() != RawTranscoder.FLAGS && delegate.asyncDecode(d);
+        }
+
+        public CachedData encode(Object o) {
+            return delegate.encode(o);
+        }
+
+        public Object decode(CachedData d) {
+            if (d.getFlags() == MANIFEST_FLAGS) {
+                Manifest manifest = Manifest.decode(d.getData());
+                if (manifest != null) {
+                    return manifest;
+                }
+            }
+            if (d.getFlags() == RawTranscoder.FLAGS) {
+                return d.getData();
+            }
+            return delegate.decode(d);
+        }
+
+        public int getMaxSize() {
+            return delegate.getMaxSize();
+        }
+    }
+
+    static String chunkKey(String key, long version, int index) {
+        return key + "#" + Long.toHexString(version) + ":" + index;
+    }
+
+    /**
+     * Store an encoded value, in chunks if it is larger than {@code chunkSize}.
+     *
+     * @return The future of the set of the value, or of its manifest once every chunk is stored.
+     * @throws CachingException if a chunk could not be stored, the previous value is then left in place.
+     */
+    static Future<Boolean> store(MemcachedClient client, String key, int exp, CachedData data, int chunkSize)
+            throws Exception {
+        byte[] bytes = data.getData();
+        if (bytes.length <= chunkSize) {
+            return client.set(key, exp, data, ENCODED);
+        }
+        long version = ThreadLocalRandom.current().nextLong();
+        int count = (bytes.length + chunkSize - 1) / chunkSize;
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] chunk = Arrays.copyOfRange(bytes, i * chunkSize, Math.min(bytes.length, (i + 1) * chunkSize));
+            futures.add(client.set(chunkKey(key, version, i), exp, chunk, RawTranscoder.INSTANCE));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+        for (int i = 0; i < count; i++) {
+            if (!futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                throw new CachingException("Chunk " + i + " of " + count + " for key:" + key + " was not stored");
+            }
+        }
+        Manifest manifest = new Manifest(version, count, bytes.length, (int) crc.getValue(), data.getFlags());
+        logger.debug("SET:Stored key:" + key + " as " + count + " chunks of " + bytes.length + " bytes");
+        return client.set(key, exp, new CachedData(MANIFEST_FLAGS, manifest.encode(), MANIFEST_SIZE), ENCODED);
+    }
+
+    /**
+     * Fetch the chunks of a manifest in one bulk request and decode the value they make up.
+     *
+     * @return The value, null if a chunk is missing or the value does not match the manifest.
+     */
+    static Object resolve(MemcachedClient client, String key, Manifest manifest, Transcoder<Object> transcoder)
+            throws Exception {
+        List<String> keys = new ArrayList<String>(manifest.count);
+        for (int i = 0; i < manifest.count; i++) {
+            keys.add(chunkKey(key, manifest.version, i));
+        }
+        Map<String, byte[]> chunks = client.asyncGetBulk(keys, RawTranscoder.INSTANCE)
+                .get(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (chunks.size() != manifest.count) {
+            logger.warn("Only " + chunks.size() + " of " + manifest.count + " chunks found for key:" + key + ", treating it as a miss");
+            return null;
+        }
+        byte[] bytes = new byte[manifest.length];
+        int offset = 0;
+        for (String chunkKey : keys) {
+            byte[] chunk = chunks.get(chunkKey);
+            if (offset + chunk.length > bytes.length) {
+                logger.warn("Chunks of key:" + key + " are larger than its manifest, treating it as a miss");
+                return null;
+            }
+            System.arraycopy(chunk, 0, bytes, offset, chunk.length);
+            offset += chunk.length;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if (offset != manifest.length || (int) crc.getValue() != manifest.crc) {
+            logger.warn("Chunks of key:" + key + " do not match its manifest, treating it as a miss");
+            return null;
+        }
+        return transcoder.decode(new CachedData(manifest.flags, bytes, bytes.length));
+    }
+}
@@ -0,0 +1,383 @@
+package com.sandeepmore.caching;
+
+import com.sandeepmore.pool.ICachingPool;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * Aggregates counter deltas of a {@link CachingBroker} in process and applies them to memcached in batches.
+ * <p/>
+ * Each counter gets a {@link LongAdder}, so threads bumping the same counter spread over striped cells instead of
+ * contending. Every {@code flushIntervalMillis}, or as soon as one counter drifted by {@code flushThreshold},
+ * the sums are taken and sent as pipelined increments, one borrowed client per node. A counter missing on
+ * memcached is created by the flush with the delta as its value. A delta being flushed still counts as pending
+ * until memcached has it, so {@link CachingBroker#getCounter(String)} does not miss it meanwhile.
+ * <p/>
+ * Deltas not flushed yet are lost if the process dies, {@link #close()} flushes them and is called by a JVM
+ * shutdown hook on a normal exit.
+ *
+ * @author Sandeep More
+ */
+public class CounterAggregator {
+
+    private static final Log logger = LogFactory.getLog(CounterAggregator.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final CachingBroker broker;
+    private final long flushThreshold;
+    private final int exp;
+    private final ConcurrentHashMap<String, LongAdder> deltas = new ConcurrentHashMap<String, LongAdder>();
+    /**
+     * Adders removed from {@link #deltas} on the previous flush, a thread that looked one up just before its
+     * removal may still add to it, so it is drained once more.
+     */
+    private Map<String, LongAdder> retired = new LinkedHashMap<String, LongAdder>();
+    /**
+     * Deltas taken by the flush in progress and not written yet.
+     */
+    private final ConcurrentHashMap<String, Long> inFlight = new ConcurrentHashMap<String, Long>();
+    private static final BiFunction<Long, Long, Long> SUM_OR_REMOVE = (a, b) -> a + b == 0 ? null : a + b;
+    /**
+     * Incremented when a flush starts and again when it ends, odd while a flush is writing.
+     */
+    private final AtomicLong flushSequence = new AtomicLong();
+    /**
+     * True while the flush in progress moves the deltas to {@link #inFlight}, the keys it writes are known after.
+     */
+    private volatile boolean taking = false;
+    /**
+     * Runs one flush at a time. Not a monitor, a flush holds it across network writes.
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+    /**
+     * Signalled when the takes are done and after each group of counters is written.
+     */
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progress = progressLock.newCondition();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedDeltas = new LongAdder();
+    private final LongAdder failedDeltas = new LongAdder();
+
+    /**
+     * @param broker              The broker whose pool is used for the flushes.
+     * @param flushIntervalMillis Time between two flushes.
+     * @param flushThreshold      Absolute delta of one counter that triggers a flush before the interval.
+     * @param exp                 Time To Live value in seconds of the counters created by a flush.
+     */
+    CounterAggregator(CachingBroker broker, long flushIntervalMillis, long flushThreshold, int exp) {
+        if (flushIntervalMillis < 1 || flushThreshold < 1) {
+            throw new IllegalArgumentException("flushIntervalMillis and flushThreshold must be positive");
+        }
+        this.broker = broker;
+        this.flushThreshold = flushThreshold;
+        this.exp = exp;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "caching-counter-flush-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        this.shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Add a delta to a counter, it reaches memcached on the next flush.
+     *
+     * @param key   The key of the counter.
+     * @param delta Amount to add, negative to subtract.
+     * @throws IllegalStateException if the aggregator is closed.
+     */
+    public void add(String key, long delta) {
+        if (closed) {
+            throw new IllegalStateException("Counter aggregator is closed");
+        }
+        LongAdder adder = deltas.get(key);
+        if (adder == null) {
+            adder = deltas.computeIfAbsent(key, k -> new LongAdder());
+        }
+        adder.add(delta);
+        // sum() walks the cells, only pay for it on large deltas or every 64th bump of a busy counter
+        if ((Math.abs(delta) >= flushThreshold || ThreadLocalRandom.current().nextInt(64) == 0)
+                && Math.abs(adder.sum()) >= flushThreshold && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Add one to a counter.
+     *
+     * @param key The key of the counter.
+     */
+    public void increment(String key) {
+        add(key, 1);
+    }
+
+    /**
+     * @param key The key of the counter.
+     * @return The delta of the counter not flushed yet.
+     */
+    public long getPending(String key) {
+        LongAdder adder = deltas.get(key);
+        Long flushing = inFlight.get(key);
+        return (adder == null ? 0 : adder.sum()) + (flushing == null ? 0 : flushing);
+    }
+
+    /**
+     * Stop taking deltas and flush the pending ones, blocks until they are written.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // twice, so the adders retired by the first one are drained as well
+        flush();
+        flush();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, this is the hook running
+        }
+        logger.info("Counter aggregator closed, " + flushedDeltas.sum() + " deltas flushed, " + failedDeltas.sum() + " failed");
+    }
+
+    /**
+     * @return The number of flushes done.
+     */
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return The number of non zero counter deltas written to memcached.
+     */
+    public long getFlushedCount() {
+        return flushedDeltas.sum();
+    }
+
+    /**
+     * @return The number of counter deltas that could not be written, their counts are lost.
+     */
+    public long getFailedCount() {
+        return failedDeltas.sum();
+    }
+
+    /**
+     * A reader that got the same sequence from {@link #awaitReadable(String)} before and from here after reading
+     * memcached and the pending delta saw no delta of its counter move from one to the other.
+     */
+    long getFlushSequence() {
+        return flushSequence.get();
+    }
+
+    /**
+     * Wait until the pending delta of a counter is not being taken or written by the flush in progress. Readers
+     * of the other counters do not wait, and a reader waits for the group of its counter, not the whole flush.
+     *
+     * @return The flush sequence to compare with {@link #getFlushSequence()} once memcached and the pending
+     * delta are read.
+     */
+    long awaitReadable(String key) {
+        long sequence = flushSequence.get();
+        if ((sequence & 1) == 0 || !(taking || inFlight.containsKey(key))) {
+            return sequence;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT * 2);
+        progressLock.lock();
+        try {
+            while (((sequence = flushSequence.get()) & 1) != 0 && (taking || inFlight.containsKey(key)) && remaining > 0) {
+                remaining = progress.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            progressLock.unlock();
+        }
+        return sequence;
+    }
+
+    /**
+     * Take the sum of every counter and write the non zero ones.
+     */
+    void flush() {
+        flushLock.lock();
+        try {
+            // set before the sequence turns odd, so a reader seeing it odd also sees the takes
+            taking = true;
+            flushSequence.incrementAndGet();
+            try {
+                flushDeltas();
+            } finally {
+                taking = false;
+                flushSequence.incrementAndGet();
+                signalProgress();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void signalProgress() {
+        progressLock.lock();
+        try {
+            progress.signalAll();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    private void flushDeltas() {
+        flushRequested.set(false);
+        Map<String, Long> sums = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : retired.entrySet()) {
+            long sum = take(entry.getKey(), entry.getValue());
+            if (sum != 0) {
+                sums.put(entry.getKey(), sum);
+            }
+        }
+        Map<String, LongAdder> retiring = new LinkedHashMap<String, LongAdder>();
+        for (Map.Entry<String, LongAdder> entry : deltas.entrySet()) {
+            long sum = take(entry.getKey(), entry.getValue());
+            if (sum != 0) {
+                Long previous = sums.get(entry.getKey());
+                sums.put(entry.getKey(), previous == null ? sum : previous + sum);
+            } else if (deltas.remove(entry.getKey(), entry.getValue())) {
+                // idle counter, forget it but drain it once more in case of a late add
+                retiring.put(entry.getKey(), entry.getValue());
+            }
+        }
+        retired = retiring;
+        taking = false;
+        signalProgress();
+        if (sums.isEmpty()) {
+            return;
+        }
+        flushes.increment();
+        Map<ICachingPool, List<String>> groups = new LinkedHashMap<ICachingPool, List<String>>();
+        for (String key : sums.keySet()) {
+            ICachingPool pool = broker.poolFor(key);
+            List<String> group = groups.get(pool);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(pool, group);
+            }
+            group.add(key);
+        }
+        for (Map.Entry<ICachingPool, List<String>> group : groups.entrySet()) {
+            flushGroup(group.getKey(), group.getValue(), sums);
+            // written or lost, either way no longer pending
+            for (String key : group.getValue()) {
+                inFlight.merge(key, -sums.get(key), SUM_OR_REMOVE);
+            }
+            signalProgress();
+        }
+    }
+
+    /**
+     * Move the sum of an adder to the in-flight deltas. Subtracting the sum rather than resetting the adder
+     * keeps the adds that race with it.
+     */
+    private long take(String key, LongAdder adder) {
+        long sum = adder.sum();
+        if (sum != 0) {
+            inFlight.merge(key, sum, SUM_OR_REMOVE);
+            adder.add(-sum);
+        }
+        return sum;
+    }
+
+    private void flushGroup(ICachingPool pool, List<String> keys, Map<String, Long> sums) {
+        MemcachedClient client = null;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("COUNTERS:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            long start = System.nanoTime();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>(keys.size());
+            for (String key : keys) {
+                long sum = sums.get(key);
+                futures.add(sum > 0 ? client.asyncIncr(key, sum) : client.asyncDecr(key, -sum));
+            }
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                long sum = sums.get(key);
+                try {
+                    long value = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (value == -1) {
+                        // not on memcached yet, create it (a concurrent creation is incremented instead)
+                        if (sum > 0) {
+                            client.incr(key, sum, sum, exp);
+                        } else {
+                            client.decr(key, -sum, 0, exp);
+                        }
+                    }
+                    flushedDeltas.increment();
+                } catch (Exception ex) {
+                    logger.error("Flushing counter key:" + key + " delta " + sum + " failed", ex);
+                    failedDeltas.increment();
+                }
+            }
+            pool.getMetrics().recordSet(System.nanoTime() - start);
+            broker.reportSuccess(pool);
+        } catch (Exception ex) {
+            logger.error("Flushing " + keys.size() + " counters on " + pool.getServer() + " failed", ex);
+            failedDeltas.add(keys.size());
+            if (client != null) {
+                pool.getMetrics().recordError();
+            }
+            broker.reportFailure(pool);
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("COUNTERS:Returned object to the pool");
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.sandeepmore.caching;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds the keys read most often through a {@link CachingBroker} and keeps a short lived local copy of them,
+ * so a handful of very hot keys stop hammering the one memcached node that owns them.
+ * <p/>
+ * One read in {@code sampleRate} is counted in a count-min sketch of fixed size, each row hashing the
+ * characters of the key with its own seed, so two keys with the same {@link String#hashCode()} only share the
+ * counters they happen to hit in a row. A shared daemon thread halves the counters every second so a count
+ * follows the recent rate of a key, a read never pays for the halving. A key read r times per second counts r just after
+ * a halving and 2r just before the next one, the rate is the count divided by how far into the second it is.
+ * Keys whose rate reaches {@code threshold} are hot, the hottest {@code topK} of them are tracked for
+ * reporting. Recording a sample only touches preallocated arrays, it never allocates.
+ * <p/>
+ * A count-min sketch only overestimates, a cold key sharing all its counters with hot ones may be taken for
+ * hot and get cached locally for the short TTL as well.
+ * <p/>
+ * Call {@link #close()} once the detector is no longer used, a detector left unreachable stops its halving on
+ * its own after the next run.
+ *
+ * @author Sandeep More
+ */
+public class HotKeyDetector {
+
+    private static final Log logger = LogFactory.getLog(HotKeyDetector.class);
+
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private static final long DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Shared by all the detectors, a run halves one sketch and never blocks.
+     */
+    private static final ScheduledExecutorService DECAYER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "caching-hot-key-decay");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Halves the counters of a detector every second, it only holds the detector weakly so an unreachable
+     * detector is not kept alive by its own schedule.
+     */
+    private static final class Decay implements Runnable {
+        private final WeakReference<HotKeyDetector> detector;
+        volatile ScheduledFuture<?> future;
+
+        Decay(HotKeyDetector detector) {
+            this.detector = new WeakReference<HotKeyDetector>(detector);
+        }
+
+        public void run() {
+            HotKeyDetector hot = detector.get();
+            if (hot == null) {
+                future.cancel(false);
+                return;
+            }
+            hot.decay();
+        }
+    }
+
+    private final int sampleRate;
+    private final long threshold;
+    private final int widthMask;
+    private final AtomicLongArray counters;
+    private volatile long lastDecay;
+    private final ScheduledFuture<?> decay;
+
+    private final String[] topKeys;
+    private final long[] topCounts;
+    /**
+     * Guards the top list, a lock rather than a monitor so a virtual thread reading a hot key never pins its carrier.
+     */
+    private final ReentrantLock topLock = new ReentrantLock();
+    private volatile long topFloor = 0;
+
+    private final NearCache hotCache;
+
+    /**
+     * @param sampleRate   Count one read in this many, 1 counts them all.
+     * @param threshold    Reads per second from which a key is hot.
+     * @param topK         Number of hot keys tracked for {@link #getHotKeys()}.
+     * @param width        Counters per row of the sketch, rounded up to a power of two.
+     * @param hotEntries   Maximum number of hot keys held locally.
+     * @param hotTtlMillis Time in milliseconds a hot key is served locally before it is read again.
+     */
+    public HotKeyDetector(int sampleRate, long threshold, int topK, int width, int hotEntries, long hotTtlMillis) {
+        if (sampleRate < 1 || threshold < 1 || topK < 1 || width < 1) {
+            throw new IllegalArgumentException("sampleRate, threshold, topK and width must be positive");
+        }
+        int w = 1;
+        while (w < width) {
+            w <<= 1;
+        }
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.widthMask = w - 1;
+        this.counters = new AtomicLongArray(DEPTH * w);
+        this.lastDecay = System.nanoTime();
+        this.topKeys = new String[topK];
+        this.topCounts = new long[topK];
+        this.hotCache = new NearCache(hotEntries, hotTtlMillis);
+        Decay task = new Decay(this);
+        // the task only reads its future once the detector is gone, long after the constructor returned
+        task.future = DECAYER.scheduleAtFixedRate(task, DECAY_NANOS, DECAY_NANOS, TimeUnit.NANOSECONDS);
+        this.decay = task.future;
+    }
+
+    /**
+     * Count a read of the key, sampled.
+     *
+     * @param key Key read through the broker.
+     */
+    public void record(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.addAndGet(index(row, key), sampleRate));
+        }
+        // every 16th sample of a hot key refreshes the top list, so hot keys do not queue on its lock
+        if (((min / sampleRate) & 15) == 0) {
+            long rate = rate(min, now);
+            if (rate >= threshold && rate > topFloor) {
+                offerTop(key, rate);
+            }
+        }
+    }
+
+    /**
+     * @param key A key.
+     * @return The approximate number of reads per second of the key over the last seconds.
+     */
+    public long estimate(String key) {
+        return rate(count(key), System.nanoTime());
+    }
+
+    private long count(String key) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.get(index(row, key)));
+        }
+        return min;
+    }
+
+    /**
+     * Reads per second from a count: the halvings the decay thread is late on are applied, then the count is
+     * divided by 1 + the fraction of the current second already counted.
+     */
+    private long rate(long count, long now) {
+        long elapsed = Math.max(0, now - lastDecay);
+        long periods = elapsed / DECAY_NANOS;
+        if (periods > 0) {
+            count = periods < Long.SIZE ? count >> periods : 0;
+            elapsed -= periods * DECAY_NANOS;
+        }
+        return count * DECAY_NANOS / (DECAY_NANOS + elapsed);
+    }
+
+    /**
+     * @param key A key.
+     * @return true if the key is read at least {@code threshold} times per second.
+     */
+    public boolean isHot(String key) {
+        return estimate(key) >= threshold;
+    }
+
+    /**
+     * Return the hottest keys with their approximate reads per second, hottest first.
+     *
+     * @return The hot keys, empty if there are none.
+     */
+    public Map<String, Long> getHotKeys() {
+        topLock.lock();
+        try {
+            return sortedTop();
+        } finally {
+            topLock.unlock();
+        }
+    }
+
+    private Map<String, Long> sortedTop() {
+        Map<String, Long> hot = new LinkedHashMap<String, Long>();
+        boolean[] taken = new boolean[topKeys.length];
+        for (int n = 0; n < topKeys.length; n++) {
+            int best = -1;
+            for (int i = 0; i < topKeys.length; i++) {
+                if (!taken[i] && topKeys[i] != null && (best < 0 || topCounts[i] > topCounts[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            taken[best] = true;
+            hot.put(topKeys[best], topCounts[best]);
+        }
+        return hot;
+    }
+
+    /**
+     * @return The local copies of the hot keys.
+     */
+    public NearCache getHotCache() {
+        return hotCache;
+    }
+
+    /**
+     * Stop halving the counters. The detector still answers but its counts no longer decay, detach it from the
+     * broker first.
+     */
+    public void close() {
+        decay.cancel(false);
+    }
+
+    private int index(int row, String key) {
+        return row * (widthMask + 1) + (hash(key, SEEDS[row]) & widthMask);
+    }
+
+    /**
+     * MurmurHash3 (x86, 32 bit) of the characters of the key, two characters per block, so it reads the key
+     * in place without encoding it.
+     */
+    private static int hash(String key, int seed) {
+        int h = seed;
+        int length = key.length();
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            h ^= mixBlock(key.charAt(i) | (key.charAt(i + 1) << 16));
+            h = Integer.rotateLeft(h, 13);
+            h = h * 5 + 0xE6546B64;
+        }
+        if (i < length) {
+            h ^= mixBlock(key.charAt(i));
+        }
+        h ^= length * 2;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int mixBlock(int k) {
+        k *= 0xCC9E2D51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1B873593;
+    }
+
+    /**
+     * Halve every counter so the counts follow the recent rate, keys that cooled down leave the top list.
+     * Right after the halving a count is the rate of its key. Runs on the decay thread.
+     */
+    private void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            long count = counters.get(i);
+            if (count != 0) {
+                // a concurrent increment may be lost, the sketch is approximate anyway
+                counters.set(i, count >> 1);
+            }
+        }
+        lastDecay = System.nanoTime();
+        topLock.lock();
+        try {
+            long floor = Long.MAX_VALUE;
+            for (int i = 0; i < topKeys.length; i++) {
+                if (topKeys[i] == null) {
+                    floor = 0;
+                    continue;
+                }
+                topCounts[i] = count(topKeys[i]);
+                if (topCounts[i] < threshold) {
+                    logger.debug("Key " + topKeys[i] + " is no longer hot");
+                    topKeys[i] = null;
+                    topCounts[i] = 0;
+                    floor = 0;
+                } else {
+                    floor = Math.min(floor, topCounts[i]);
+                }
+            }
+            topFloor = floor;
+        } finally {
+            topLock.unlock();
+        }
+    }
+
+    private void offerTop(String key, long count) {
+        // another reader is already updating the list, this sample is not needed
+        if (!topLock.tryLock()) {
+            return;
+        }
+        try {
+            updateTop(key, count);
+        } finally {
+            topLock.unlock();
+        }
+    }
+
+    private void updateTop(String key, long count) {
+        int free = -1;
+        int min = -1;
+        for (int i = 0; i < topKeys.length; i++) {
+            if (topKeys[i] == null) {
+                free = free < 0 ? i : free;
+            } else if (topKeys[i].equals(key)) {
+                topCounts[i] = count;
+                return;
+            } else if (min < 0 || topCounts[i] < topCounts[min]) {
+                min = i;
+            }
+        }
+        int slot = free >= 0 ? free : (count > topCounts[min] ? min : -1);
+        if (slot < 0) {
+            return;
+        }
+        logger.debug("Key " + key + " is hot, about " + count + " reads per second");
+        topKeys[slot] = key;
+        topCounts[slot] = count;
+        long floor = Long.MAX_VALUE;
+        for (int i = 0; i < topKeys.length; i++) {
+            floor = topKeys[i] == null ? 0 : Math.min(floor, topCounts[i]);
+            if (floor == 0) {
+                break;
+            }
+        }
+        topFloor = floor;
+    }
+}
@@ -0,0 +1,409 @@
+package com.sandeepmore.caching;
+
+import com.sandeepmore.caching.codec.CodecRegistry;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Periodically records the hot set of a {@link CachingBroker}, the keys its {@link HotKeyDetector} reports and
+ * the ones its {@link NearCache} hit more than once, to a memory-mapped file. A restarted process reads it back
+ * with {@link CachingBroker#restoreHotSet(File)} instead of refilling its near cache one miss at a time.
+ * <p/>
+ * The file starts with a header holding a magic number, the format version, the time it was written, the number
+ * of records and a CRC of the header. Each record is its length, a CRC of its body and the body: the key, the
+ * wall clock time its near cache entry expires and, when values are recorded, the value encoded with the
+ * broker's codecs. Records are written to a temporary file that replaces the snapshot once it is complete, and
+ * a reader stops at the first truncated or corrupted record, keeping the ones before it.
+ * <p/>
+ * A snapshot is written on {@link #close()} as well, which a JVM shutdown hook calls on a normal exit.
+ * <p/>
+ * When values are recorded the snapshot holds cached data on disk, readable by anyone who can read the file.
+ * The file is created readable and writable by its owner only, keep it on a local disk of the host.
+ *
+ * @author Sandeep More
+ */
+public class HotSetSnapshot {
+
+    private static final Log logger = LogFactory.getLog(HotSetSnapshot.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    static final int MAGIC = 0x48534E50;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    /**
+     * Values encoding to more bytes than this are recorded without their value and prefetched on restore.
+     */
+    static final int MAX_VALUE_BYTES = 64 * 1024;
+    private static final SerializingTranscoder SERIALIZING = new SerializingTranscoder();
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final CachingBroker broker;
+    private final File file;
+    private final int maxKeys;
+    private final boolean withValues;
+    private final ScheduledExecutorService writer;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+    private volatile int lastRecordCount = 0;
+
+    /**
+     * @param broker         The broker whose hot set is recorded.
+     * @param file           The snapshot file.
+     * @param intervalMillis Time between two snapshots.
+     * @param maxKeys        Maximum number of keys recorded.
+     * @param withValues     Record the values held by the near cache, or the keys only. Values are then
+     *                       written to disk as they are cached.
+     */
+    HotSetSnapshot(CachingBroker broker, File file, long intervalMillis, int maxKeys, boolean withValues) {
+        if (intervalMillis < 1 || maxKeys < 1) {
+            throw new IllegalArgumentException("intervalMillis and maxKeys must be positive");
+        }
+        this.broker = broker;
+        this.file = file;
+        this.maxKeys = maxKeys;
+        this.withValues = withValues;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "caching-snapshot-" + THREAD_COUNT.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.writer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        this.shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Record the current hot set, replacing the previous snapshot.
+     *
+     * @return The number of keys recorded, -1 if the snapshot could not be written.
+     */
+    public synchronized int write() {
+        List<Record> records = collect();
+        CodecRegistry registry = broker.getCodecs();
+        List<byte[]> bodies = new ArrayList<byte[]>(records.size());
+        long size = HEADER_SIZE;
+        for (Record record : records) {
+            byte[] body = encode(record, registry);
+            bodies.add(body);
+            size += 8 + body.length;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            createOwnerOnly(tmp);
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(size);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.position(HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                for (byte[] body : bodies) {
+                    crc.reset();
+                    crc.update(body, 0, body.length);
+                    buffer.putInt(body.length);
+                    buffer.putInt((int) crc.getValue());
+                    buffer.put(body);
+                }
+                // the header goes last, a file cut short before it fails the header check
+                buffer.position(0);
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+                buffer.putLong(System.currentTimeMillis());
+                buffer.putInt(bodies.size());
+                buffer.putInt(headerCrc(buffer));
+                buffer.force();
+            } finally {
+                raf.close();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            writes.increment();
+            lastRecordCount = bodies.size();
+            logger.debug("Recorded " + bodies.size() + " hot keys to " + file);
+            return bodies.size();
+        } catch (IOException ex) {
+            logger.error("Hot set snapshot to " + file + " failed", ex);
+            failedWrites.increment();
+            return -1;
+        }
+    }
+
+    /**
+     * Create an empty file only its owner can read and write, the rename keeps the permissions.
+     */
+    private static void createOwnerOnly(File tmp) throws IOException {
+        // a file left by a crash may have been created with other permissions
+        Files.deleteIfExists(tmp.toPath());
+        if (tmp.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createFile(tmp.toPath());
+            if (!(tmp.setReadable(false, false) && tmp.setReadable(true, true)
+                    && tmp.setWritable(false, false) && tmp.setWritable(true, true))) {
+                logger.warn("Could not restrict the permissions of " + tmp + " to its owner");
+            }
+        }
+    }
+
+    /**
+     * Stop the periodic snapshots after a last one.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        write();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // already shutting down, close was called by the hook
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    public long getFailedWriteCount() {
+        return failedWrites.sum();
+    }
+
+    /**
+     * @return The number of keys in the last snapshot written.
+     */
+    public int getLastRecordCount() {
+        return lastRecordCount;
+    }
+
+    /**
+     * The hot keys of the detector first, then the frequently used near cache entries.
+     */
+    private List<Record> collect() {
+        Map<String, Record> records = new LinkedHashMap<String, Record>();
+        NearCache near = broker.getNearCache();
+        List<Record> frequent = near == null ? new ArrayList<Record>() : near.frequent(maxKeys);
+        Map<String, Record> held = new LinkedHashMap<String, Record>();
+        for (Record record : frequent) {
+            held.put(record.key, record);
+        }
+        HotKeyDetector detector = broker.getHotKeyDetector();
+        if (detector != null) {
+            for (String key : detector.getHotKeys().keySet()) {
+                Record record = held.get(key);
+                records.put(key, record == null ? new Record(key, null, 0) : record);
+            }
+        }
+        for (Record record : frequent) {
+            if (records.size() >= maxKeys) {
+                break;
+            }
+            if (!records.containsKey(record.key)) {
+                records.put(record.key, record);
+            }
+        }
+        return new ArrayList<Record>(records.values()).subList(0, Math.min(maxKeys, records.size()));
+    }
+
+    private byte[] encode(Record record, CodecRegistry registry) {
+        byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+        CachedData data = null;
+        if (withValues && record.value != null) {
+            try {
+                Transcoder<Object> transcoder = registry == null ? SERIALIZING : registry.transcoderFor(record.key);
+                data = transcoder.encode(record.value);
+                if (data.getData().length > MAX_VALUE_BYTES) {
+                    data = null;
+                }
+            } catch (RuntimeException ex) {
+                logger.debug("Value of key " + record.key + " could not be encoded, recording the key only", ex);
+                data = null;
+            }
+        }
+        ByteBuffer body = ByteBuffer.allocate(2 + key.length + 8 + 4 + 4 + (data == null ? 0 : data.getData().length));
+        body.putShort((short) key.length);
+        body.put(key);
+        body.putLong(data == null ? 0 : record.expiresAtMillis);
+        body.putInt(data == null ? 0 : data.getFlags());
+        body.putInt(data == null ? -1 : data.getData().length);
+        if (data != null) {
+            body.put(data.getData());
+        }
+        return body.array();
+    }
+
+    /**
+     * Read a snapshot, the records before the first damaged one if it was only partly written.
+     *
+     * @param file     The snapshot file.
+     * @param registry Codecs the values were recorded with, null for the serializing transcoder.
+     * @return The records, empty if the file is missing, of another version or its header is damaged.
+     */
+    static List<Record> read(File file, CodecRegistry registry) {
+        List<Record> records = new ArrayList<Record>();
+        if (!file.isFile()) {
+            logger.info("No hot set snapshot at " + file);
+            return records;
+        }
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    logger.warn("Hot set snapshot " + file + " is too short for its header, ignoring it");
+                    return records;
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                int magic = buffer.getInt();
+                int version = buffer.getInt();
+                long writtenAt = buffer.getLong();
+                int count = buffer.getInt();
+                if (magic != MAGIC || buffer.getInt() != headerCrc(buffer)) {
+                    logger.warn("Hot set snapshot " + file + " has a damaged header, ignoring it");
+                    return records;
+                }
+                if (version != VERSION) {
+                    logger.warn("Hot set snapshot " + file + " is of version " + version + ", expected " + VERSION + ", ignoring it");
+                    return records;
+                }
+                Transcoder<Object> transcoder = registry == null ? SERIALIZING : registry;
+                CRC32 crc = new CRC32();
+                byte[] body = new byte[0];
+                while (records.size() < count) {
+                    if (buffer.remaining() < 8) {
+                        break;
+                    }
+                    int length = buffer.getInt();
+                    int expected = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    if (body.length < length) {
+                        body = new byte[length];
+                    }
+                    buffer.get(body, 0, length);
+                    crc.reset();
+                    crc.update(body, 0, length);
+                    if ((int) crc.getValue() != expected) {
+                        break;
+                    }
+                    records.add(decode(ByteBuffer.wrap(body, 0, length), transcoder));
+                }
+                if (records.size() < count) {
+                    logger.warn("Hot set snapshot " + file + " is damaged after " + records.size() + " of its " + count +
+                            " records, keeping those");
+                }
+                logger.info("Read " + records.size() + " hot keys from " + file + " written " +
+                        (System.currentTimeMillis() - writtenAt) / 1000 + "s ago");
+                return records;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            logger.error("Reading the hot set snapshot " + file + " failed, keeping " + records.size() + " records", ex);
+            return records;
+        } catch (BufferUnderflowException ex) {
+            logger.warn("Hot set snapshot " + file + " has a damaged record, keeping " + records.size() + " records");
+            return records;
+        }
+    }
+
+    private static Record decode(ByteBuffer body, Transcoder<Object> transcoder) {
+        byte[] key = new byte[body.getShort() & 0xFFFF];
+        body.get(key);
+        long expiresAtMillis = body.getLong();
+        int flags = body.getInt();
+        int length = body.getInt();
+        Object value = null;
+        if (length >= 0) {
+            byte[] data = new byte[length];
+            body.get(data);
+            try {
+                value = transcoder.decode(new CachedData(flags, data, CachedData.MAX_SIZE));
+            } catch (RuntimeException ex) {
+                // the codecs changed since, fetch the value again
+                logger.debug("Value of key " + new String(key, StandardCharsets.UTF_8) + " could not be decoded", ex);
+            }
+        }
+        return new Record(new String(key, StandardCharsets.UTF_8), value, expiresAtMillis);
+    }
+
+    private static int headerCrc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < HEADER_SIZE - 4; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A recorded key with its value and the wall clock time the value stops being served locally, the value is
+     * null when only the key was recorded.
+     */
+    static final class Record {
+        final String key;
+        final Object value;
+        final long expiresAtMillis;
+
+        Record(String key, Object value, long expiresAtMillis) {
+            this.key = key;
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
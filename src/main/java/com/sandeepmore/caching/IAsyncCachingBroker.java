@@ -0,0 +1,48 @@
+package com.sandeepmore.caching;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * IAsyncCachingBroker is the non blocking counterpart of {@link ICachingBroker}.
+ * Every call queues the operation and returns straight away, the pooled client is handed back
+ * as soon as the operation is queued and the result is delivered through the returned future.
+ * Failures complete the future exceptionally with a {@link CachingException}.
+ *
+ * @author Sandeep More
+ */
+public interface IAsyncCachingBroker {
+
+    /**
+     * Set an object in the cache
+     * regardless of any existing value. New value overwrites the old value
+     *
+     * @param key key used to lookup
+     * @param exp Time to live in seconds
+     * @param obj Object associated with the key
+     * @return future holding true if the value was stored
+     */
+    public CompletableFuture<Boolean> setAsync(String key, int exp, Object obj);
+
+    /**
+     * Get with a single key.
+     *
+     * @param key key used to lookup
+     * @return future holding the value (null if there is none)
+     */
+    public CompletableFuture<Object> getAsync(String key);
+
+    /**
+     * Delete the given key from the cache.
+     *
+     * @param key key used to lookup
+     * @return future holding true if the key was deleted
+     */
+    public CompletableFuture<Boolean> deleteAsync(String key);
+
+    /**
+     * Return the server string associated with this Caching Broker.
+     *
+     * @return The string used to initialize the memcache server.
+     */
+    public String getServer();
+}
@@ -1,5 +1,14 @@
 package com.sandeepmore.caching;
 
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.UnaryOperator;
+
 /**
  * ICachingBroker defines a simple caching interface. The required methods are
  * {@link #set(String, int, Object)}, {@link #get(String)}, {@link #delete(String)}
@@ -38,6 +47,136 @@ public interface ICachingBroker {
      */
     public Object get(String key) throws CachingException;
 
+    /**
+     * Get with multiple keys in a single bulk request.
+     * Keys that are not found (or did not answer in time) are absent from the result.
+     *
+     * @param keys keys used to lookup
+     * @return map of the keys that were found and their values
+     * @throws CachingException
+     */
+    public Map<String, Object> getMulti(Collection<String> keys) throws CachingException;
+
+    /**
+     * Get with a single key, loading and storing the value on a miss.
+     * Concurrent callers for the same key share one lookup and one load.
+     *
+     * @param key    key used to lookup
+     * @param exp    Time to live in seconds for a loaded value
+     * @param loader loads the value on a miss, may return null
+     * @throws CachingException if the lookup or the loader failed
+     */
+    public Object get(String key, int exp, Callable<Object> loader) throws CachingException;
+
+    /**
+     * Get with a single key, loading the value on a miss and refreshing it in the background once
+     * {@code refreshAfter} of its TTL has passed. Until the refresh lands callers keep getting the current value.
+     *
+     * @param key          key used to lookup
+     * @param exp          Time to live in seconds for a loaded value
+     * @param refreshAfter fraction of the TTL after which the value is refreshed, between 0 and 1
+     * @param loader       loads the value, may return null
+     * @throws CachingException if the lookup or a loader call on a miss failed
+     */
+    public Object get(String key, int exp, double refreshAfter, Callable<Object> loader) throws CachingException;
+
+    /**
+     * Set already encoded bytes in the cache, they are stored as is without serialization.
+     *
+     * @param key   key used to lookup
+     * @param exp   Time to live in seconds
+     * @param value bytes associated with the key, must not be modified until the set completes
+     */
+    public void setBytes(String key, int exp, byte[] value);
+
+    /**
+     * Set the remaining bytes of a buffer in the cache, they are stored as is without serialization.
+     * The buffer position is not moved.
+     *
+     * @param key   key used to lookup
+     * @param exp   Time to live in seconds
+     * @param value bytes associated with the key, between position and limit
+     */
+    public void setBytes(String key, int exp, ByteBuffer value);
+
+    /**
+     * Get the bytes stored under a key without deserializing them.
+     *
+     * @param key key used to lookup
+     * @return the stored bytes, null if the key is not found
+     * @throws CachingException
+     */
+    public byte[] getBytes(String key) throws CachingException;
+
+    /**
+     * Get with a single key along with its CAS identifier.
+     *
+     * @param key key used to lookup
+     * @return the value and its CAS identifier, null if the key is not found
+     * @throws CachingException
+     */
+    public CASValue<Object> gets(String key) throws CachingException;
+
+    /**
+     * Set an object in the cache only if it was not modified since its CAS identifier was read with {@link #gets(String)}.
+     *
+     * @param key   key used to lookup
+     * @param casId CAS identifier returned by {@link #gets(String)}
+     * @param exp   Time to live in seconds
+     * @param obj   Object associated with the key
+     * @return {@link CASResponse#OK} if stored, {@link CASResponse#EXISTS} if the value changed in between,
+     * {@link CASResponse#NOT_FOUND} if the key is gone
+     * @throws CachingException
+     */
+    public CASResponse cas(String key, long casId, int exp, Object obj) throws CachingException;
+
+    /**
+     * Replace the value of a key with the result of a function of its current value, retrying on concurrent
+     * modifications. The function may be called several times and must not have side effects.
+     *
+     * @param key key used to lookup
+     * @param exp Time to live in seconds
+     * @param fn  computes the new value from the current one (null if the key is not found),
+     *            returning null leaves the key untouched
+     * @return the value stored, null if the function returned null
+     * @throws CachingException if the update failed or lost the race on every attempt
+     */
+    public Object update(String key, int exp, UnaryOperator<Object> fn) throws CachingException;
+
+    /**
+     * Atomically increment a counter, creating it with the default value if it does not exist.
+     *
+     * @param key key of the counter
+     * @param by  amount to add
+     * @param def value of the counter if it does not exist
+     * @param exp Time to live in seconds of a created counter
+     * @return the new value of the counter
+     * @throws CachingException
+     */
+    public long incr(String key, long by, long def, int exp) throws CachingException;
+
+    /**
+     * Atomically decrement a counter, creating it with the default value if it does not exist.
+     * Memcached counters do not go below 0.
+     *
+     * @param key key of the counter
+     * @param by  amount to subtract
+     * @param def value of the counter if it does not exist
+     * @param exp Time to live in seconds of a created counter
+     * @return the new value of the counter
+     * @throws CachingException
+     */
+    public long decr(String key, long by, long def, int exp) throws CachingException;
+
+    /**
+     * Read a counter maintained with {@link #incr(String, long, long, int)} and {@link #decr(String, long, long, int)}.
+     *
+     * @param key key of the counter
+     * @return the value of the counter, -1 if it does not exist
+     * @throws CachingException
+     */
+    public long getCounter(String key) throws CachingException;
+
     /**
      * Delete the given key from the cache.
      *
@@ -46,6 +185,44 @@ public interface ICachingBroker {
      */
     public void delete(String key) throws CachingException;
 
+    /**
+     * Get a key of a namespace, see {@link #invalidateNamespace(String)}.
+     *
+     * @param ns  namespace of the key, e.g. a tenant id
+     * @param key key used to lookup within the namespace
+     * @return the value in the current generation of the namespace, null if the key is not found
+     * @throws CachingException
+     */
+    public Object get(String ns, String key) throws CachingException;
+
+    /**
+     * Set a key of a namespace, see {@link #invalidateNamespace(String)}.
+     *
+     * @param ns  namespace of the key, e.g. a tenant id
+     * @param key key within the namespace
+     * @param exp Time to live in seconds
+     * @param obj Object associated with the key
+     */
+    public void set(String ns, String key, int exp, Object obj);
+
+    /**
+     * Delete a key of a namespace.
+     *
+     * @param ns  namespace of the key, e.g. a tenant id
+     * @param key key within the namespace
+     * @throws CachingException
+     */
+    public void delete(String ns, String key) throws CachingException;
+
+    /**
+     * Drop every key of a namespace at once by moving it to a new generation, a single round trip whatever
+     * the number of keys.
+     *
+     * @param ns namespace to invalidate
+     * @throws CachingException
+     */
+    public void invalidateNamespace(String ns) throws CachingException;
+
     /**
      * Return the server string associated with this Caching Broker.
      *
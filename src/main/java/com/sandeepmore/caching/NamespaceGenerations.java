@@ -0,0 +1,119 @@
+package com.sandeepmore.caching;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation numbers of the namespaces used by {@link CachingBroker#get(String, String)} and
+ * {@link CachingBroker#set(String, String, int, Object)}. Every namespaced key carries the current generation
+ * of its namespace, so bumping the generation with a single incr orphans all the keys of the namespace at
+ * once, memcached evicts them as they age out.
+ * <p/>
+ * The generation lives in a counter on memcached and is cached here for a short time, so a namespace
+ * invalidated by another process is seen at most {@link #getTtlMillis()} later. A missing counter is created
+ * from the wall clock rather than 0, so a counter evicted and created again does not bring back the keys of
+ * an older generation.
+ *
+ * @author Sandeep More
+ */
+final class NamespaceGenerations {
+
+    static final String GENERATION_PREFIX = "nsgen:";
+    static final String KEY_PREFIX = "ns:";
+    static final long DEFAULT_TTL_MILLIS = 1000;
+    private static final int MAX_CACHED_NAMESPACES = 10000;
+
+    private final CachingBroker broker;
+    private final ConcurrentHashMap<String, Generation> cached = new ConcurrentHashMap<String, Generation>();
+    private final SingleFlight reads = new SingleFlight();
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+
+    NamespaceGenerations(CachingBroker broker) {
+        this.broker = broker;
+    }
+
+    /**
+     * @return The key the value of the key is stored under in the current generation of the namespace.
+     */
+    String key(String ns, String key) throws CachingException {
+        return KEY_PREFIX + ns + ":" + current(ns) + ":" + key;
+    }
+
+    /**
+     * Current generation of the namespace, from the local copy while it is fresh.
+     */
+    long current(final String ns) throws CachingException {
+        Generation generation = cached.get(ns);
+        if (generation != null && System.nanoTime() - generation.readAtNanos < ttlNanos) {
+            return generation.value;
+        }
+        // concurrent readers of an expired namespace share one round trip
+        return (Long) reads.execute(ns, new Callable<Object>() {
+            public Object call() throws Exception {
+                // incr by 0 reads the counter, creating it if it is missing
+                return cache(ns, broker.incr(GENERATION_PREFIX + ns, 0, seed(), 0));
+            }
+        });
+    }
+
+    /**
+     * Move the namespace to a new generation.
+     *
+     * @return The new generation.
+     */
+    long invalidate(String ns) throws CachingException {
+        return cache(ns, broker.incr(GENERATION_PREFIX + ns, 1, seed(), 0));
+    }
+
+    long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    void setTtlMillis(long ttlMillis) {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("ttlMillis must not be negative, was " + ttlMillis);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private long cache(String ns, long value) {
+        if (cached.size() >= MAX_CACHED_NAMESPACES) {
+            prune();
+            if (cached.size() >= MAX_CACHED_NAMESPACES) {
+                cached.clear();
+            }
+        }
+        // a read that started before an invalidate of this process must not bring the old generation back
+        Generation generation = new Generation(value, System.nanoTime());
+        Generation previous = cached.putIfAbsent(ns, generation);
+        while (previous != null && previous.value <= value && !cached.replace(ns, previous, generation)) {
+            previous = cached.putIfAbsent(ns, generation);
+        }
+        return previous != null && previous.value > value ? previous.value : value;
+    }
+
+    private void prune() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Generation> entry : cached.entrySet()) {
+            if (now - entry.getValue().readAtNanos >= ttlNanos) {
+                cached.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static long seed() {
+        return System.currentTimeMillis();
+    }
+
+    private static final class Generation {
+        final long value;
+        final long readAtNanos;
+
+        Generation(long value, long readAtNanos) {
+            this.value = value;
+            this.readAtNanos = readAtNanos;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.sandeepmore.caching;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded on-heap cache (L1) that sits in front of memcached for a {@link CachingBroker}.
+ * <p/>
+ * Keys are spread over lock striped segments, each segment is a segmented LRU: new entries land in a
+ * probation area and are promoted to a protected area on their second hit, so a scan of one-off keys
+ * cannot flush the frequently used ones. Every entry lives at most {@code maxAgeMillis} and never longer
+ * than the memcached expiry it was stored with.
+ * <p/>
+ * Hit, miss and eviction counters are kept in {@link LongAdder}s so reading them never blocks a lookup.
+ *
+ * @author Sandeep More
+ */
+public class NearCache {
+
+    /**
+     * Memcached treats expiry values above 30 days as an absolute unix time.
+     */
+    private static final int MAX_RELATIVE_EXP = 60 * 60 * 24 * 30;
+    /**
+     * Share of each segment reserved for entries that were hit more than once.
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long maxAgeNanos;
+    private final int maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries   Maximum number of entries held by this cache.
+     * @param maxAgeMillis Maximum time in milliseconds an entry is served locally.
+     */
+    public NearCache(int maxEntries, long maxAgeMillis) {
+        this(maxEntries, maxAgeMillis, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxEntries   Maximum number of entries held by this cache.
+     * @param maxAgeMillis Maximum time in milliseconds an entry is served locally.
+     * @param segmentCount Number of lock stripes, rounded up to a power of two.
+     */
+    public NearCache(int maxEntries, long maxAgeMillis, int segmentCount) {
+        if (maxEntries <= 0 || maxAgeMillis <= 0 || segmentCount <= 0) {
+            throw new IllegalArgumentException("maxEntries, maxAgeMillis and segmentCount must be positive");
+        }
+        int count = 1;
+        while (count < segmentCount && count < maxEntries) {
+            count <<= 1;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(Math.max(1, (maxEntries + count - 1) / count));
+        }
+        this.maxEntries = maxEntries;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Get the locally held value for the key.
+     *
+     * @param key key used to lookup
+     * @return The value, or null if it is not held or has expired.
+     */
+    public Object get(String key) {
+        Object value = segmentFor(key).get(key, System.nanoTime());
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Hold a value read from memcached, its lifetime is capped by the local max age only.
+     *
+     * @param key   key used to lookup
+     * @param value value to hold, null values are not held
+     */
+    public void put(String key, Object value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Hold a value that was written with the given memcached expiry.
+     *
+     * @param key   key used to lookup
+     * @param value value to hold, null values are not held
+     * @param exp   memcached expiry the value was stored with (seconds, unix time or 0 for none)
+     */
+    public void put(String key, Object value, int exp) {
+        if (value == null) {
+            invalidate(key);
+            return;
+        }
+        long now = System.nanoTime();
+        long ttlNanos = Math.min(maxAgeNanos, expToNanos(exp));
+        if (ttlNanos <= 0) {
+            invalidate(key);
+            return;
+        }
+        segmentFor(key).put(key, new Entry(value, now + ttlNanos));
+    }
+
+    /**
+     * Hold a value restored from a {@link HotSetSnapshot} until the wall clock time it was due to expire.
+     */
+    void restore(String key, Object value, long expiresAtMillis) {
+        long ttlNanos = Math.min(maxAgeNanos, TimeUnit.MILLISECONDS.toNanos(expiresAtMillis - System.currentTimeMillis()));
+        if (value == null || ttlNanos <= 0) {
+            return;
+        }
+        segmentFor(key).put(key, new Entry(value, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * The most recently used entries hit more than once, spread over the segments, without counting a hit or
+     * touching their order.
+     *
+     * @param max Maximum number of entries returned.
+     */
+    List<HotSetSnapshot.Record> frequent(int max) {
+        List<HotSetSnapshot.Record> records = new ArrayList<HotSetSnapshot.Record>();
+        int quota = Math.max(1, (max + segments.length - 1) / segments.length);
+        long now = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.frequent(quota, now, nowMillis, records);
+            if (records.size() >= max) {
+                return records.subList(0, max);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Drop the locally held value for the key.
+     *
+     * @param key key used to lookup
+     */
+    public void invalidate(String key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Drop every locally held value.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return Number of entries currently held, expired entries included until they are touched.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxAgeNanos);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * Convert a memcached expiry into a relative lifetime in nanoseconds.
+     */
+    static long expToNanos(int exp) {
+        if (exp <= 0) {
+            return Long.MAX_VALUE;
+        }
+        if (exp <= MAX_RELATIVE_EXP) {
+            return TimeUnit.SECONDS.toNanos(exp);
+        }
+        return TimeUnit.MILLISECONDS.toNanos(exp * 1000L - System.currentTimeMillis());
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One lock stripe holding a segmented LRU.
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protectedArea = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        private final int capacity;
+        private final int protectedCapacity;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int) (capacity * PROTECTED_RATIO);
+        }
+
+        Object get(String key, long now) {
+            lock.lock();
+            try {
+                Entry entry = protectedArea.get(key);
+                if (entry == null) {
+                    entry = probation.get(key);
+                    if (entry == null) {
+                        return null;
+                    }
+                    if (entry.expiresAt - now <= 0) {
+                        probation.remove(key);
+                        return null;
+                    }
+                    // second hit, promote to the protected area
+                    probation.remove(key);
+                    protectedArea.put(key, entry);
+                    demoteOverflow();
+                    return entry.value;
+                }
+                if (entry.expiresAt - now <= 0) {
+                    protectedArea.remove(key);
+                    return null;
+                }
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(String key, Entry entry) {
+            lock.lock();
+            try {
+                if (protectedArea.containsKey(key)) {
+                    protectedArea.put(key, entry);
+                    return;
+                }
+                probation.put(key, entry);
+                evictOverflow();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(String key) {
+            lock.lock();
+            try {
+                if (protectedArea.remove(key) == null) {
+                    probation.remove(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                probation.clear();
+                protectedArea.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void frequent(int quota, long now, long nowMillis, List<HotSetSnapshot.Record> out) {
+            lock.lock();
+            try {
+                // access order, the most recently used entries are the last ones
+                int skip = protectedArea.size() - quota;
+                for (Map.Entry<String, Entry> entry : protectedArea.entrySet()) {
+                    long ttlNanos = entry.getValue().expiresAt - now;
+                    if (skip-- > 0 || ttlNanos <= 0) {
+                        continue;
+                    }
+                    out.add(new HotSetSnapshot.Record(entry.getKey(), entry.getValue().value,
+                            nowMillis + TimeUnit.NANOSECONDS.toMillis(ttlNanos)));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return probation.size() + protectedArea.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Move the least recently used protected entries back to probation.
+         */
+        private void demoteOverflow() {
+            Iterator<Map.Entry<String, Entry>> it = protectedArea.entrySet().iterator();
+            while (protectedArea.size() > protectedCapacity && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+            evictOverflow();
+        }
+
+        /**
+         * Evict the least recently used probation entries until the segment fits.
+         */
+        private void evictOverflow() {
+            Iterator<Map.Entry<String, Entry>> it = probation.entrySet().iterator();
+            while (probation.size() + protectedArea.size() > capacity && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+}
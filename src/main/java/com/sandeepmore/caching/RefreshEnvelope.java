@@ -0,0 +1,34 @@
+package com.sandeepmore.caching;
+
+import java.io.Serializable;
+
+/**
+ * A value stored by {@link CachingBroker#get(String, int, double, java.util.concurrent.Callable)} along with the
+ * wall clock time after which it should be refreshed. The memcached expiry stays the hard limit, this
+ * logical expiry comes before it so the value is reloaded in the background while it is still served.
+ *
+ * @author Sandeep More
+ */
+final class RefreshEnvelope implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final Object value;
+    final long refreshAtMillis;
+
+    RefreshEnvelope(Object value, long refreshAtMillis) {
+        this.value = value;
+        this.refreshAtMillis = refreshAtMillis;
+    }
+
+    boolean isStale(long nowMillis) {
+        return nowMillis >= refreshAtMillis;
+    }
+
+    /**
+     * @return The value held by an envelope, any other value as it is.
+     */
+    static Object unwrap(Object stored) {
+        return stored instanceof RefreshEnvelope ? ((RefreshEnvelope) stored).value : stored;
+    }
+}
@@ -0,0 +1,421 @@
+package com.sandeepmore.caching;
+
+import com.sandeepmore.pool.ICachingPool;
+import com.sandeepmore.pool.IRoutingCachingPool;
+import com.sandeepmore.pool.LatencyHistogram;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replication of a {@link CachingBroker} over a cluster: values are copied to the next {@code replicas - 1}
+ * available nodes on the ring, and a get that is slow on the node owning the key is hedged onto a copy.
+ * <p/>
+ * A get first waits for the owner up to the p95 of that node's get latency over the last second. If no answer
+ * came by then and the hedge budget allows it, the same get is sent to the first copy, the first hit wins and
+ * the other request is cancelled. A miss on the copy is not an answer, the owner is waited for, so a copy that
+ * is missing never hides a value. Hedges per second are capped to {@code maxHedgeRatio} of the gets of the
+ * previous second, so a slow cluster is not loaded twice.
+ * <p/>
+ * Copies are written by set and delete, including the ones written behind. Writes that depend on the current
+ * value, cas, update, incr and decr, and raw byte sets only go to the owner and drop the copies instead.
+ * The copies are sent by the thread doing the write, so a synchronous set of a value split in chunks waits
+ * for its chunks on every replica. With write-behind the queue sends them instead.
+ *
+ * @author Sandeep More
+ */
+public class Replication {
+
+    private static final Log logger = LogFactory.getLog(Replication.class);
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Gets of a node in a window below which its hedge delay is left as it was.
+     */
+    private static final long MIN_WINDOW_GETS = 20;
+    /**
+     * Hedges always allowed per window, so a node going slow under light traffic is still hedged.
+     */
+    private static final int MIN_HEDGE_BUDGET = 5;
+    private static final long MIN_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    private static final long INITIAL_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MIN_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final CachingBroker broker;
+    private final IRoutingCachingPool cluster;
+    private final int replicas;
+    private final double maxHedgeRatio;
+
+    private final ConcurrentHashMap<ICachingPool, HedgeDelay> delays = new ConcurrentHashMap<ICachingPool, HedgeDelay>();
+    private final AtomicLong windowEnd = new AtomicLong(System.nanoTime() + WINDOW_NANOS);
+    private final LongAdder windowGets = new LongAdder();
+    private final AtomicInteger windowHedges = new AtomicInteger();
+    private volatile int hedgeBudget = MIN_HEDGE_BUDGET;
+
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder hedgesDenied = new LongAdder();
+    private final LongAdder copyFailures = new LongAdder();
+
+    /**
+     * Get latency percentile of one node over the last window.
+     */
+    private static final class HedgeDelay {
+        final ICachingPool pool;
+        long[] last;
+        volatile long nanos = INITIAL_DELAY_NANOS;
+
+        HedgeDelay(ICachingPool pool) {
+            this.pool = pool;
+            this.last = pool.getMetrics().getGetLatency().snapshot();
+        }
+
+        synchronized void update() {
+            long[] current = pool.getMetrics().getGetLatency().snapshot();
+            long[] window = new long[current.length];
+            long count = 0;
+            for (int i = 0; i < current.length; i++) {
+                window[i] = current[i] - last[i];
+                count += window[i];
+            }
+            last = current;
+            if (count >= MIN_WINDOW_GETS) {
+                nanos = Math.max(MIN_DELAY_NANOS, LatencyHistogram.percentile(window, 95));
+            }
+        }
+    }
+
+    /**
+     * @param broker        The broker whose values are replicated.
+     * @param cluster       The cluster the copies are spread over.
+     * @param replicas      Number of nodes holding a value, the owner included.
+     * @param maxHedgeRatio Largest share of the gets that may be hedged, between 0 and 1.
+     */
+    Replication(CachingBroker broker, IRoutingCachingPool cluster, int replicas, double maxHedgeRatio) {
+        if (replicas < 2) {
+            throw new IllegalArgumentException("replicas must be at least 2, was " + replicas);
+        }
+        if (!(maxHedgeRatio >= 0 && maxHedgeRatio <= 1)) {
+            throw new IllegalArgumentException("maxHedgeRatio must be within [0, 1], was " + maxHedgeRatio);
+        }
+        this.broker = broker;
+        this.cluster = cluster;
+        this.replicas = replicas;
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * Get a key from its owner, hedged onto a copy when the owner is slow.
+     *
+     * @param pool   The pool of the owner.
+     * @param client A client borrowed from that pool.
+     * @return The value, a chunk manifest from the owner is left to the caller to resolve.
+     */
+    Object get(String key, ICachingPool pool, MemcachedClient client) throws Exception {
+        long start = System.nanoTime();
+        gets.increment();
+        windowGets.increment();
+        roll(start);
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(CachingBroker.operationTimeout(client));
+        Future<Object> primary = client.asyncGet(key, broker.chunkedReadTranscoder(client));
+        if (awaitDone(primary, start + delayFor(pool))) {
+            return await(primary, deadline);
+        }
+        // slow, hedge if there is a copy and budget left
+        ICachingPool replica = hedgeTarget(key, pool);
+        if (replica == null || !takeHedge()) {
+            return await(primary, deadline);
+        }
+        MemcachedClient hedgeClient = null;
+        try {
+            logger.debug("HEDGE:Borrowing object from the pool");
+            hedgeClient = (MemcachedClient) replica.borrowObject();
+            hedges.increment();
+            Future<Object> hedge = hedgeClient.asyncGet(key, broker.chunkedReadTranscoder(hedgeClient));
+            long poll = MIN_POLL_NANOS;
+            while (!primary.isDone()) {
+                if (hedge.isDone()) {
+                    Object value = hedgeValue(key, hedge);
+                    if (value == null) {
+                        // a copy may be missing, only the owner can tell a miss
+                        break;
+                    }
+                    primary.cancel(true);
+                    hedgeWins.increment();
+                    if (value instanceof ChunkedValues.Manifest) {
+                        value = ChunkedValues.resolve(hedgeClient, key, (ChunkedValues.Manifest) value,
+                                broker.readTranscoder(hedgeClient));
+                    }
+                    broker.reportSuccess(replica);
+                    return value;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    hedge.cancel(true);
+                    break;
+                }
+                // both are already slow, back off so a get stuck until the timeout does not spin
+                LockSupport.parkNanos(Math.min(remaining, poll));
+                poll = Math.min(poll * 2, MAX_POLL_NANOS);
+            }
+            hedge.cancel(true);
+            return await(primary, deadline);
+        } catch (Exception ex) {
+            if (hedgeClient == null) {
+                logger.warn("Could not borrow a client to hedge key:" + key + " on " + replica.getServer(), ex);
+                return await(primary, deadline);
+            }
+            throw ex;
+        } finally {
+            //return the borrowed object back to pool
+            replica.returnObject(hedgeClient);
+            logger.debug("HEDGE:Returned object to the pool");
+        }
+    }
+
+    /**
+     * Copy a set, or a delete for a null value, to the other nodes of the key.
+     */
+    void copy(String key, int exp, Object value) {
+        copy(Collections.singletonList(new WriteBehindQueue.Write(key, exp, value)));
+    }
+
+    /**
+     * Delete the copies of a key written to its owner only.
+     */
+    void drop(String key) {
+        copy(key, 0, null);
+    }
+
+    /**
+     * Copy sets and deletes to the other nodes of their keys, pipelined on one client per node.
+     * <p/>
+     * This runs on the thread of the write: it borrows a client from every replica pool, which blocks while
+     * one of those pools is exhausted, and encodes the value once per replica. Small values are not waited for,
+     * like a set on the owner, but a value split in chunks waits for all its chunks on every replica before its
+     * manifest is sent. So a synchronous set of a large value takes about {@code replicas} times as long; with
+     * write-behind the copies are sent by the queue instead.
+     */
+    void copy(List<WriteBehindQueue.Write> writes) {
+        Map<ICachingPool, List<WriteBehindQueue.Write>> groups = new LinkedHashMap<ICachingPool, List<WriteBehindQueue.Write>>();
+        for (WriteBehindQueue.Write write : writes) {
+            for (ICachingPool pool : copiesOf(write.key)) {
+                List<WriteBehindQueue.Write> group = groups.get(pool);
+                if (group == null) {
+                    group = new ArrayList<WriteBehindQueue.Write>();
+                    groups.put(pool, group);
+                }
+                group.add(write);
+            }
+        }
+        for (Map.Entry<ICachingPool, List<WriteBehindQueue.Write>> group : groups.entrySet()) {
+            copyGroup(group.getKey(), group.getValue());
+        }
+    }
+
+    private void copyGroup(ICachingPool pool, List<WriteBehindQueue.Write> writes) {
+        MemcachedClient client = null;
+        int sent = 0;
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("REPLICATE:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            for (WriteBehindQueue.Write write : writes) {
+                if (write.value == null) {
+                    client.delete(write.key);
+                } else {
+                    broker.store(client, write.key, write.exp, write.value);
+                }
+                sent++;
+            }
+        } catch (Exception ex) {
+            logger.error("Copying " + (writes.size() - sent) + " keys to " + pool.getServer() + " failed", ex);
+            copyFailures.add(writes.size() - sent);
+            if (client != null) {
+                pool.getMetrics().recordError();
+            }
+        } finally {
+            //return the borrowed object back to pool
+            pool.returnObject(client);
+            logger.debug("REPLICATE:Returned object to the pool");
+        }
+    }
+
+    /**
+     * @return Number of nodes holding a value, the owner included.
+     */
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return Number of gets that went through replication.
+     */
+    public long getGetCount() {
+        return gets.sum();
+    }
+
+    /**
+     * @return Number of gets hedged onto a copy.
+     */
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return Number of hedged gets answered by the copy first.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return Number of slow gets not hedged because the budget of the second was spent.
+     */
+    public long getHedgeDeniedCount() {
+        return hedgesDenied.sum();
+    }
+
+    /**
+     * @return Number of copies that could not be sent, those nodes may serve an older value until it expires.
+     */
+    public long getCopyFailedCount() {
+        return copyFailures.sum();
+    }
+
+    /**
+     * @return Share of the gets that were hedged.
+     */
+    public double getHedgeRatio() {
+        long n = gets.sum();
+        return n == 0 ? 0.0 : (double) hedges.sum() / n;
+    }
+
+    /**
+     * @return Share of the hedged gets won by the copy.
+     */
+    public double getHedgeWinRatio() {
+        long n = hedges.sum();
+        return n == 0 ? 0.0 : (double) hedgeWins.sum() / n;
+    }
+
+    /**
+     * @param pool The pool of a node.
+     * @return How long a get on the node waits before it is hedged, in microseconds.
+     */
+    public long getHedgeDelayMicros(ICachingPool pool) {
+        HedgeDelay delay = delays.get(pool);
+        return TimeUnit.NANOSECONDS.toMicros(delay == null ? INITIAL_DELAY_NANOS : delay.nanos);
+    }
+
+    private List<ICachingPool> copiesOf(String key) {
+        List<ICachingPool> copies = new ArrayList<ICachingPool>(cluster.replicas(key, replicas));
+        copies.remove(broker.poolFor(key));
+        return copies;
+    }
+
+    private ICachingPool hedgeTarget(String key, ICachingPool owner) {
+        for (ICachingPool pool : cluster.replicas(key, replicas)) {
+            if (pool != owner) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private long delayFor(ICachingPool pool) {
+        HedgeDelay delay = delays.get(pool);
+        if (delay == null) {
+            delay = delays.computeIfAbsent(pool, p -> new HedgeDelay(p));
+        }
+        return delay.nanos;
+    }
+
+    private boolean takeHedge() {
+        if (windowHedges.incrementAndGet() <= hedgeBudget) {
+            return true;
+        }
+        hedgesDenied.increment();
+        return false;
+    }
+
+    /**
+     * Start a new window once a second: size the hedge budget from the gets of the last one and refresh the
+     * hedge delay of every node.
+     */
+    private void roll(long now) {
+        long end = windowEnd.get();
+        if (now - end < 0 || !windowEnd.compareAndSet(end, now + WINDOW_NANOS)) {
+            return;
+        }
+        hedgeBudget = Math.max(MIN_HEDGE_BUDGET, (int) (windowGets.sumThenReset() * maxHedgeRatio));
+        windowHedges.set(0);
+        for (HedgeDelay delay : delays.values()) {
+            delay.update();
+        }
+    }
+
+    private Object hedgeValue(String key, Future<Object> hedge) {
+        try {
+            return hedge.get();
+        } catch (Exception ex) {
+            logger.debug("Hedged get for key:" + key + " failed, waiting for the owner", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Wait until the future is done or the time is reached. spymemcached times an operation out when a get with
+     * a timeout expires, so short waits poll instead, backing off from {@link #MIN_POLL_NANOS}.
+     *
+     * @return true if the future is done.
+     */
+    private static boolean awaitDone(Future<Object> future, long untilNanos) {
+        long poll = MIN_POLL_NANOS;
+        long remaining;
+        while (!future.isDone()) {
+            remaining = untilNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(remaining, poll));
+            poll = Math.min(poll * 2, MAX_POLL_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the get on the owner the way {@link MemcachedClient#get(String)} does.
+     */
+    private static Object await(Future<Object> primary, long deadline) {
+        try {
+            return primary.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for value", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception waiting for value", e);
+        } catch (TimeoutException e) {
+            primary.cancel(true);
+            throw new OperationTimeoutException("Timeout waiting for value", e);
+        }
+    }
+}
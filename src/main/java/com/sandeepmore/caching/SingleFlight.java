@@ -0,0 +1,54 @@
+package com.sandeepmore.caching;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the work, every caller that
+ * arrives while it is in flight waits for that result instead of repeating it.
+ * <p/>
+ * In-flight calls are tracked in a {@link ConcurrentHashMap}, which locks per hash bin, so callers
+ * for unrelated keys never contend with each other.
+ *
+ * @author Sandeep More
+ */
+final class SingleFlight {
+
+    private final ConcurrentMap<String, FutureTask<Object>> calls = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+    /**
+     * Run the work for the key, or join the call that is already in flight for it.
+     *
+     * @param key  key the work is coalesced on
+     * @param work work producing the value
+     * @return The value produced by the in-flight call.
+     * @throws CachingException if the work failed or the wait was interrupted
+     */
+    Object execute(String key, Callable<Object> work) throws CachingException {
+        FutureTask<Object> task = new FutureTask<Object>(work);
+        FutureTask<Object> inFlight = calls.putIfAbsent(key, task);
+        if (inFlight == null) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+        }
+        try {
+            return inFlight.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CachingException("Interrupted while waiting for the in-flight call for key:" + key, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CachingException) {
+                throw (CachingException) ex.getCause();
+            }
+            throw new CachingException("Loading key:" + key + " failed", ex.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,467 @@
+package com.sandeepmore.caching;
+
+import com.sandeepmore.pool.ICachingPool;
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind stage of a {@link CachingBroker}. Sets and deletes are queued and written by a background
+ * thread in pipelined batches, one borrowed client per node and batch.
+ * <p/>
+ * Writes are coalesced per key, a key queued twice is written once with its last value. The queue holds at
+ * most {@code capacity} distinct keys, when it is full the {@link Backpressure} policy decides what happens
+ * to a write for a new key. Reads through the broker see the queued writes, and the operations that go straight
+ * to memcached (raw bytes, CAS, counters) first write out what is queued for their key, or wait for the write
+ * of it that is already on its way.
+ * <p/>
+ * {@link #close()} flushes whatever is queued, it is also called by a JVM shutdown hook so a normal exit
+ * does not lose writes. Writes still queued when the process is killed are lost.
+ *
+ * @author Sandeep More
+ */
+public class WriteBehindQueue {
+
+    private static final Log logger = LogFactory.getLog(WriteBehindQueue.class);
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * What happens to a write for a new key when the queue is full.
+     */
+    public enum Backpressure {
+        /**
+         * Wait until the drain frees a slot.
+         */
+        BLOCK,
+        /**
+         * Write synchronously on the calling thread, like a broker without write-behind.
+         */
+        WRITE_THROUGH,
+        /**
+         * Drop a set, the key is removed from the near cache so it is not served stale locally. Deletes are
+         * never dropped, they are written synchronously like with {@link #WRITE_THROUGH}.
+         */
+        DISCARD
+    }
+
+    /**
+     * A queued write, a null value is a delete.
+     */
+    static final class Write {
+        final String key;
+        final int exp;
+        final Object value;
+
+        Write(String key, int exp, Object value) {
+            this.key = key;
+            this.exp = exp;
+            this.value = value;
+        }
+    }
+
+    private final CachingBroker broker;
+    private final Backpressure backpressure;
+    private final int batchSize;
+    private final ConcurrentHashMap<String, Write> pending = new ConcurrentHashMap<String, Write>();
+    private final LinkedBlockingQueue<String> order = new LinkedBlockingQueue<String>();
+    /**
+     * Keys whose write is on its way to memcached, one writer per key at a time.
+     */
+    private final ConcurrentHashMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+    private final Semaphore slots;
+    private final Thread drainer;
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder writtenThrough = new LongAdder();
+
+    /**
+     * @param broker       The broker whose pool, codecs and near cache are used for the writes.
+     * @param capacity     Maximum number of distinct keys waiting to be written.
+     * @param batchSize    Maximum number of writes sent in one pipelined batch.
+     * @param backpressure What happens to a write for a new key when the queue is full.
+     */
+    WriteBehindQueue(CachingBroker broker, int capacity, int batchSize, Backpressure backpressure) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Invalid write-behind queue capacity=" + capacity + " batchSize=" + batchSize);
+        }
+        this.broker = broker;
+        this.batchSize = batchSize;
+        this.backpressure = backpressure;
+        this.slots = new Semaphore(capacity);
+        this.drainer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "caching-write-behind-" + THREAD_COUNT.incrementAndGet());
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+        this.shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Queue a set.
+     *
+     * @return false if the caller has to write synchronously, the queue is closed or full with
+     * {@link Backpressure#WRITE_THROUGH}.
+     */
+    boolean offerSet(String key, int exp, Object value) {
+        return offer(new Write(key, exp, value));
+    }
+
+    /**
+     * Queue a delete.
+     *
+     * @return false if the caller has to delete synchronously, the queue is closed or full with
+     * {@link Backpressure#WRITE_THROUGH}.
+     */
+    boolean offerDelete(String key) {
+        return offer(new Write(key, 0, null));
+    }
+
+    /**
+     * @return The write queued for a key, or null if nothing is queued for it.
+     */
+    Write peek(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     * @return true if nothing is queued.
+     */
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Write out synchronously what is queued for a key, if anything. A write of the key the drainer already
+     * took is waited for, so it cannot land after the caller's own operation.
+     */
+    void flush(String key) {
+        CountDownLatch claim = claim(key);
+        try {
+            Write write = pending.remove(key);
+            if (write == null) {
+                return;
+            }
+            // the slot goes with the entry in the order, the drainer releases it if it already took the key
+            if (order.remove(key)) {
+                slots.release();
+            }
+            writeGroup(broker.poolFor(key), Collections.singletonList(write));
+            Replication replication = broker.getReplication();
+            if (replication != null) {
+                replication.copy(Collections.singletonList(write));
+            }
+        } finally {
+            release(key, claim);
+        }
+    }
+
+    /**
+     * Become the only writer of a key, waiting for the one in flight. Writers hold one claim each except the
+     * drainer (or the close), so they cannot wait for each other in a cycle.
+     */
+    private CountDownLatch claim(String key) {
+        CountDownLatch claim = new CountDownLatch(1);
+        boolean interrupted = false;
+        CountDownLatch current;
+        while ((current = inFlight.putIfAbsent(key, claim)) != null) {
+            try {
+                // bounded by the operation timeout of the write in flight
+                current.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return claim;
+    }
+
+    private void release(String key, CountDownLatch claim) {
+        inFlight.remove(key, claim);
+        claim.countDown();
+    }
+
+    private boolean offer(Write write) {
+        if (closed) {
+            return false;
+        }
+        while (true) {
+            // a key already queued takes the new write in place, last write wins
+            if (pending.computeIfPresent(write.key, (key, old) -> write) != null) {
+                coalesced.increment();
+                flushIfClosed(write.key);
+                return true;
+            }
+            if (!slots.tryAcquire()) {
+                if (backpressure == Backpressure.WRITE_THROUGH || (backpressure == Backpressure.DISCARD && write.value == null)) {
+                    writtenThrough.increment();
+                    return false;
+                }
+                if (backpressure == Backpressure.DISCARD) {
+                    logger.warn("Write-behind queue full, dropping the write for key:" + write.key);
+                    discarded.increment();
+                    broker.invalidateNear(write.key);
+                    return true;
+                }
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (closed) {
+                    // the queue may already be drained for the last time
+                    slots.release();
+                    writtenThrough.increment();
+                    return false;
+                }
+            }
+            if (pending.putIfAbsent(write.key, write) == null) {
+                order.add(write.key);
+                queued.increment();
+                flushIfClosed(write.key);
+                return true;
+            }
+            // queued concurrently by another thread, coalesce into it
+            slots.release();
+        }
+    }
+
+    /**
+     * A write queued while {@link #close()} ran may have missed the last drain, write it out here.
+     */
+    private void flushIfClosed(String key) {
+        if (closed) {
+            flush(key);
+        }
+    }
+
+    private void drainLoop() {
+        List<String> keys = new ArrayList<String>(batchSize);
+        while (!closed || !order.isEmpty()) {
+            try {
+                String first = order.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                keys.add(first);
+                order.drainTo(keys, batchSize - 1);
+                writeBatch(keys);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Write-behind batch failed", e);
+            } finally {
+                keys.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the queued values of a batch of keys, pipelined on one client per node.
+     */
+    private void writeBatch(List<String> keys) {
+        Map<ICachingPool, List<Write>> groups = new LinkedHashMap<ICachingPool, List<Write>>();
+        List<Write> writes = new ArrayList<Write>(keys.size());
+        // a key queued again after a flush may be in the batch twice, it is claimed once
+        Map<String, CountDownLatch> claims = new LinkedHashMap<String, CountDownLatch>();
+        try {
+            for (String key : keys) {
+                if (!claims.containsKey(key)) {
+                    claims.put(key, claim(key));
+                }
+                Write write = pending.remove(key);
+                slots.release();
+                if (write == null) {
+                    continue;
+                }
+                ICachingPool pool = broker.poolFor(key);
+                List<Write> group = groups.get(pool);
+                if (group == null) {
+                    group = new ArrayList<Write>();
+                    groups.put(pool, group);
+                }
+                group.add(write);
+                writes.add(write);
+            }
+            for (Map.Entry<ICachingPool, List<Write>> group : groups.entrySet()) {
+                writeGroup(group.getKey(), group.getValue());
+            }
+            Replication replication = broker.getReplication();
+            if (replication != null) {
+                replication.copy(writes);
+            }
+        } finally {
+            for (Map.Entry<String, CountDownLatch> claim : claims.entrySet()) {
+                release(claim.getKey(), claim.getValue());
+            }
+        }
+    }
+
+    private void writeGroup(ICachingPool pool, List<Write> writes) {
+        MemcachedClient client = null;
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(writes.size());
+        long start = System.nanoTime();
+        try {
+            // borrow an object from the pool to work on
+            logger.debug("WRITEBEHIND:Borrowing object from the pool");
+            client = (MemcachedClient) pool.borrowObject();
+            for (Write write : writes) {
+                if (write.value == null) {
+                    futures.add(client.delete(write.key));
+                } else {
+                    futures.add(broker.store(client, write.key, write.exp, write.value));
+                }
+            }
+        } catch (Exception ex) {
+            logger.error("Write-behind of " + writes.size() + " keys on " + pool.getServer() + " failed", ex);
+            if (client != null) {
+                pool.getMetrics().recordError();
+            }
+        } finally {
+            //return the borrowed object back to pool, the writes are already queued on it
+            pool.returnObject(client);
+            logger.debug("WRITEBEHIND:Returned object to the pool");
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT);
+        for (int i = 0; i < writes.size(); i++) {
+            Write write = writes.get(i);
+            boolean ok = false;
+            if (i < futures.size()) {
+                try {
+                    ok = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    // a delete of a missing key is not a failure
+                    ok = ok || write.value == null;
+                } catch (Exception ex) {
+                    logger.error("Write-behind for key:" + write.key + " on " + pool.getServer() + " failed", ex);
+                }
+            }
+            if (ok) {
+                written.increment();
+                if (write.value == null) {
+                    pool.getMetrics().recordDelete(System.nanoTime() - start);
+                } else {
+                    pool.getMetrics().recordSet(System.nanoTime() - start);
+                }
+            } else {
+                failed.increment();
+                // the near cache may hold a value memcached never got, unless a newer write is queued
+                if (!pending.containsKey(write.key)) {
+                    broker.invalidateNear(write.key);
+                }
+            }
+        }
+        if (futures.size() == writes.size()) {
+            broker.reportSuccess(pool);
+        } else {
+            broker.reportFailure(pool);
+        }
+    }
+
+    /**
+     * Stop taking writes and write out everything queued, later writes go through synchronously.
+     * Blocks until the queue is empty or the operation timeout ran out for the last batch.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // writes offered while the queue was closing
+        List<String> keys = new ArrayList<String>(batchSize);
+        while (order.drainTo(keys, batchSize) > 0) {
+            writeBatch(keys);
+            keys.clear();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down, this is the hook running
+        }
+        logger.info("Write-behind queue closed, " + written.sum() + " writes done, " + failed.sum() + " failed");
+    }
+
+    /**
+     * @return The number of keys waiting to be written.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The number of writes queued for a key that was not queued yet.
+     */
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    /**
+     * @return The number of writes that replaced a queued write for the same key.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return The number of writes memcached acknowledged.
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return The number of writes that could not be written.
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return The number of sets dropped because the queue was full.
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * @return The number of writes done synchronously because the queue was full or closing.
+     */
+    public long getWrittenThroughCount() {
+        return writtenThrough.sum();
+    }
+}
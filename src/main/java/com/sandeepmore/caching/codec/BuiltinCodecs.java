@@ -0,0 +1,166 @@
+package com.sandeepmore.caching.codec;
+
+import java.nio.charset.Charset;
+
+/**
+ * Codecs for the types {@link CodecRegistry} handles without Java serialization: {@code byte[]} is stored
+ * as is, strings as UTF-8 and primitive boxes as fixed width big-endian bytes.
+ *
+ * @author Sandeep More
+ */
+public final class BuiltinCodecs {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Codec ids 1-15 are reserved for the built-ins, they are part of the stored flags so never renumber them.
+    static final int BYTES_ID = 1;
+    static final int STRING_ID = 2;
+    static final int INTEGER_ID = 3;
+    static final int LONG_ID = 4;
+    static final int BOOLEAN_ID = 5;
+    static final int SHORT_ID = 6;
+    static final int BYTE_ID = 7;
+    static final int FLOAT_ID = 8;
+    static final int DOUBLE_ID = 9;
+    static final int CHARACTER_ID = 10;
+    // 15 flags the manifests of chunked values, see CachingBroker#setChunkSize
+
+    private BuiltinCodecs() {
+    }
+
+    public static final ValueCodec<byte[]> BYTES = new ValueCodec<byte[]>() {
+        public byte[] encode(byte[] value) {
+            return value;
+        }
+
+        public byte[] decode(byte[] data) {
+            return data;
+        }
+    };
+
+    public static final ValueCodec<String> STRING = new ValueCodec<String>() {
+        public byte[] encode(String value) {
+            return value.getBytes(UTF8);
+        }
+
+        public String decode(byte[] data) {
+            return new String(data, UTF8);
+        }
+    };
+
+    public static final ValueCodec<Integer> INTEGER = new ValueCodec<Integer>() {
+        public byte[] encode(Integer value) {
+            return toBytes(value.longValue(), 4);
+        }
+
+        public Integer decode(byte[] data) {
+            return (int) fromBytes(data);
+        }
+    };
+
+    public static final ValueCodec<Long> LONG = new ValueCodec<Long>() {
+        public byte[] encode(Long value) {
+            return toBytes(value, 8);
+        }
+
+        public Long decode(byte[] data) {
+            return fromBytes(data);
+        }
+    };
+
+    public static final ValueCodec<Boolean> BOOLEAN = new ValueCodec<Boolean>() {
+        public byte[] encode(Boolean value) {
+            return new byte[]{(byte) (value ? 1 : 0)};
+        }
+
+        public Boolean decode(byte[] data) {
+            return data.length > 0 && data[0] != 0;
+        }
+    };
+
+    public static final ValueCodec<Short> SHORT = new ValueCodec<Short>() {
+        public byte[] encode(Short value) {
+            return toBytes(value.longValue(), 2);
+        }
+
+        public Short decode(byte[] data) {
+            return (short) fromBytes(data);
+        }
+    };
+
+    public static final ValueCodec<Byte> BYTE = new ValueCodec<Byte>() {
+        public byte[] encode(Byte value) {
+            return new byte[]{value};
+        }
+
+        public Byte decode(byte[] data) {
+            return data[0];
+        }
+    };
+
+    public static final ValueCodec<Float> FLOAT = new ValueCodec<Float>() {
+        public byte[] encode(Float value) {
+            return toBytes(Float.floatToRawIntBits(value), 4);
+        }
+
+        public Float decode(byte[] data) {
+            return Float.intBitsToFloat((int) fromBytes(data));
+        }
+    };
+
+    public static final ValueCodec<Double> DOUBLE = new ValueCodec<Double>() {
+        public byte[] encode(Double value) {
+            return toBytes(Double.doubleToRawLongBits(value), 8);
+        }
+
+        public Double decode(byte[] data) {
+            return Double.longBitsToDouble(fromBytes(data));
+        }
+    };
+
+    public static final ValueCodec<Character> CHARACTER = new ValueCodec<Character>() {
+        public byte[] encode(Character value) {
+            return toBytes(value.charValue(), 2);
+        }
+
+        public Character decode(byte[] data) {
+            return (char) fromBytes(data);
+        }
+    };
+
+    /**
+     * Register every built-in codec with the registry.
+     */
+    static void registerAll(CodecRegistry registry) {
+        registry.registerInternal(byte[].class, BYTES_ID, BYTES);
+        registry.registerInternal(String.class, STRING_ID, STRING);
+        registry.registerInternal(Integer.class, INTEGER_ID, INTEGER);
+        registry.registerInternal(Long.class, LONG_ID, LONG);
+        registry.registerInternal(Boolean.class, BOOLEAN_ID, BOOLEAN);
+        registry.registerInternal(Short.class, SHORT_ID, SHORT);
+        registry.registerInternal(Byte.class, BYTE_ID, BYTE);
+        registry.registerInternal(Float.class, FLOAT_ID, FLOAT);
+        registry.registerInternal(Double.class, DOUBLE_ID, DOUBLE);
+        registry.registerInternal(Character.class, CHARACTER_ID, CHARACTER);
+    }
+
+    private static byte[] toBytes(long value, int width) {
+        byte[] data = new byte[width];
+        for (int i = width - 1; i >= 0; i--) {
+            data[i] = (byte) value;
+            value >>= 8;
+        }
+        return data;
+    }
+
+    /**
+     * Read a big-endian, sign extended value of up to 8 bytes.
+     */
+    private static long fromBytes(byte[] data) {
+        long value = data.length > 0 && data[0] < 0 ? -1L : 0L;
+        for (byte b : data) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,224 @@
+package com.sandeepmore.caching.codec;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link Transcoder} that picks a {@link ValueCodec} per value type or per key prefix.
+ * <p/>
+ * {@code byte[]}, {@code String} and the primitive boxes are handled by {@link BuiltinCodecs}, values no codec
+ * matches fall back to spymemcached's {@link SerializingTranscoder}. The codec for a type is resolved once
+ * and cached, so a set does not walk the registrations again.
+ * <p/>
+ * Every codec has an id that is stored in the upper 16 bits of the memcached flags, decoding picks the codec
+ * from the flags alone. Values written without a codec (flags below 0x10000) are decoded by the fallback, so
+ * values written before codecs were switched on stay readable. Ids must therefore be the same in every
+ * process sharing the cache; ids up to 15 are reserved for the built-ins.
+ *
+ * @author Sandeep More
+ *         <p> Example usage </p>
+ *         <pre>
+ *                 {@code
+ *                  	CodecRegistry codecs = new CodecRegistry();
+ *                  	codecs.register(Profile.class, 16, new ProfileCodec());
+ *                  	codecs.registerPrefix("json:", 17, BuiltinCodecs.STRING);
+ *                  	cb.setCodecs(codecs);
+ *                 }
+ *                 </pre>
+ */
+public class CodecRegistry implements Transcoder<Object> {
+
+    /**
+     * Lowest codec id callers may register.
+     */
+    public static final int FIRST_USER_ID = 16;
+    private static final int MAX_ID = 0xFFFF;
+    private static final int ID_SHIFT = 16;
+
+    private final Transcoder<Object> fallback;
+    private final Registration[] byId = new Registration[MAX_ID + 1];
+    private final List<Registration> byType = new CopyOnWriteArrayList<Registration>();
+    private final List<PrefixTranscoder> byPrefix = new CopyOnWriteArrayList<PrefixTranscoder>();
+    /**
+     * Codec resolved for each concrete value type, {@link #FALLBACK} when none matches.
+     */
+    private final ConcurrentMap<Class<?>, Registration> resolved = new ConcurrentHashMap<Class<?>, Registration>();
+    private static final Registration FALLBACK = new Registration(null, 0, null);
+
+    public CodecRegistry() {
+        this(new SerializingTranscoder());
+    }
+
+    /**
+     * @param fallback Transcoder used for values no codec matches.
+     */
+    public CodecRegistry(Transcoder<Object> fallback) {
+        this.fallback = fallback;
+        BuiltinCodecs.registerAll(this);
+    }
+
+    /**
+     * Use the codec for values of the given type and its subtypes.
+     *
+     * @param type  value type
+     * @param id    stable codec id stored with the value, at least {@link #FIRST_USER_ID}
+     * @param codec codec for the type
+     */
+    public <T> void register(Class<T> type, int id, ValueCodec<? super T> codec) {
+        checkUserId(id);
+        registerInternal(type, id, codec);
+    }
+
+    /**
+     * Use the codec for every value stored under a key starting with the prefix, whatever its type.
+     *
+     * @param prefix key prefix
+     * @param id     stable codec id stored with the value, at least {@link #FIRST_USER_ID}
+     * @param codec  codec for the values under the prefix
+     */
+    public void registerPrefix(String prefix, int id, ValueCodec<?> codec) {
+        checkUserId(id);
+        Registration registration = new Registration(null, id, codec);
+        claimId(registration);
+        byPrefix.add(new PrefixTranscoder(prefix, registration));
+    }
+
+    /**
+     * Return the transcoder to store a value under the key with.
+     *
+     * @param key key the value is stored under
+     * @return A prefix bound transcoder, or this registry if no prefix matches.
+     */
+    public Transcoder<Object> transcoderFor(String key) {
+        for (PrefixTranscoder transcoder : byPrefix) {
+            if (key.startsWith(transcoder.prefix)) {
+                return transcoder;
+            }
+        }
+        return this;
+    }
+
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    public CachedData encode(Object o) {
+        Registration registration = resolve(o.getClass());
+        if (registration == FALLBACK) {
+            return fallback.encode(o);
+        }
+        return registration.encode(o);
+    }
+
+    public Object decode(CachedData d) {
+        int id = d.getFlags() >>> ID_SHIFT;
+        if (id == 0) {
+            return fallback.decode(d);
+        }
+        Registration registration = byId[id];
+        if (registration == null) {
+            throw new IllegalStateException("No codec registered for id " + id + ", flags " + d.getFlags());
+        }
+        return registration.codec.decode(d.getData());
+    }
+
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+
+    <T> void registerInternal(Class<T> type, int id, ValueCodec<? super T> codec) {
+        Registration registration = new Registration(type, id, codec);
+        claimId(registration);
+        byType.add(registration);
+        resolved.clear();
+    }
+
+    private synchronized void claimId(Registration registration) {
+        if (byId[registration.id] != null) {
+            throw new IllegalArgumentException("Codec id " + registration.id + " is already registered");
+        }
+        byId[registration.id] = registration;
+    }
+
+    private Registration resolve(Class<?> type) {
+        Registration registration = resolved.get(type);
+        if (registration == null) {
+            registration = FALLBACK;
+            for (Registration candidate : byType) {
+                if (candidate.type == type) {
+                    registration = candidate;
+                    break;
+                }
+                if (registration == FALLBACK && candidate.type.isAssignableFrom(type)) {
+                    registration = candidate;
+                }
+            }
+            resolved.put(type, registration);
+        }
+        return registration;
+    }
+
+    private static void checkUserId(int id) {
+        if (id < FIRST_USER_ID || id > MAX_ID) {
+            throw new IllegalArgumentException("Codec id must be between " + FIRST_USER_ID + " and " + MAX_ID + ", was " + id);
+        }
+    }
+
+    /**
+     * A codec with its id and the flags it stores values with.
+     */
+    private static final class Registration {
+        final Class<?> type;
+        final int id;
+        final int flags;
+        @SuppressWarnings("rawtypes")
+        final ValueCodec codec;
+
+        Registration(Class<?> type, int id, ValueCodec<?> codec) {
+            this.type = type;
+            this.id = id;
+            this.flags = id << ID_SHIFT;
+            this.codec = codec;
+        }
+
+        @SuppressWarnings("unchecked")
+        CachedData encode(Object o) {
+            return new CachedData(flags, codec.encode(o), CachedData.MAX_SIZE);
+        }
+    }
+
+    /**
+     * Encodes with the prefix codec, decodes by flags like the registry so older values stay readable.
+     */
+    private final class PrefixTranscoder implements Transcoder<Object> {
+        final String prefix;
+        private final Registration registration;
+
+        PrefixTranscoder(String prefix, Registration registration) {
+            this.prefix = prefix;
+            this.registration = registration;
+        }
+
+        public boolean asyncDecode(CachedData d) {
+            return false;
+        }
+
+        public CachedData encode(Object o) {
+            return registration.encode(o);
+        }
+
+        public Object decode(CachedData d) {
+            return CodecRegistry.this.decode(d);
+        }
+
+        public int getMaxSize() {
+            return CachedData.MAX_SIZE;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.sandeepmore.caching.codec;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * A {@link Transcoder} for values that are already encoded: the bytes go to memcached as they are, without
+ * serialization, compression or copy, and reads hand back the array spymemcached read the value into.
+ * <p/>
+ * Values are flagged like {@link BuiltinCodecs#BYTES}, so {@code get} reads them back as {@code byte[]} too,
+ * with or without a {@link CodecRegistry}.
+ *
+ * @author Sandeep More
+ */
+public final class RawTranscoder implements Transcoder<byte[]> {
+
+    public static final RawTranscoder INSTANCE = new RawTranscoder();
+
+    /**
+     * Flags of the values stored by this transcoder, every read path of the brokers decodes them as {@code byte[]}.
+     */
+    public static final int FLAGS = BuiltinCodecs.BYTES_ID << 16;
+
+    private RawTranscoder() {
+    }
+
+    public boolean asyncDecode(CachedData d) {
+        return false;
+    }
+
+    public CachedData encode(byte[] o) {
+        return new CachedData(FLAGS, o, CachedData.MAX_SIZE);
+    }
+
+    public byte[] decode(CachedData d) {
+        return d.getData();
+    }
+
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+}
@@ -0,0 +1,22 @@
+package com.sandeepmore.caching.codec;
+
+/**
+ * Turns values of one type into the bytes stored in memcached and back.
+ * Implementations must be thread safe, a single instance is shared by every caller.
+ *
+ * @author Sandeep More
+ */
+public interface ValueCodec<T> {
+
+    /**
+     * @param value value to store, never null
+     * @return The bytes stored in memcached.
+     */
+    public byte[] encode(T value);
+
+    /**
+     * @param data bytes read from memcached
+     * @return The decoded value.
+     */
+    public T decode(byte[] data);
+}
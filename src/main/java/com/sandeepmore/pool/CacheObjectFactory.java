@@ -3,9 +3,16 @@ package com.sandeepmore.pool;
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.commons.pool.PoolableObjectFactory;
 
+import java.net.ConnectException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A factory for creating {@link MemcachedClient} instances used for caching.
@@ -15,17 +22,51 @@ import java.util.ResourceBundle;
  */
 public class CacheObjectFactory implements PoolableObjectFactory<Object> {
 
+    private static final Log logger = LogFactory.getLog(CacheObjectFactory.class);
+
+    /**
+     * Key read by the connectivity probe, a miss is as good as a hit.
+     */
+    static final String PROBE_KEY = "__p4m_probe__";
+    static final long DEFAULT_PROBE_INTERVAL_MILLIS = 1000;
+    static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 500;
+    /**
+     * Time given to a destroyed client to flush its queue before its I/O thread is stopped.
+     */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
     /**
      * Server configuration string
      */
-    static String server;
+    final String server;
+
+    /**
+     * A client is probed at most once per interval, validations in between only check the connection state.
+     */
+    private final long probeIntervalMillis;
+    private final long probeTimeoutMillis;
+
+    /**
+     * Time of the last successful probe of each client.
+     */
+    private final ConcurrentMap<Object, Long> lastProbe = new ConcurrentHashMap<Object, Long>();
 
     /**
      * Get the server connection from props bundle
      */
     public CacheObjectFactory() {
-        ResourceBundle props = ResourceBundle.getBundle("com.sandeepmore.pooling");
+        this(ResourceBundle.getBundle("com.sandeepmore.pooling"));
+    }
+
+    /**
+     * Get the server connection from the settings of a pool
+     */
+    CacheObjectFactory(ResourceBundle props) {
         server = props.getString("memcached.server");
+        probeIntervalMillis = props.containsKey("pool.probeIntervalMillis")
+                ? Long.parseLong(props.getString("pool.probeIntervalMillis").trim()) : DEFAULT_PROBE_INTERVAL_MILLIS;
+        probeTimeoutMillis = props.containsKey("pool.probeTimeoutMillis")
+                ? Long.parseLong(props.getString("pool.probeTimeoutMillis").trim()) : DEFAULT_PROBE_TIMEOUT_MILLIS;
     }
 
     /**
@@ -34,16 +75,47 @@ public class CacheObjectFactory implements PoolableObjectFactory<Object> {
      * @param server Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
      */
     public CacheObjectFactory(String server) {
-        CacheObjectFactory.server = server;
+        this(server, DEFAULT_PROBE_INTERVAL_MILLIS, DEFAULT_PROBE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Use the server connection passed in
+     *
+     * @param server              Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
+     * @param probeIntervalMillis Minimum time between two connectivity probes of the same client.
+     * @param probeTimeoutMillis  Time a probe may take before the client is considered dead.
+     */
+    public CacheObjectFactory(String server, long probeIntervalMillis, long probeTimeoutMillis) {
+        this.server = server;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.probeTimeoutMillis = probeTimeoutMillis;
     }
 
+    /**
+     * Return the server this factory connects its clients to.
+     *
+     * @return Address of the memcached server including port number
+     */
+    public String getServer() {
+        return server;
+    }
 
-    public void activateObject(Object arg0) throws Exception {
 
+    public void activateObject(Object arg0) throws Exception {
+        // clients carry no per-borrow state
     }
 
+    /**
+     * Shut the client down so its I/O thread and sockets do not leak.
+     * <p/>
+     *
+     * @param arg0 The {@link MemcachedClient} evicted from the pool.
+     */
     public void destroyObject(Object arg0) throws Exception {
-
+        lastProbe.remove(arg0);
+        if (arg0 instanceof MemcachedClient) {
+            ((MemcachedClient) arg0).shutdown(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -53,15 +125,62 @@ public class CacheObjectFactory implements PoolableObjectFactory<Object> {
      * @return MemcachedClient client object
      */
     public Object makeObject() throws Exception {
-        MemcachedClient cache = new MemcachedClient(new BinaryConnectionFactory(), AddrUtil.getAddresses(server));
+        MemcachedClient cache = new PooledMemcachedClient(new BinaryConnectionFactory(), AddrUtil.getAddresses(server));
         return cache;
     }
 
-    public void passivateObject(Object arg0) throws Exception {
+    /**
+     * The failure of a borrow whose new client did not pass validation: the server is down, the pool is not full.
+     * Pools throw it instead of a {@link java.util.NoSuchElementException} so callers do not report a full pool.
+     */
+    static ConnectException unreachable(String server, Exception cause) {
+        ConnectException ex = new ConnectException("No memcache client for " + server + " passed validation, the server is unreachable");
+        ex.initCause(cause);
+        return ex;
+    }
 
+    public void passivateObject(Object arg0) throws Exception {
+        // clients carry no per-borrow state
     }
 
+    /**
+     * Check that a client can still talk to its server.
+     * <p/>
+     * A client is invalid when one of its connections was lost after it was probed. Otherwise the client is probed with a short timeout get, at most once per probe interval, so a
+     * dead server is noticed here rather than by a caller waiting for the full operation timeout.
+     *
+     * @param arg0 The {@link MemcachedClient} to validate.
+     * @return true if the client is usable
+     */
     public boolean validateObject(Object arg0) {
+        if (!(arg0 instanceof MemcachedClient)) {
+            return false;
+        }
+        MemcachedClient client = (MemcachedClient) arg0;
+        Long probed = lastProbe.get(client);
+        boolean connecting = false;
+        for (MemcachedNode node : client.getNodeLocator().getAll()) {
+            if (!node.isActive()) {
+                // spymemcached counts the first connect as a reconnect too, only a client that passed a probe lost its connection
+                if (probed != null) {
+                    logger.debug("Memcache client for " + server + " lost its connection, invalidating it");
+                    return false;
+                }
+                // still on its first connect, let the probe wait for it
+                connecting = true;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (!connecting && probed != null && now - probed < probeIntervalMillis) {
+            return true;
+        }
+        try {
+            client.asyncGet(PROBE_KEY).get(probeTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.debug("Memcache client for " + server + " failed its probe, invalidating it", e);
+            return false;
+        }
+        lastProbe.put(client, now);
         return true;
     }
 
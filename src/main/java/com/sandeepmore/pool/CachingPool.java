@@ -1,15 +1,26 @@
 package com.sandeepmore.pool;
 
+import net.spy.memcached.MemcachedClient;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.ResourceBundle;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- * CashingPool is a singelton class which creates the connection pools
+ * CashingPool creates the connection pools
  * The connections objects are of the type net.spy.memcached.MemcachedClient
- * The responsibility of this class is to create {@link #MAXACTIVE} number of connection pools
+ * The responsibility of this class is to create {@link #maxActive} number of connection pools
+ * Each pool has its own settings, {@link #getInstance()} returns the default one of the {@link CachingPoolRegistry}
  * <p/>
  *
  * @author Sandeep More
@@ -20,92 +31,171 @@ public class CachingPool implements ICachingPool {
     /**
      * Specifies number of objects in the pool
      */
-    private static int MAXACTIVE;     // Sets the cap on the number of objects that can be allocated by the pool.
+    private final int maxActive;     // Sets the cap on the number of objects that can be allocated by the pool.
     /**
      * Specifies the max time in seconds the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
      */
-    private static int MAXWAIT;     // Max time the borrowedObject() should block b4 throwing an exception
+    private final int maxWait;     // Max time the borrowedObject() should block b4 throwing an exception
     /**
      * Specifies the action to be taken when the pool is exhausted.  Valid values are:
      * GenericObjectPool.WHEN_EXHAUSTED_BLOCK, GenericObjectPool.WHEN_EXHAUSTED_GROW, GenericObjectPool.WHEN_EXHAUSTED_FAIL
      */
-    private static byte EXHAUSTED_ACTION = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
+    private final byte exhaustedAction;
 
-    private static ICachingPool instance = null; // sessions class instance
+    /**
+     * Threads used to create clients in parallel during the warm up, and the retry backoff when it fails.
+     */
+    private static final int WARMUP_THREADS = 16;
+    private static final long WARMUP_RETRY_MILLIS = 1000;
+    private static final long WARMUP_MAX_RETRY_MILLIS = 30000;
+
+    /**
+     * Interval of the background evictor that validates idle clients.
+     */
+    private static final long DEFAULT_EVICTION_RUN_MILLIS = 30000;
+    /**
+     * Start of the message of commons-pool when a new object fails validation.
+     */
+    private static final String NOT_VALIDATED = "Could not create a validated object";
+
+    private final String name;
     private GenericObjectPool<Object> cachePool;
     private final CacheObjectFactory cof;
+    private final PoolMetrics metrics = new PoolMetrics(this);
+    /**
+     * False until the warm up (if any) has verified all of its clients.
+     */
+    private volatile boolean ready = false;
+    private volatile boolean closed = false;
+    private ScheduledFuture<?> sizerRun;
+    private volatile ThreadAffinity affinity;
+    private ScheduledFuture<?> sizerSample;
 
     /**
      * Initialize the  Cashing Connection pool.
-     * sets the {@link #MAXACTIVE} and {@link #MAXWAIT} property for the connections from the properties file.
+     * sets the {@link #maxActive} and {@link #maxWait} property for the connections from the properties file.
      *
-     * @param cof Connection settings for caching bucket.
+     * @param name  Name of the pool in the {@link CachingPoolRegistry}.
+     * @param props Settings of the pool, see {@link CachingPoolRegistry#named(ResourceBundle, String)}.
      */
-    private CachingPool(CacheObjectFactory cof) {
-        this(cof, Integer.parseInt(ResourceBundle.getBundle("com.sandeepmore.pooling").getString("memcached.poolObjects")),
-                Integer.parseInt(ResourceBundle.getBundle("com.sandeepmore.pooling").getString("pool.MAXWAIT")),
-                ResourceBundle.getBundle("com.sandeepmore.pooling").getString("pool.exhaustedAction"));
+    CachingPool(String name, ResourceBundle props) {
+        this(name, new CacheObjectFactory(props), Integer.parseInt(props.getString("memcached.poolObjects").trim()),
+                Integer.parseInt(props.getString("pool.MAXWAIT").trim()),
+                props.getString("pool.exhaustedAction"),
+                readWarmupCount(props));
+        setEviction(props.containsKey("pool.evictionRunMillis")
+                        ? Long.parseLong(props.getString("pool.evictionRunMillis").trim()) : DEFAULT_EVICTION_RUN_MILLIS,
+                props.containsKey("pool.minEvictableIdleMillis")
+                        ? Long.parseLong(props.getString("pool.minEvictableIdleMillis").trim()) : -1);
+        // the evictor creates clients up to minIdle on each run
+        cachePool.setMinIdle(readMinIdle(props));
+        if (props.containsKey("pool.threadAffine") && Boolean.parseBoolean(props.getString("pool.threadAffine").trim())) {
+            enableThreadAffinity(Long.parseLong(props.getString("pool.threadAffineIdleMillis").trim()));
+        }
+        if (props.containsKey("pool.adaptive") && Boolean.parseBoolean(props.getString("pool.adaptive").trim())) {
+            enableAdaptiveSizing(Integer.parseInt(props.getString("pool.adaptiveFloor").trim()),
+                    Integer.parseInt(props.getString("pool.adaptiveCeiling").trim()),
+                    Long.parseLong(props.getString("pool.adaptiveTargetWaitMillis").trim()),
+                    Long.parseLong(props.getString("pool.adaptiveIntervalMillis").trim()));
+        }
     }
 
     /**
      * Initialize the  Cashing Connection pool.
-     * sets the {@link #MAXACTIVE} and {@link #MAXWAIT} property for the connections ignoring the settings in the pooling.properties file.
+     * sets the {@link #maxActive} and {@link #maxWait} property for the connections ignoring the settings in the pooling.properties file.
      *
      * @param cof             Connection settings for caching bucket.
      * @param maxactive       Specifies number of objects in the pool
      * @param maxwait         Specifies the max time in seconds the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
      * @param exhaustedAction Specifies the action to be taken when the pool is exhausted.  Valid values are: "block", "grow", "fail"
      */
-    private CachingPool(CacheObjectFactory cof, int maxactive, int maxwait, String exhaustedAction) {
+    CachingPool(CacheObjectFactory cof, int maxactive, int maxwait, String exhaustedAction) {
+        this(cof, maxactive, maxwait, exhaustedAction, 0);
+    }
+
+    /**
+     * Initialize the  Cashing Connection pool and warm it up in the background.
+     * {@link #isReady()} turns true once {@code warmupCount} clients were created in parallel and each answered a
+     * version round trip. A warm up that verifies fewer clients is retried with a backoff.
+     *
+     * @param cof             Connection settings for caching bucket.
+     * @param maxactive       Specifies number of objects in the pool
+     * @param maxwait         Specifies the max time in seconds the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
+     * @param exhaustedAction Specifies the action to be taken when the pool is exhausted.  Valid values are: "block", "grow", "fail"
+     * @param warmupCount     Number of clients to create before the pool reports ready, 0 to skip the warm up.
+     */
+    CachingPool(CacheObjectFactory cof, int maxactive, int maxwait, String exhaustedAction, int warmupCount) {
+        this(null, cof, maxactive, maxwait, exhaustedAction, warmupCount);
+    }
+
+    /**
+     * Initialize a named Cashing Connection pool, its metrics are registered under its name.
+     *
+     * @param name            Name of the pool in the {@link CachingPoolRegistry}, null for an unregistered pool.
+     * @param cof             Connection settings for caching bucket.
+     * @param maxactive       Specifies number of objects in the pool
+     * @param maxwait         Specifies the max time in seconds the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
+     * @param exhaustedAction Specifies the action to be taken when the pool is exhausted.  Valid values are: "block", "grow", "fail"
+     * @param warmupCount     Number of clients to create before the pool reports ready, 0 to skip the warm up.
+     */
+    CachingPool(String name, CacheObjectFactory cof, int maxactive, int maxwait, String exhaustedAction, int warmupCount) {
+        this.name = name;
         this.cof = cof;
-        logger.info("instantiating the Caching pool for server " + cof.server + " maxactive=" + maxactive +
-                " maxwait=" + maxwait + ". When exhausted this pool will " + exhaustedAction + ".");
+        logger.info("instantiating the Caching pool " + (name == null ? "" : name + " ") + "for server " + cof.server +
+                " maxactive=" + maxactive + " maxwait=" + maxwait + ". When exhausted this pool will " + exhaustedAction + ".");
 
         // create a genericObjectPool using CacheObjectFactory
         // CacheObjectFactory has all the setting for the getting the cache
         cachePool = new GenericObjectPool<Object>(cof);
 
-        // Parse out the exhausted action
-        if (exhaustedAction.trim().toLowerCase().equals("block")) {
-            EXHAUSTED_ACTION = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
-        }
-        if (exhaustedAction.trim().toLowerCase().equals("grow")) {
-            EXHAUSTED_ACTION = GenericObjectPool.WHEN_EXHAUSTED_GROW;
-        }
-        if (exhaustedAction.trim().toLowerCase().equals("fail")) {
-            EXHAUSTED_ACTION = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
+        // Parse out the exhausted action, the properties file may quote it
+        String action = exhaustedAction.trim().replace("\"", "").toLowerCase();
+        if (action.equals("block")) {
+            this.exhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+        } else if (action.equals("grow")) {
+            this.exhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_GROW;
+        } else {
+            this.exhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
         }
 
-        MAXACTIVE = maxactive;
-        MAXWAIT = maxwait;
+        this.maxActive = maxactive;
+        this.maxWait = maxwait;
 
         // initialize the pool properties
-        cachePool.setMaxActive(MAXACTIVE);
-        cachePool.setMaxWait(MAXWAIT);
-        cachePool.setWhenExhaustedAction(EXHAUSTED_ACTION); // Fail when the pool is empty
+        cachePool.setMaxActive(this.maxActive);
+        cachePool.setMaxWait(this.maxWait);
+        cachePool.setWhenExhaustedAction(this.exhaustedAction); // Fail when the pool is empty
+
+        // never hand out a dead client, see CacheObjectFactory#validateObject
+        cachePool.setTestOnBorrow(true);
+        cachePool.setTestWhileIdle(true);
+        setEviction(DEFAULT_EVICTION_RUN_MILLIS, -1);
+
+        // the default pool keeps the server as its MBean name
+        metrics.register(name == null || CachingPoolRegistry.DEFAULT_POOL.equals(name) ? cof.server : name + ":" + cof.server);
+
+        if (warmupCount > 0) {
+            startWarmup(Math.min(warmupCount, maxactive));
+        } else {
+            ready = true;
+        }
     }
 
 
     /**
-     * Returns the instance of a singelton CashingPool class
+     * Returns the default pool of the {@link CachingPoolRegistry}
      * <p/>
      *
      * @return CashingPool instance
      */
-    public static synchronized ICachingPool getInstance() {
-
-        // return the instance
-        if (instance == null) {
-            logger.debug("Creating a new singelton instance");
-            instance = new CachingPool(new CacheObjectFactory());
-        }
-        return instance;
-
+    public static ICachingPool getInstance() {
+        return CachingPoolRegistry.getPool(CachingPoolRegistry.DEFAULT_POOL);
     }
 
     /**
-     * Sets the singleton instance of CashingPool class using params rather than the properties file. This should only be called
-     * once and it should be called before any calls to @link com.dandeepmore.pool.CachingPool#getInstance()
+     * Sets the default pool using params rather than the properties file. This should only be called
+     * once and it should be called before any calls to @link com.dandeepmore.pool.CachingPool#getInstance(),
+     * use {@link CachingPoolRegistry#init(String, String, int, int, String, int)} for other pools.
      * <p/>
      *
      * @param server          Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
@@ -114,13 +204,22 @@ public class CachingPool implements ICachingPool {
      * @param exhaustedAction Specifies the action to be taken when the pool is exhausted.  Valid values are: "block", "grow", "fail"
      */
     public static ICachingPool init(String server, int maxactive, int maxwait, String exhaustedAction) {
+        return init(server, maxactive, maxwait, exhaustedAction, 0);
+    }
 
-        // return the instance
-        if (instance == null) {
-            logger.info("Creating a new singelton instance with server=" + server + " maxactive=" + maxactive + " maxwait=" + maxwait);
-            instance = new CachingPool(new CacheObjectFactory(server), maxactive, maxwait, exhaustedAction);
-        }
-        return instance;
+    /**
+     * Sets the default pool using params rather than the properties file and warms it up.
+     * The clients are created in parallel in the background, poll {@link #isReady()} before routing traffic here.
+     * <p/>
+     *
+     * @param server          Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
+     * @param maxactive       Specifies number of objects in the pool
+     * @param maxwait         Specifies the max time in seconds the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
+     * @param exhaustedAction Specifies the action to be taken when the pool is exhausted.  Valid values are: "block", "grow", "fail"
+     * @param warmupCount     Number of clients to create before the pool reports ready, 0 to skip the warm up.
+     */
+    public static ICachingPool init(String server, int maxactive, int maxwait, String exhaustedAction, int warmupCount) {
+        return CachingPoolRegistry.init(CachingPoolRegistry.DEFAULT_POOL, server, maxactive, maxwait, exhaustedAction, warmupCount);
     }
 
     /**
@@ -131,10 +230,34 @@ public class CachingPool implements ICachingPool {
      */
     public Object borrowObject() throws Exception {
         Object obj = null;
+        long start = System.nanoTime();
+        ThreadAffinity affinity = this.affinity;
+        if (affinity != null) {
+            obj = affinity.acquire();
+            if (obj != null) {
+                metrics.recordBorrowWait(System.nanoTime() - start);
+                return obj;
+            }
+        }
         try {
             obj = cachePool.borrowObject();
+            metrics.recordBorrowWait(System.nanoTime() - start);
+            if (affinity != null) {
+                affinity.bind(obj);
+            }
             return obj;
+        } catch (NoSuchElementException e) {
+            metrics.recordBorrowWait(System.nanoTime() - start);
+            if (e.getMessage() != null && e.getMessage().startsWith(NOT_VALIDATED)) {
+                // a new client failed its probe, the server is down rather than the pool full
+                metrics.recordError();
+                throw CacheObjectFactory.unreachable(cof.server, e);
+            }
+            // the pool is exhausted (or timed out waiting for an object)
+            metrics.recordPoolExhausted();
+            throw e;
         } catch (Exception e) {
+            metrics.recordError();
             if (obj != null) {
                 try {
                     cachePool.invalidateObject(obj);
@@ -155,6 +278,10 @@ public class CachingPool implements ICachingPool {
     public void returnObject(Object obj) {
         try {
             if (obj != null) {
+                ThreadAffinity affinity = this.affinity;
+                if (affinity != null && affinity.release(obj)) {
+                    return;
+                }
                 cachePool.returnObject(obj);
             }
         } catch (Exception e) {
@@ -171,6 +298,246 @@ public class CachingPool implements ICachingPool {
         return cof.server;
     }
 
+    public int getNumActive() {
+        return cachePool.getNumActive();
+    }
+
+    public int getNumIdle() {
+        return cachePool.getNumIdle();
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The name of this pool in the {@link CachingPoolRegistry}, null if it is not registered.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Configure the background evictor. Each run validates every idle client and destroys the dead ones,
+     * then tops the pool back up to its minIdle, pool.minIdle in the properties file.
+     * <p/>
+     *
+     * @param timeBetweenRunsMillis  Interval between two evictor runs, 0 or less disables the evictor.
+     * @param minEvictableIdleMillis Time after which an idle client is closed even if healthy, -1 to keep them.
+     */
+    public void setEviction(long timeBetweenRunsMillis, long minEvictableIdleMillis) {
+        cachePool.setNumTestsPerEvictionRun(-1); // test all the idle objects on each run
+        cachePool.setMinEvictableIdleTimeMillis(minEvictableIdleMillis);
+        cachePool.setTimeBetweenEvictionRunsMillis(timeBetweenRunsMillis);
+    }
+
+    /**
+     * Let the pool resize itself between {@code floor} and {@code ceiling} instead of keeping its maxactive.
+     * Every {@code intervalMillis} the pool grows when the borrow wait p99 went over {@code targetWaitMillis} or
+     * borrows found it exhausted, and shrinks when part of it stayed unused, see {@link PoolSizer}.
+     * <p/>
+     *
+     * @param floor            Smallest number of objects in the pool.
+     * @param ceiling          Largest number of objects in the pool.
+     * @param targetWaitMillis Borrow wait p99 in milliseconds above which the pool grows.
+     * @param intervalMillis   Time between two resizes.
+     */
+    public synchronized void enableAdaptiveSizing(int floor, int ceiling, long targetWaitMillis, long intervalMillis) {
+        if (floor < 1 || ceiling < floor) {
+            throw new IllegalArgumentException("Invalid adaptive pool bounds floor=" + floor + " ceiling=" + ceiling);
+        }
+        disableAdaptiveSizing();
+        logger.info("Adaptive sizing of the Caching pool for server " + cof.server + " between " + floor + " and " +
+                ceiling + " objects, target borrow wait " + targetWaitMillis + "ms");
+        setMaxActive(Math.max(floor, Math.min(ceiling, getMaxActive())));
+        final PoolSizer sizer = new PoolSizer(this, floor, ceiling, TimeUnit.MILLISECONDS.toNanos(targetWaitMillis));
+        long sampleMillis = Math.max(1, intervalMillis / 10);
+        sizerSample = PoolSizer.SCHEDULER.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sizer.sample();
+            }
+        }, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+        sizerRun = PoolSizer.SCHEDULER.scheduleAtFixedRate(sizer, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop resizing the pool, it keeps its current size.
+     */
+    public synchronized void disableAdaptiveSizing() {
+        if (sizerRun != null) {
+            sizerRun.cancel(false);
+            sizerSample.cancel(false);
+            sizerRun = null;
+            sizerSample = null;
+        }
+    }
+
+    /**
+     * Keep each thread bound to the first client it borrows, its later borrows and returns then skip the pool
+     * monitor. Clients go back to the pool when their thread dies or leaves them unused for {@code idleMillis},
+     * see {@link ThreadAffinity}. Best suited to long lived worker threads.
+     * <p/>
+     *
+     * @param idleMillis Time after which a client unused by its thread goes back to the pool.
+     */
+    public synchronized void enableThreadAffinity(long idleMillis) {
+        disableThreadAffinity();
+        logger.info("Binding clients of the Caching pool for server " + cof.server + " to threads, idle after " + idleMillis + "ms");
+        affinity = new ThreadAffinity(cachePool, cof, idleMillis);
+    }
+
+    /**
+     * Stop binding clients to threads, the bound clients go back to the pool.
+     */
+    public synchronized void disableThreadAffinity() {
+        if (affinity != null) {
+            affinity.close();
+            affinity = null;
+        }
+    }
+
+    /**
+     * @return The number of clients currently bound to a thread.
+     */
+    public int getNumBound() {
+        ThreadAffinity affinity = this.affinity;
+        return affinity == null ? 0 : affinity.size();
+    }
+
+    /**
+     * @return The number of objects the pool currently allows.
+     */
+    public int getMaxActive() {
+        return cachePool.getMaxActive();
+    }
+
+    /**
+     * Resize the pool. Idle objects above the new size are destroyed as they are returned.
+     *
+     * @param maxactive Specifies number of objects in the pool
+     */
+    void setMaxActive(int maxactive) {
+        cachePool.setMaxActive(maxactive);
+        cachePool.setMaxIdle(maxactive);
+    }
+
+    /**
+     * @return true once the warm up verified all of its clients, always true if the pool was not asked to warm up.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Close the pool: stop the warm up, the resizing and the thread affinity, unregister the metrics MBean and shut
+     * down the idle clients. Borrowed clients are shut down as they are returned, later borrows fail.
+     */
+    public synchronized void close() {
+        closed = true;
+        disableAdaptiveSizing();
+        disableThreadAffinity();
+        metrics.unregister();
+        try {
+            cachePool.close();
+        } catch (Exception e) {
+            logger.warn("Error closing the Caching pool for server " + cof.server, e);
+        }
+    }
+
+    /**
+     * Warm the pool up on a background thread, retrying with a backoff until all {@code count} clients answer.
+     */
+    private void startWarmup(final int count) {
+        // keep the warmed clients around when they are returned
+        cachePool.setMaxIdle(Math.max(cachePool.getMaxIdle(), count));
+        Thread warmer = new Thread(new Runnable() {
+            public void run() {
+                long backoff = WARMUP_RETRY_MILLIS;
+                while (!ready && !closed) {
+                    // idle clients verified by an earlier round are borrowed and verified again
+                    if (warmUp(count) == count) {
+                        ready = true;
+                        return;
+                    }
+                    logger.error("Warm up of the Caching pool for server " + cof.server + " failed, retrying in " + backoff + "ms");
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, WARMUP_MAX_RETRY_MILLIS);
+                }
+            }
+        }, "caching-pool-warmup-" + cof.server);
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * Create {@code count} clients in parallel, verify each one with a version round trip and put the good ones
+     * back in the pool as idle objects.
+     *
+     * @return The number of verified clients.
+     */
+    int warmUp(int count) {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(count, WARMUP_THREADS));
+        List<Future<Object>> borrowed = new ArrayList<Future<Object>>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                borrowed.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        // clients are held until every task is done, so each borrow creates a new one
+                        return cachePool.borrowObject();
+                    }
+                }));
+            }
+            int verified = 0;
+            for (Future<Object> future : borrowed) {
+                Object client;
+                try {
+                    client = future.get();
+                } catch (Exception e) {
+                    logger.warn("Could not create a memcache client for " + cof.server + " during warm up", e.getCause());
+                    continue;
+                }
+                if (!((MemcachedClient) client).getVersions().isEmpty()) {
+                    verified++;
+                    returnObject(client);
+                } else {
+                    logger.warn("A memcache client for " + cof.server + " did not answer during warm up");
+                    try {
+                        cachePool.invalidateObject(client);
+                    } catch (Exception e) {
+                        logger.warn("Error invalidating a memcache object after a failed warm up", e);
+                    }
+                }
+            }
+            logger.info("Warmed up " + verified + " of " + count + " clients for server " + cof.server + " in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            return verified;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Number of clients to warm up from pool.warmup / pool.minIdle, 0 when the warm up is off.
+     */
+    private static int readWarmupCount(ResourceBundle props) {
+        if (!props.containsKey("pool.warmup") || !Boolean.parseBoolean(props.getString("pool.warmup").trim())) {
+            return 0;
+        }
+        int minIdle = readMinIdle(props);
+        // without a minIdle the whole pool is warmed up
+        return minIdle > 0 ? minIdle : Integer.parseInt(props.getString("memcached.poolObjects").trim());
+    }
+
+    private static int readMinIdle(ResourceBundle props) {
+        return props.containsKey("pool.minIdle") ? Integer.parseInt(props.getString("pool.minIdle").trim()) : 0;
+    }
+
     /**
      * Just in case anyone tries to create a new instance ... stop them.
      */
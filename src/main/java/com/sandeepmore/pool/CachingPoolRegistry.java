@@ -0,0 +1,163 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+/**
+ * Registry of named cache pools, so traffic with different needs gets pools sized and configured on their own:
+ * a batch job exhausting its pool does not starve the interactive reads of another one.
+ * <p/>
+ * A pool missing from the registry is created from the pooling.properties file on first use. Every setting is
+ * looked up with the pool name as a prefix first and falls back to the unprefixed one, so a pool named "batch"
+ * reads batch.memcached.server, batch.memcached.poolObjects, batch.pool.exhaustedAction and so on, and shares
+ * whatever it does not override. {@link CachingPool#getInstance()} is the pool named {@link #DEFAULT_POOL}.
+ * <p/>
+ * pool.type picks the implementation: "generic" (the default) builds a {@link CachingPool}, "permit" builds a
+ * {@link PermitCachingPool} for callers on virtual threads.
+ * <p/>
+ *
+ * @author Sandeep More
+ */
+public final class CachingPoolRegistry {
+
+    private static final Log logger = LogFactory.getLog(CachingPoolRegistry.class);
+
+    /**
+     * Name of the pool behind {@link CachingPool#getInstance()}, it reads the unprefixed settings only.
+     */
+    public static final String DEFAULT_POOL = "default";
+
+    private static final Map<String, ICachingPool> pools = new LinkedHashMap<String, ICachingPool>();
+
+    private CachingPoolRegistry() {
+    }
+
+    /**
+     * Return the pool registered under the name, creating it from the pooling.properties file if there is none.
+     * <p/>
+     *
+     * @param name Name of the pool.
+     * @return The pool.
+     */
+    public static synchronized ICachingPool getPool(String name) {
+        ICachingPool pool = pools.get(name);
+        if (pool == null) {
+            logger.debug("Creating the caching pool " + name + " from the properties file");
+            ResourceBundle props = named(ResourceBundle.getBundle("com.sandeepmore.pooling"), name);
+            if (props.containsKey("pool.type") && "permit".equalsIgnoreCase(props.getString("pool.type").trim())) {
+                pool = new PermitCachingPool(new CacheObjectFactory(props),
+                        Integer.parseInt(props.getString("memcached.poolObjects").trim()),
+                        Long.parseLong(props.getString("pool.MAXWAIT").trim()));
+            } else {
+                pool = new CachingPool(name, props);
+            }
+            pools.put(name, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Create and register a pool using params rather than the properties file. A pool already registered under
+     * the name is returned as it is.
+     * <p/>
+     *
+     * @param name            Name of the pool.
+     * @param server          Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
+     * @param maxactive       Specifies number of objects in the pool
+     * @param maxwait         Specifies the max time the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
+     * @param exhaustedAction Specifies the action to be taken when the pool is exhausted.  Valid values are: "block", "grow", "fail"
+     * @param warmupCount     Number of clients to create before the pool reports ready, 0 to skip the warm up.
+     * @return The pool registered under the name.
+     */
+    public static synchronized ICachingPool init(String name, String server, int maxactive, int maxwait,
+                                                 String exhaustedAction, int warmupCount) {
+        ICachingPool pool = pools.get(name);
+        if (pool != null) {
+            logger.warn("A caching pool named " + name + " already exists for " + pool.getServer() + ", keeping it");
+            return pool;
+        }
+        logger.info("Creating the caching pool " + name + " with server=" + server + " maxactive=" + maxactive + " maxwait=" + maxwait);
+        pool = new CachingPool(name, new CacheObjectFactory(server), maxactive, maxwait, exhaustedAction, warmupCount);
+        pools.put(name, pool);
+        return pool;
+    }
+
+    /**
+     * Register a pool built by the caller, a {@link ClusterCachingPool} or a {@link SharedClientPool} for instance.
+     * <p/>
+     *
+     * @param name Name of the pool.
+     * @param pool The pool.
+     * @throws IllegalStateException if a pool is already registered under the name.
+     */
+    public static synchronized void register(String name, ICachingPool pool) {
+        if (pools.containsKey(name)) {
+            throw new IllegalStateException("A caching pool named " + name + " is already registered");
+        }
+        pools.put(name, pool);
+    }
+
+    /**
+     * Take a pool out of the registry, the next {@link #getPool(String)} creates a new one. The pool itself is
+     * left as it is, callers still holding it keep using it.
+     * <p/>
+     *
+     * @param name Name of the pool.
+     * @return The pool that was registered, null if there was none.
+     */
+    public static synchronized ICachingPool remove(String name) {
+        return pools.remove(name);
+    }
+
+    /**
+     * @return The names of the registered pools, in registration order.
+     */
+    public static synchronized Set<String> getNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(pools.keySet()));
+    }
+
+    /**
+     * View of the settings of a named pool: name.key when it is set, key otherwise.
+     */
+    static ResourceBundle named(ResourceBundle props, String name) {
+        return DEFAULT_POOL.equals(name) ? props : new NamedBundle(props, name + ".");
+    }
+
+    private static final class NamedBundle extends ResourceBundle {
+        private final ResourceBundle props;
+        private final String prefix;
+
+        NamedBundle(ResourceBundle props, String prefix) {
+            this.props = props;
+            this.prefix = prefix;
+        }
+
+        protected Object handleGetObject(String key) {
+            if (props.containsKey(prefix + key)) {
+                return props.getObject(prefix + key);
+            }
+            return props.containsKey(key) ? props.getObject(key) : null;
+        }
+
+        protected Set<String> handleKeySet() {
+            Set<String> keys = new HashSet<String>();
+            for (String key : props.keySet()) {
+                keys.add(key.startsWith(prefix) ? key.substring(prefix.length()) : key);
+            }
+            return keys;
+        }
+
+        public Enumeration<String> getKeys() {
+            return Collections.enumeration(handleKeySet());
+        }
+    }
+}
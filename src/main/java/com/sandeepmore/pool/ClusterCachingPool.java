@@ -0,0 +1,269 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * ClusterCachingPool spreads keys over several memcached nodes using ketama consistent hashing.
+ * Every node gets its own {@link CachingPool} and its own health state (see {@link ClusterNode}); a slow or
+ * dead node is ejected for a while and only its keys are remapped to the next node on the ring.
+ * <p/>
+ * The node list is read from memcached.server (space or comma separated), sizing applies to each node.
+ * <p/>
+ *
+ * @author Sandeep More
+ */
+public class ClusterCachingPool implements IRoutingCachingPool {
+
+    private static final Log logger = LogFactory.getLog(ClusterCachingPool.class);
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final int DEFAULT_EJECT_SECONDS = 30;
+
+    private static final Predicate<ClusterNode> AVAILABLE = new Predicate<ClusterNode>() {
+        public boolean test(ClusterNode node) {
+            return node.isAvailable();
+        }
+    };
+
+    private final KetamaRing<ClusterNode> ring;
+    private final String servers;
+    private final AtomicInteger next = new AtomicInteger();
+    private final PoolMetrics metrics = new PoolMetrics(this);
+    /**
+     * Node each client handed out by {@link #borrowObject()} came from, clients compare by identity.
+     */
+    private final ConcurrentMap<Object, ClusterNode> borrowedFrom = new ConcurrentHashMap<Object, ClusterNode>();
+
+    /**
+     * Build the cluster from the settings in the pooling.properties file.
+     */
+    public ClusterCachingPool() {
+        this(readBundle());
+    }
+
+    private ClusterCachingPool(ResourceBundle props) {
+        this(splitServers(props.getString("memcached.server")),
+                Integer.parseInt(props.getString("memcached.poolObjects").trim()),
+                Integer.parseInt(props.getString("pool.MAXWAIT").trim()),
+                props.getString("pool.exhaustedAction"),
+                props.containsKey("cluster.failureThreshold") ? Integer.parseInt(props.getString("cluster.failureThreshold").trim()) : DEFAULT_FAILURE_THRESHOLD,
+                props.containsKey("cluster.ejectSeconds") ? Integer.parseInt(props.getString("cluster.ejectSeconds").trim()) : DEFAULT_EJECT_SECONDS);
+    }
+
+    /**
+     * Build the cluster ignoring the settings in the pooling.properties file.
+     *
+     * @param servers          Addresses of the memcached nodes including port numbers.
+     * @param maxactive        Specifies number of objects in each node's pool
+     * @param maxwait          Specifies the max time the {@link com.sandeepmore.pool.ICachingPool#borrowObject()} should block before quitting.
+     * @param exhaustedAction  Specifies the action to be taken when a node's pool is exhausted.  Valid values are: "block", "grow", "fail"
+     * @param failureThreshold Consecutive failures that eject a node.
+     * @param ejectSeconds     Time in seconds an ejected node stays out of the ring.
+     */
+    public ClusterCachingPool(List<String> servers, int maxactive, int maxwait, String exhaustedAction,
+                              int failureThreshold, int ejectSeconds) {
+        List<ClusterNode> nodes = new ArrayList<ClusterNode>(servers.size());
+        for (String server : servers) {
+            CachingPool pool = new CachingPool(new CacheObjectFactory(server), maxactive, maxwait, exhaustedAction);
+            nodes.add(new ClusterNode(server, pool, failureThreshold, ejectSeconds * 1000L));
+        }
+        this.ring = new KetamaRing<ClusterNode>(nodes);
+        this.servers = join(servers);
+        logger.info("instantiating the cluster caching pool for servers " + this.servers + " failureThreshold=" +
+                failureThreshold + " ejectSeconds=" + ejectSeconds);
+        metrics.register("cluster:" + this.servers);
+    }
+
+    /**
+     * Return the pool of the node owning the key, or of the next available node if the owner is ejected.
+     * <p/>
+     *
+     * @param key key used to lookup
+     * @return The pool to borrow a client for this key from.
+     */
+    public ICachingPool route(String key) {
+        return ring.route(key, AVAILABLE);
+    }
+
+    /**
+     * Return the pools of the first available nodes clockwise from the key, the same walk that remaps the keys
+     * of an ejected node, so the first one is always the pool {@link #route(String)} picks.
+     * <p/>
+     *
+     * @param key   key used to lookup
+     * @param count number of distinct nodes wanted
+     * @return Up to {@code count} distinct pools, at least the one the key is routed to.
+     */
+    public List<ICachingPool> replicas(String key, int count) {
+        List<ICachingPool> result = new ArrayList<ICachingPool>(count);
+        List<ClusterNode> candidates = ring.sequence(key, count);
+        if (!allAvailable(candidates)) {
+            // some are ejected, walk further so their copies move on like their keys do
+            candidates = ring.sequence(key, ring.getNodes().size());
+        }
+        for (ClusterNode node : candidates) {
+            if (result.size() < count && node.isAvailable()) {
+                result.add(node);
+            }
+        }
+        if (result.isEmpty()) {
+            result.add(route(key));
+        }
+        return result;
+    }
+
+    public void reportSuccess(ICachingPool node) {
+        if (node instanceof ClusterNode) {
+            ((ClusterNode) node).recordSuccess();
+        }
+    }
+
+    public void reportFailure(ICachingPool node) {
+        if (node instanceof ClusterNode) {
+            ((ClusterNode) node).recordFailure();
+        }
+    }
+
+    /**
+     * Obtains an instance from the next available node, for callers that do not work on a key.
+     * <p/>
+     *
+     * @throws Exception
+     */
+    public Object borrowObject() throws Exception {
+        List<ClusterNode> nodes = ring.getNodes();
+        for (int i = 0; i < nodes.size(); i++) {
+            ClusterNode node = nodes.get((next.getAndIncrement() & Integer.MAX_VALUE) % nodes.size());
+            if (node.isAvailable()) {
+                Object obj = node.borrowObject();
+                borrowedFrom.put(obj, node);
+                return obj;
+            }
+        }
+        throw new NoSuchElementException("No memcache node available in " + servers);
+    }
+
+    /**
+     * Return an instance to the node it was borrowed from.
+     * <p/>
+     *
+     * @param obj The object to return to the pool.
+     */
+    public void returnObject(Object obj) {
+        if (obj == null) {
+            return;
+        }
+        // clients are created per node, hand it back to the node it came from
+        ClusterNode node = borrowedFrom.remove(obj);
+        if (node == null) {
+            logger.error("Returned a memcache object that was not borrowed from " + servers);
+            return;
+        }
+        node.returnObject(obj);
+    }
+
+    /**
+     * Return the servers associated with this cache pool
+     *
+     * @return The node addresses, comma separated
+     */
+    public String getServer() {
+        return servers;
+    }
+
+    /**
+     * @return Number of clients borrowed from all nodes.
+     */
+    public int getNumActive() {
+        int active = 0;
+        for (ClusterNode node : ring.getNodes()) {
+            active += node.getNumActive();
+        }
+        return active;
+    }
+
+    /**
+     * @return Number of idle clients over all nodes.
+     */
+    public int getNumIdle() {
+        int idle = 0;
+        for (ClusterNode node : ring.getNodes()) {
+            idle += node.getNumIdle();
+        }
+        return idle;
+    }
+
+    /**
+     * @return true once every node of the cluster is ready.
+     */
+    public boolean isReady() {
+        for (ClusterNode node : ring.getNodes()) {
+            if (!node.isReady()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Operations on keys are recorded against the node they were routed to, see {@link ClusterNode#getMetrics()}.
+     *
+     * @return The metrics of borrows that were not routed by key.
+     */
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The nodes of this cluster.
+     */
+    public List<ClusterNode> getNodes() {
+        return ring.getNodes();
+    }
+
+    private static boolean allAvailable(List<ClusterNode> nodes) {
+        for (ClusterNode node : nodes) {
+            if (!node.isAvailable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a server string the way AddrUtil does, on spaces and commas.
+     */
+    static List<String> splitServers(String servers) {
+        List<String> result = new ArrayList<String>();
+        for (String server : servers.trim().split("[\\s,]+")) {
+            if (server.length() > 0) {
+                result.add(server);
+            }
+        }
+        return result;
+    }
+
+    private static String join(List<String> servers) {
+        StringBuilder sb = new StringBuilder();
+        for (String server : servers) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(server);
+        }
+        return sb.toString();
+    }
+
+    private static ResourceBundle readBundle() {
+        return ResourceBundle.getBundle("com.sandeepmore.pooling");
+    }
+}
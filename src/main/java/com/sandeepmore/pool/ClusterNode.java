@@ -0,0 +1,134 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One memcached node of a {@link ClusterCachingPool}: its own pool of clients plus its health state.
+ * <p/>
+ * After {@code failureThreshold} consecutive failures the node is ejected for {@code ejectMillis} and its
+ * keys are routed to the next node on the ring. Once the ejection ends the node takes keys again, a single
+ * further failure ejects it again until a success clears the count.
+ *
+ * @author Sandeep More
+ */
+public class ClusterNode implements ICachingPool {
+
+    private static final Log logger = LogFactory.getLog(ClusterNode.class);
+
+    private final ICachingPool pool;
+    private final String server;
+    private final int failureThreshold;
+    private final long ejectMillis;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil = 0;
+
+    /**
+     * @param server           Address of the memcached node including port number.
+     * @param pool             Pool of clients connected to this node only.
+     * @param failureThreshold Consecutive failures that eject the node.
+     * @param ejectMillis      Time in milliseconds an ejected node stays out of the ring.
+     */
+    ClusterNode(String server, ICachingPool pool, int failureThreshold, long ejectMillis) {
+        this.server = server;
+        this.pool = pool;
+        this.failureThreshold = failureThreshold;
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * Obtains an instance from the node's pool, a failure to connect counts against the node's health.
+     * <p/>
+     *
+     * @throws Exception
+     */
+    public Object borrowObject() throws Exception {
+        try {
+            return pool.borrowObject();
+        } catch (NoSuchElementException e) {
+            // the pool is full, that says nothing about the node itself
+            throw e;
+        } catch (Exception e) {
+            recordFailure();
+            throw e;
+        }
+    }
+
+    /**
+     * Return an instance to the node's pool.
+     * <p/>
+     *
+     * @param obj The object to return to the pool.
+     */
+    public void returnObject(Object obj) {
+        pool.returnObject(obj);
+    }
+
+    /**
+     * Return the server associated with this cache pool
+     *
+     * @return The server string of this node
+     */
+    public String getServer() {
+        return server;
+    }
+
+    public int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    public int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    public boolean isReady() {
+        return pool.isReady();
+    }
+
+    /**
+     * @return The metrics of this node's pool.
+     */
+    public PoolMetrics getMetrics() {
+        return pool.getMetrics();
+    }
+
+    /**
+     * @return true unless the node is currently ejected.
+     */
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= ejectedUntil;
+    }
+
+    /**
+     * An operation on this node completed, clear the failure count.
+     */
+    public void recordSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * An operation on this node failed or timed out, eject the node once the threshold is reached.
+     */
+    public void recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && isAvailable()) {
+            ejectedUntil = System.currentTimeMillis() + ejectMillis;
+            // one more failure after the ejection ends is enough to eject it again
+            consecutiveFailures.set(failureThreshold - 1);
+            logger.warn("Ejecting memcache node " + server + " for " + ejectMillis + "ms after " + failureThreshold +
+                    " consecutive failures");
+        }
+    }
+
+    /**
+     * The server string is what places the node on the ketama ring.
+     */
+    public String toString() {
+        return server;
+    }
+}
@@ -25,4 +25,32 @@ public interface ICachingPool {
      * @return The server string associated with the ConnectionObjectFactory
      */
     public String getServer();
+
+    /**
+     * Return the number of instances currently borrowed from this pool.
+     *
+     * @return The number of active instances
+     */
+    public int getNumActive();
+
+    /**
+     * Return the number of instances currently idle in this pool.
+     *
+     * @return The number of idle instances
+     */
+    public int getNumIdle();
+
+    /**
+     * Return the metrics recorded for this pool, brokers record their operations here as well.
+     *
+     * @return The metrics of this pool
+     */
+    public PoolMetrics getMetrics();
+
+    /**
+     * Return whether the pool finished warming up and is ready to take traffic.
+     *
+     * @return true once the pool is ready
+     */
+    public boolean isReady();
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+package com.sandeepmore.pool;
+
+import java.util.List;
+
+/**
+ * A cache pool spread over several memcached nodes. Keys are routed to the pool of the node that owns them
+ * and callers report how operations on a node went, so unhealthy nodes can be taken out of rotation.
+ */
+public interface IRoutingCachingPool extends ICachingPool {
+
+    /**
+     * Return the pool of the node that should serve the key.
+     * <p/>
+     *
+     * @param key key used to lookup
+     * @return The pool to borrow a client for this key from.
+     */
+    public ICachingPool route(String key);
+
+    /**
+     * Return the pools of the nodes that should hold copies of the key, starting with {@link #route(String)}.
+     * <p/>
+     *
+     * @param key   key used to lookup
+     * @param count number of distinct nodes wanted
+     * @return Up to {@code count} distinct pools, at least the one the key is routed to.
+     */
+    public List<ICachingPool> replicas(String key, int count);
+
+    /**
+     * Report that an operation on a routed pool completed.
+     *
+     * @param node The pool returned by {@link #route(String)}.
+     */
+    public void reportSuccess(ICachingPool node);
+
+    /**
+     * Report that an operation on a routed pool failed or timed out.
+     *
+     * @param node The pool returned by {@link #route(String)}.
+     */
+    public void reportFailure(ICachingPool node);
+}
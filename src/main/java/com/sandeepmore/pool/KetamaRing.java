@@ -0,0 +1,129 @@
+package com.sandeepmore.pool;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * An immutable ketama consistent hash ring: every node gets {@link #POINTS_PER_NODE} points derived from the
+ * MD5 of "node-i" and keys are hashed with {@link DefaultHashAlgorithm#KETAMA_HASH}.
+ * <p/>
+ * This is the scheme of spymemcached's KETAMA locator but not its ring: spymemcached hashes the socket address
+ * of a node ("host/ip:port"), this ring hashes the node's {@code toString()}, so the two place keys differently.
+ * <p/>
+ * Adding or removing one of N nodes only moves the keys that land on its points, roughly 1/N of them.
+ *
+ * @author Sandeep More
+ */
+public final class KetamaRing<N> {
+
+    /**
+     * Number of points each node gets on the ring, same as spymemcached.
+     */
+    static final int POINTS_PER_NODE = 160;
+
+    private final TreeMap<Long, N> ring = new TreeMap<Long, N>();
+    private final List<N> nodes;
+
+    /**
+     * @param nodes Nodes placed on the ring, their {@code toString()} is hashed so it must be stable
+     *              (a host:port string works well).
+     */
+    public KetamaRing(List<N> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ketama ring needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<N>(nodes));
+        for (N node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE / 4; i++) {
+                byte[] digest = DefaultHashAlgorithm.computeMd5(node.toString() + "-" + i);
+                for (int h = 0; h < 4; h++) {
+                    long k = ((long) (digest[3 + h * 4] & 0xFF) << 24)
+                            | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+                            | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+                            | (digest[h * 4] & 0xFF);
+                    ring.put(k, node);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key key used to lookup
+     * @return The node owning the key.
+     */
+    public N primary(String key) {
+        return nodeAt(DefaultHashAlgorithm.KETAMA_HASH.hash(key));
+    }
+
+    /**
+     * Walk the ring clockwise from the key and return the first available node, so only the keys of an
+     * unavailable node move. If no node is available the primary is returned.
+     *
+     * @param key          key used to lookup
+     * @param availability decides which nodes may take keys
+     * @return The node the key should be sent to.
+     */
+    public N route(String key, Predicate<N> availability) {
+        long hash = DefaultHashAlgorithm.KETAMA_HASH.hash(key);
+        N primary = nodeAt(hash);
+        if (availability.test(primary)) {
+            return primary;
+        }
+        Map.Entry<Long, N> entry = ring.higherEntry(hash);
+        for (int seen = 0; seen < ring.size(); seen++) {
+            if (entry == null) {
+                entry = ring.firstEntry();
+            }
+            if (entry.getValue() != primary && availability.test(entry.getValue())) {
+                return entry.getValue();
+            }
+            entry = ring.higherEntry(entry.getKey());
+        }
+        return primary;
+    }
+
+    /**
+     * Return up to {@code count} distinct nodes for the key, in ring order starting with the primary.
+     *
+     * @param key   key used to lookup
+     * @param count number of distinct nodes wanted
+     * @return The distinct nodes, never more than the number of nodes on the ring.
+     */
+    public List<N> sequence(String key, int count) {
+        int wanted = Math.min(count, nodes.size());
+        List<N> result = new ArrayList<N>(wanted);
+        long hash = DefaultHashAlgorithm.KETAMA_HASH.hash(key);
+        Map.Entry<Long, N> entry = ring.ceilingEntry(hash);
+        for (int seen = 0; seen < ring.size() && result.size() < wanted; seen++) {
+            if (entry == null) {
+                entry = ring.firstEntry();
+            }
+            if (!result.contains(entry.getValue())) {
+                result.add(entry.getValue());
+            }
+            entry = ring.higherEntry(entry.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * @return The nodes on the ring.
+     */
+    public List<N> getNodes() {
+        return nodes;
+    }
+
+    private N nodeAt(long hash) {
+        Map.Entry<Long, N> entry = ring.ceilingEntry(hash);
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+}
@@ -0,0 +1,199 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PermitCachingPool hands out up to {@code maxActive} clients without any monitor on the borrow and return path,
+ * for callers running on virtual or otherwise very many threads.
+ * <p/>
+ * A borrow parks on a fair {@link Semaphore} holding one permit per client, so waiters are served in arrival
+ * order and park through {@link java.util.concurrent.locks.LockSupport} instead of blocking a carrier thread in
+ * a synchronized monitor like {@link CachingPool}'s GenericObjectPool does. Idle clients sit on a lock free
+ * stack, the most recently used first, and are created on demand up to {@code maxActive}. The pool size only
+ * bounds the connections, any number of threads can wait for them.
+ * <p/>
+ * Clients are validated on borrow like in {@link CachingPool}, see {@link CacheObjectFactory#validateObject(Object)}.
+ * There is no background evictor, idle clients stay open until {@link #close()}.
+ * <p/>
+ *
+ * @author Sandeep More
+ */
+public class PermitCachingPool implements ICachingPool {
+
+    private static final Log logger = LogFactory.getLog(PermitCachingPool.class);
+
+    private final CacheObjectFactory cof;
+    private final int maxActive;
+    private final long maxWaitMillis;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Object> idle = new ConcurrentLinkedDeque<Object>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final PoolMetrics metrics = new PoolMetrics(this);
+    private volatile boolean closed = false;
+
+    /**
+     * @param server        Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
+     * @param maxActive     Specifies number of objects in the pool
+     * @param maxWaitMillis Max time {@link #borrowObject()} waits for a client, 0 to fail right away, negative to wait as long as it takes.
+     */
+    public PermitCachingPool(String server, int maxActive, long maxWaitMillis) {
+        this(new CacheObjectFactory(server), maxActive, maxWaitMillis);
+    }
+
+    /**
+     * @param cof           Connection settings for caching bucket.
+     * @param maxActive     Specifies number of objects in the pool
+     * @param maxWaitMillis Max time {@link #borrowObject()} waits for a client, 0 to fail right away, negative to wait as long as it takes.
+     */
+    public PermitCachingPool(CacheObjectFactory cof, int maxActive, long maxWaitMillis) {
+        if (maxActive <= 0) {
+            throw new IllegalArgumentException("maxActive must be positive, was " + maxActive);
+        }
+        this.cof = cof;
+        this.maxActive = maxActive;
+        this.maxWaitMillis = maxWaitMillis;
+        this.permits = new Semaphore(maxActive, true);
+        logger.info("instantiating the permit caching pool for server " + cof.getServer() + " maxactive=" + maxActive +
+                " maxwait=" + maxWaitMillis);
+        metrics.register("permit:" + cof.getServer());
+    }
+
+    /**
+     * Obtains an instance from the pool, waiting for a permit up to the max wait.
+     * <p/>
+     *
+     * @throws NoSuchElementException if no client freed up in time.
+     * @throws java.net.ConnectException if a new client could not be validated, the server is down.
+     * @throws Exception
+     */
+    public Object borrowObject() throws Exception {
+        if (closed) {
+            throw new IllegalStateException("Pool for " + cof.getServer() + " is closed");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        if (maxWaitMillis < 0) {
+            permits.acquire();
+            acquired = true;
+        } else {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        }
+        metrics.recordBorrowWait(System.nanoTime() - start);
+        if (!acquired) {
+            metrics.recordPoolExhausted();
+            throw new NoSuchElementException("Timeout waiting for a memcache client of " + cof.getServer());
+        }
+        try {
+            Object obj;
+            while ((obj = idle.pollFirst()) != null) {
+                if (cof.validateObject(obj)) {
+                    break;
+                }
+                destroy(obj);
+            }
+            if (obj == null) {
+                obj = cof.makeObject();
+                if (!cof.validateObject(obj)) {
+                    destroy(obj);
+                    throw CacheObjectFactory.unreachable(cof.getServer(), null);
+                }
+            }
+            active.incrementAndGet();
+            return obj;
+        } catch (Exception e) {
+            permits.release();
+            if (!(e instanceof NoSuchElementException)) {
+                metrics.recordError();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return an instance to the pool and hand its permit to the next waiter.
+     * <p/>
+     *
+     * @param obj The object to return to the pool.
+     */
+    public void returnObject(Object obj) {
+        if (obj == null) {
+            return;
+        }
+        active.decrementAndGet();
+        if (closed) {
+            destroy(obj);
+        } else {
+            idle.offerFirst(obj);
+        }
+        permits.release();
+    }
+
+    /**
+     * Return the server associated with this cache pool
+     *
+     * @return The server string associated with the ConnectionObjectFactory
+     */
+    public String getServer() {
+        return cof.getServer();
+    }
+
+    public int getNumActive() {
+        return active.get();
+    }
+
+    public int getNumIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return Number of threads waiting for a client, approximate.
+     */
+    public int getNumWaiting() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return The number of objects the pool allows.
+     */
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * @return Always true, clients are created on demand.
+     */
+    public boolean isReady() {
+        return true;
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Shut down the idle clients, borrowed ones are shut down as they are returned.
+     */
+    public void close() {
+        closed = true;
+        metrics.unregister();
+        Object obj;
+        while ((obj = idle.pollFirst()) != null) {
+            destroy(obj);
+        }
+    }
+
+    private void destroy(Object obj) {
+        try {
+            cof.destroyObject(obj);
+        } catch (Exception e) {
+            logger.warn("Error shutting down a memcache client of " + cof.getServer(), e);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one cache pool, published as an MBean under
+ * {@code com.sandeepmore:type=CachingPool,name=<server>}.
+ * <p/>
+ * Pools record borrow waits and exhausted events, brokers record operation latencies, hits, misses, timeouts
+ * and errors against the pool they borrowed from. Recording only touches {@link LongAdder}s and
+ * {@link LatencyHistogram}s, it never takes a lock.
+ * <p/>
+ * Set and delete latencies come only from the paths that wait for memcached to answer: the async broker,
+ * the write-behind queue and counters. The set and delete of {@code CachingBroker} return once the operation
+ * is queued on the client and are not recorded, so {@link #getSetCount()} and {@link #getDeleteCount()} do not
+ * count them either.
+ *
+ * @author Sandeep More
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+    private static final Log logger = LogFactory.getLog(PoolMetrics.class);
+    private static final String DOMAIN = "com.sandeepmore";
+
+    private final ICachingPool pool;
+    private volatile ObjectName objectName;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder poolExhausted = new LongAdder();
+    private final LongAdder casRetries = new LongAdder();
+    private final LongAdder casConflicts = new LongAdder();
+
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final LatencyHistogram setLatency = new LatencyHistogram();
+    private final LatencyHistogram deleteLatency = new LatencyHistogram();
+    private final LatencyHistogram borrowWait = new LatencyHistogram();
+    private final LatencyHistogram casLatency = new LatencyHistogram();
+
+    /**
+     * @param pool Pool the active and idle counts are read from.
+     */
+    public PoolMetrics(ICachingPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Register this MBean with the platform MBean server. If the name is taken a numeric suffix is added.
+     * Failures are logged, metrics keep being recorded either way.
+     *
+     * @param name name of the pool, usually its server string
+     */
+    public void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int attempt = 1; attempt < 100; attempt++) {
+            try {
+                ObjectName candidate = new ObjectName(DOMAIN + ":type=CachingPool,name=" +
+                        ObjectName.quote(attempt == 1 ? name : name + "#" + attempt));
+                server.registerMBean(this, candidate);
+                objectName = candidate;
+                return;
+            } catch (InstanceAlreadyExistsException e) {
+                // try the next suffix
+            } catch (Exception e) {
+                logger.warn("Could not register the cache pool metrics for " + name, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove this MBean from the platform MBean server.
+     */
+    public void unregister() {
+        ObjectName name = objectName;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (Exception e) {
+                logger.warn("Could not unregister the cache pool metrics " + name, e);
+            }
+            objectName = null;
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    // ---- recording
+
+    public void recordGet(long nanos, boolean hit) {
+        getLatency.record(nanos);
+        if (hit) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    /**
+     * Record one bulk get, its latency counts once and every key counts as a hit or a miss.
+     */
+    public void recordGetMulti(long nanos, int hitCount, int missCount) {
+        getLatency.record(nanos);
+        hits.add(hitCount);
+        misses.add(missCount);
+    }
+
+    public void recordSet(long nanos) {
+        setLatency.record(nanos);
+    }
+
+    public void recordDelete(long nanos) {
+        deleteLatency.record(nanos);
+    }
+
+    /**
+     * Record one successful compare-and-swap update, {@code retries} is the number of attempts that lost a race.
+     */
+    public void recordCas(long nanos, int retries) {
+        casLatency.record(nanos);
+        casRetries.add(retries);
+    }
+
+    /**
+     * Record a compare-and-swap update that gave up after losing every attempt.
+     */
+    public void recordCasConflict(int retries) {
+        casRetries.add(retries);
+        casConflicts.increment();
+    }
+
+    public void recordBorrowWait(long nanos) {
+        borrowWait.record(nanos);
+    }
+
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    public void recordPoolExhausted() {
+        poolExhausted.increment();
+    }
+
+    // ---- reading
+
+    public LatencyHistogram getGetLatency() {
+        return getLatency;
+    }
+
+    public LatencyHistogram getSetLatency() {
+        return setLatency;
+    }
+
+    public LatencyHistogram getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    public LatencyHistogram getCasLatency() {
+        return casLatency;
+    }
+
+    public LatencyHistogram getBorrowWait() {
+        return borrowWait;
+    }
+
+    public String getServer() {
+        return pool.getServer();
+    }
+
+    public int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    public int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    public boolean isReady() {
+        return pool.isReady();
+    }
+
+    public long getGetCount() {
+        return getLatency.getCount();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public long getSetCount() {
+        return setLatency.getCount();
+    }
+
+    public long getDeleteCount() {
+        return deleteLatency.getCount();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    public long getPoolExhaustedCount() {
+        return poolExhausted.sum();
+    }
+
+    public long getCasCount() {
+        return casLatency.getCount();
+    }
+
+    public long getCasRetryCount() {
+        return casRetries.sum();
+    }
+
+    public long getCasConflictCount() {
+        return casConflicts.sum();
+    }
+
+    public double getCasContentionRatio() {
+        long attempts = casLatency.getCount() + casConflicts.sum() + casRetries.sum();
+        return attempts == 0 ? 0.0 : (double) casRetries.sum() / attempts;
+    }
+
+    public long getCasLatencyP99Micros() {
+        return micros(casLatency.getPercentile(99));
+    }
+
+    public long getGetLatencyMeanMicros() {
+        return micros(getLatency.getMean());
+    }
+
+    public long getGetLatencyP50Micros() {
+        return micros(getLatency.getPercentile(50));
+    }
+
+    public long getGetLatencyP99Micros() {
+        return micros(getLatency.getPercentile(99));
+    }
+
+    public long getGetLatencyP999Micros() {
+        return micros(getLatency.getPercentile(99.9));
+    }
+
+    public long getSetLatencyP99Micros() {
+        return micros(setLatency.getPercentile(99));
+    }
+
+    public long getDeleteLatencyP99Micros() {
+        return micros(deleteLatency.getPercentile(99));
+    }
+
+    public long getBorrowWaitMeanMicros() {
+        return micros(borrowWait.getMean());
+    }
+
+    public long getBorrowWaitP99Micros() {
+        return micros(borrowWait.getPercentile(99));
+    }
+
+    public long getBorrowWaitMaxMicros() {
+        return micros(borrowWait.getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,63 @@
+package com.sandeepmore.pool;
+
+
+/**
+ * JMX view of the {@link PoolMetrics} of one cache pool. Latencies are reported in microseconds, sets and
+ * deletes only from the operations that waited for memcached to answer.
+ */
+public interface PoolMetricsMBean {
+
+    public String getServer();
+
+    public int getNumActive();
+
+    public int getNumIdle();
+
+    public boolean isReady();
+
+    public long getGetCount();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public double getHitRatio();
+
+    public long getSetCount();
+
+    public long getDeleteCount();
+
+    public long getTimeoutCount();
+
+    public long getErrorCount();
+
+    public long getPoolExhaustedCount();
+
+    public long getCasCount();
+
+    public long getCasRetryCount();
+
+    public long getCasConflictCount();
+
+    public double getCasContentionRatio();
+
+    public long getCasLatencyP99Micros();
+
+    public long getGetLatencyMeanMicros();
+
+    public long getGetLatencyP50Micros();
+
+    public long getGetLatencyP99Micros();
+
+    public long getGetLatencyP999Micros();
+
+    public long getSetLatencyP99Micros();
+
+    public long getDeleteLatencyP99Micros();
+
+    public long getBorrowWaitMeanMicros();
+
+    public long getBorrowWaitP99Micros();
+
+    public long getBorrowWaitMaxMicros();
+}
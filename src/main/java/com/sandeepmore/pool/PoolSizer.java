@@ -0,0 +1,116 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Resizes a {@link CachingPool} between a floor and a ceiling from what its metrics observed since the last run.
+ * <p/>
+ * The pool grows by a quarter when the borrow wait p99 of the window exceeds the target or when borrows found
+ * the pool exhausted. It shrinks by half of the capacity that stayed unused through the whole window otherwise.
+ * Growing reacts on the first bad window while shrinking needs a quiet one, so a burst does not make the pool
+ * oscillate.
+ *
+ * @author Sandeep More
+ */
+public class PoolSizer implements Runnable {
+
+    private static final Log logger = LogFactory.getLog(PoolSizer.class);
+
+    /**
+     * All the sizers share one daemon thread, a run is a couple of snapshots and never blocks.
+     */
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "caching-pool-sizer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CachingPool pool;
+    private final int floor;
+    private final int ceiling;
+    private final long targetWaitNanos;
+
+    private long[] lastWait;
+    private long lastExhausted;
+    private int minUnused = Integer.MAX_VALUE;
+
+    /**
+     * @param pool            The pool to resize.
+     * @param floor           Smallest size the pool shrinks to.
+     * @param ceiling         Largest size the pool grows to.
+     * @param targetWaitNanos Borrow wait p99 above which the pool grows.
+     */
+    PoolSizer(CachingPool pool, int floor, int ceiling, long targetWaitNanos) {
+        this.pool = pool;
+        this.floor = floor;
+        this.ceiling = ceiling;
+        this.targetWaitNanos = targetWaitNanos;
+        this.lastWait = pool.getMetrics().getBorrowWait().snapshot();
+        this.lastExhausted = pool.getMetrics().getPoolExhaustedCount();
+    }
+
+    /**
+     * Sample how many clients the pool could still hand out, scheduled more often than {@link #run()} so a short burst is not missed.
+     */
+    synchronized void sample() {
+        minUnused = Math.min(minUnused, pool.getMaxActive() - pool.getNumActive());
+    }
+
+    public synchronized void run() {
+        try {
+            sample();
+            long[] wait = pool.getMetrics().getBorrowWait().snapshot();
+            long exhausted = pool.getMetrics().getPoolExhaustedCount();
+            long[] window = new long[wait.length];
+            for (int i = 0; i < wait.length; i++) {
+                window[i] = wait[i] - lastWait[i];
+            }
+            long p99 = LatencyHistogram.percentile(window, 99);
+            int current = pool.getMaxActive();
+            int next = nextSize(current, floor, ceiling, p99, targetWaitNanos, exhausted - lastExhausted, minUnused);
+            if (next != current) {
+                logger.info("Resizing the Caching pool for server " + pool.getServer() + " from " + current + " to " +
+                        next + " (borrow wait p99=" + p99 / 1000 + "us, exhausted=" + (exhausted - lastExhausted) +
+                        ", unused=" + minUnused + ")");
+                pool.setMaxActive(next);
+            }
+            lastWait = wait;
+            lastExhausted = exhausted;
+            minUnused = Integer.MAX_VALUE;
+        } catch (RuntimeException e) {
+            // never let an exception cancel the schedule
+            logger.error("Error resizing the Caching pool for server " + pool.getServer(), e);
+        }
+    }
+
+    /**
+     * Compute the next size of a pool from one window of observations.
+     * <p/>
+     *
+     * @param current         Current size of the pool.
+     * @param floor           Smallest size the pool shrinks to.
+     * @param ceiling         Largest size the pool grows to.
+     * @param waitP99Nanos    Borrow wait p99 over the window.
+     * @param targetWaitNanos Borrow wait p99 above which the pool grows.
+     * @param exhausted       Number of borrows that found the pool exhausted during the window.
+     * @param minUnused       Fewest clients left to borrow seen during the window.
+     * @return The size the pool should have, between floor and ceiling.
+     */
+    public static int nextSize(int current, int floor, int ceiling, long waitP99Nanos, long targetWaitNanos,
+                               long exhausted, int minUnused) {
+        int next = current;
+        if (exhausted > 0 || waitP99Nanos > targetWaitNanos) {
+            next = current + Math.max(1, current / 4);
+        } else if (minUnused > 0 && minUnused != Integer.MAX_VALUE) {
+            next = current - Math.max(1, minUnused / 2);
+        }
+        return Math.max(floor, Math.min(ceiling, next));
+    }
+}
@@ -0,0 +1,34 @@
+package com.sandeepmore.pool;
+
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.MemcachedClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * The {@link MemcachedClient} created by the {@link CacheObjectFactory}. spymemcached keeps the operation timeout
+ * of a client to itself, this one hands it out so the brokers wait for a reply as long as the client would.
+ * <p/>
+ *
+ * @author Sandeep More
+ */
+public class PooledMemcachedClient extends MemcachedClient {
+
+    /**
+     * @param cf    Connection settings of the client.
+     * @param addrs Addresses of the memcached servers.
+     * @throws IOException if the connections cannot be set up.
+     */
+    public PooledMemcachedClient(ConnectionFactory cf, List<InetSocketAddress> addrs) throws IOException {
+        super(cf, addrs);
+    }
+
+    /**
+     * @return The operation timeout in milliseconds of the connection factory the client was created with.
+     */
+    public long getOperationTimeout() {
+        return operationTimeout;
+    }
+}
@@ -0,0 +1,164 @@
+package com.sandeepmore.pool;
+
+import net.spy.memcached.MemcachedClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SharedClientPool keeps a small fixed set of long lived {@link MemcachedClient} instances and hands them
+ * out round-robin to every caller, without exclusive borrowing and without locking.
+ * <p/>
+ * Every {@link MemcachedClient} owns an I/O thread and multiplexes any number of concurrent operations, so a
+ * handful of shared clients carry the same throughput as a large borrow/return pool with far fewer threads
+ * and sockets. {@link #returnObject(Object)} is a no-op, callers must never shut a borrowed client down.
+ * <p/>
+ *
+ * @author Sandeep More
+ */
+public class SharedClientPool implements ICachingPool {
+
+    private static final Log logger = LogFactory.getLog(SharedClientPool.class);
+    /**
+     * Number of shared clients used when memcached.sharedClients is not set.
+     */
+    private static final int DEFAULT_CLIENTS = 2;
+    /**
+     * Seconds a shared client may spend draining its queue on shutdown.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5;
+
+    private final MemcachedClient[] clients;
+    private final AtomicInteger next = new AtomicInteger();
+    private final CacheObjectFactory cof;
+    private final PoolMetrics metrics = new PoolMetrics(this);
+
+    /**
+     * Create the shared clients using memcached.server and memcached.sharedClients from the properties file.
+     */
+    public SharedClientPool() {
+        this(new CacheObjectFactory(), readClientCount());
+    }
+
+    /**
+     * Create the shared clients ignoring the settings in the pooling.properties file.
+     *
+     * @param server      Address of the memcached server including port number (e.g. memcached.something.cfg.use1.cache.amazonaws.com:11211)
+     * @param clientCount Number of long lived clients to share between callers.
+     */
+    public SharedClientPool(String server, int clientCount) {
+        this(new CacheObjectFactory(server), clientCount);
+    }
+
+    /**
+     * Create the shared clients using the given factory.
+     *
+     * @param cof         Connection settings for caching bucket.
+     * @param clientCount Number of long lived clients to share between callers.
+     */
+    public SharedClientPool(CacheObjectFactory cof, int clientCount) {
+        if (clientCount <= 0) {
+            throw new IllegalArgumentException("clientCount must be positive, was " + clientCount);
+        }
+        this.cof = cof;
+        this.clients = new MemcachedClient[clientCount];
+        logger.info("instantiating the shared client pool for server " + cof.getServer() + " clients=" + clientCount);
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                clients[i] = (MemcachedClient) cof.makeObject();
+            } catch (Exception e) {
+                shutdown();
+                throw new IllegalStateException("Could not create a memcache client for " + cof.getServer(), e);
+            }
+        }
+        metrics.register("shared:" + cof.getServer());
+    }
+
+    /**
+     * Hands out the next shared client, the caller does not get exclusive use of it.
+     * <p/>
+     *
+     * @return A shared {@link MemcachedClient}.
+     */
+    public Object borrowObject() {
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % clients.length;
+        return clients[index];
+    }
+
+    /**
+     * Shared clients are never checked out, nothing to return.
+     * <p/>
+     *
+     * @param obj The object to return to the pool.
+     */
+    public void returnObject(Object obj) {
+    }
+
+    /**
+     * Return the server associated with this cache pool
+     *
+     * @return The server string associated with the ConnectionObjectFactory
+     */
+    public String getServer() {
+        return cof.getServer();
+    }
+
+    /**
+     * Shared clients are never checked out exclusively.
+     */
+    public int getNumActive() {
+        return 0;
+    }
+
+    /**
+     * @return Number of shared clients.
+     */
+    public int getNumIdle() {
+        return clients.length;
+    }
+
+    /**
+     * @return Always true, the clients are created in the constructor.
+     */
+    public boolean isReady() {
+        return true;
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Number of shared clients.
+     */
+    public int getClientCount() {
+        return clients.length;
+    }
+
+    /**
+     * Shut down every shared client and its I/O thread.
+     */
+    public void shutdown() {
+        metrics.unregister();
+        for (MemcachedClient client : clients) {
+            if (client != null) {
+                try {
+                    client.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    logger.warn("Error shutting down a shared memcache client", e);
+                }
+            }
+        }
+    }
+
+    private static int readClientCount() {
+        ResourceBundle props = ResourceBundle.getBundle("com.sandeepmore.pooling");
+        if (props.containsKey("memcached.sharedClients")) {
+            return Integer.parseInt(props.getString("memcached.sharedClients").trim());
+        }
+        return DEFAULT_CLIENTS;
+    }
+}
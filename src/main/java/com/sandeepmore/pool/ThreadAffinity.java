@@ -0,0 +1,202 @@
+package com.sandeepmore.pool;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Binds each thread of a {@link CachingPool} to the client it borrowed first, so its next borrows and returns
+ * are a thread local lookup and a compare-and-set instead of a trip through the {@link GenericObjectPool} monitor.
+ * <p/>
+ * A bound client stays borrowed from the underlying pool. A background reaper gives it back when its thread
+ * died or did not use it for {@code idleMillis}, and invalidates it when it fails validation. To leave clients
+ * for the threads that are not bound, at most three quarters of the pool are bound at any time.
+ *
+ * @author Sandeep More
+ */
+class ThreadAffinity {
+
+    private static final Log logger = LogFactory.getLog(ThreadAffinity.class);
+
+    /**
+     * Shared by all the pools, a reaper run may block on a validation probe.
+     */
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "caching-pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A client bound to a thread. {@code inUse} is held by the owner between borrow and return, and by the
+     * reaper while it inspects the binding, a reclaimed binding keeps it forever.
+     */
+    private static final class Binding {
+        final Object client;
+        final WeakReference<Thread> owner;
+        final AtomicBoolean inUse = new AtomicBoolean(true);
+        volatile long lastUsed = System.nanoTime();
+        volatile boolean reclaimed = false;
+
+        Binding(Object client, Thread owner) {
+            this.client = client;
+            this.owner = new WeakReference<Thread>(owner);
+        }
+    }
+
+    private final GenericObjectPool<Object> pool;
+    private final CacheObjectFactory cof;
+    private final long idleNanos;
+    private final ThreadLocal<Binding> bound = new ThreadLocal<Binding>();
+    private final Set<Binding> bindings = ConcurrentHashMap.newKeySet();
+    private final ScheduledFuture<?> reaper;
+    private volatile boolean closed = false;
+
+    /**
+     * @param pool       The pool the clients are borrowed from.
+     * @param cof        The factory used to validate bound clients.
+     * @param idleMillis Time after which a client unused by its thread goes back to the pool.
+     */
+    ThreadAffinity(GenericObjectPool<Object> pool, CacheObjectFactory cof, long idleMillis) {
+        this.pool = pool;
+        this.cof = cof;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        long period = Math.max(100, Math.min(idleMillis / 4, 10000));
+        this.reaper = REAPER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                reap();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The client bound to the calling thread, or null when the thread has to borrow from the pool.
+     */
+    Object acquire() {
+        Binding binding = bound.get();
+        if (binding == null) {
+            return null;
+        }
+        if (binding.reclaimed) {
+            bound.remove();
+            return null;
+        }
+        // fails on a nested borrow, or while the reaper looks at the binding
+        if (!binding.inUse.compareAndSet(false, true)) {
+            return null;
+        }
+        return binding.client;
+    }
+
+    /**
+     * Bind a client the calling thread just borrowed from the pool, unless the thread already has one or enough
+     * clients are bound.
+     *
+     * @param client A client borrowed by the calling thread.
+     */
+    void bind(Object client) {
+        if (closed) {
+            return;
+        }
+        Binding current = bound.get();
+        if (current != null && !current.reclaimed) {
+            return;
+        }
+        int maxActive = pool.getMaxActive();
+        if (maxActive > 0 && bindings.size() >= maxActive - Math.max(1, maxActive / 4)) {
+            return;
+        }
+        Binding binding = new Binding(client, Thread.currentThread());
+        bindings.add(binding);
+        bound.set(binding);
+    }
+
+    /**
+     * @param client A client returned by the calling thread.
+     * @return true if the client is the one bound to the thread, it then stays borrowed.
+     */
+    boolean release(Object client) {
+        Binding binding = bound.get();
+        if (binding == null || binding.client != client) {
+            return false;
+        }
+        if (closed) {
+            bound.remove();
+            reclaim(binding, true);
+            return true;
+        }
+        binding.lastUsed = System.nanoTime();
+        binding.inUse.set(false);
+        return true;
+    }
+
+    /**
+     * @return The number of clients currently bound to a thread.
+     */
+    int size() {
+        return bindings.size();
+    }
+
+    /**
+     * Stop binding clients and give the idle bound clients back, the ones in use go back when returned.
+     */
+    void close() {
+        closed = true;
+        reaper.cancel(false);
+        REAPER.execute(new Runnable() {
+            public void run() {
+                reap();
+            }
+        });
+    }
+
+    /**
+     * Give back the clients of dead or idle threads, and invalidate the ones that fail validation.
+     */
+    void reap() {
+        long now = System.nanoTime();
+        for (Binding binding : bindings) {
+            Thread owner = binding.owner.get();
+            boolean dead = owner == null || !owner.isAlive();
+            if (binding.inUse.compareAndSet(false, true)) {
+                if (dead || closed || now - binding.lastUsed > idleNanos) {
+                    reclaim(binding, true);
+                } else if (!cof.validateObject(binding.client)) {
+                    logger.info("A client bound to thread " + owner.getName() + " failed validation, invalidating it");
+                    reclaim(binding, false);
+                } else {
+                    binding.inUse.set(false);
+                }
+            } else if (dead) {
+                // the thread died between a borrow and a return, the client state is unknown
+                reclaim(binding, false);
+            }
+        }
+    }
+
+    private void reclaim(Binding binding, boolean healthy) {
+        binding.reclaimed = true;
+        bindings.remove(binding);
+        try {
+            if (healthy) {
+                pool.returnObject(binding.client);
+            } else {
+                pool.invalidateObject(binding.client);
+            }
+        } catch (Exception e) {
+            logger.warn("Error giving a bound memcache object back to the pool", e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import com.sandeepmore.caching.AsyncCachingBroker;
+import com.sandeepmore.caching.CachingException;
+import com.sandeepmore.caching.codec.CodecRegistry;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * <p/>
+ * JUnit test for the non blocking AsyncCachingBroker
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> The poller completes many queued operations
+ * <LI> Values encoded by the codecs round trip between the async and the blocking broker
+ * <LI> An operation without a reply fails once the client's operation timeout has passed
+ * <LI> Pending operations complete after shutdown, new ones are rejected
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitAsyncCachingBrokerTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+    private int numOfValues = 200;
+    private AsyncCachingBroker acb;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        acb = new AsyncCachingBroker(pool);
+    }
+
+    protected void tearDown() throws Exception {
+        acb.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * <p>
+     * Sets, gets and deletes queued together all complete with their results.
+     * </p>
+     */
+    @Test
+    public void testPoller() throws Exception {
+        List<CompletableFuture<Boolean>> sets = new ArrayList<CompletableFuture<Boolean>>(numOfValues);
+        for (int i = 0; i < numOfValues; i++) {
+            sets.add(acb.setAsync(junitKey + i, 0, junitVal + i));
+        }
+        for (CompletableFuture<Boolean> set : sets) {
+            assertTrue(set.get());
+        }
+        List<CompletableFuture<Object>> gets = new ArrayList<CompletableFuture<Object>>(numOfValues);
+        for (int i = 0; i < numOfValues; i++) {
+            gets.add(acb.getAsync(junitKey + i));
+        }
+        for (int i = 0; i < numOfValues; i++) {
+            assertEquals(junitVal + i, gets.get(i).get());
+        }
+        assertTrue(acb.deleteAsync(junitKey + 0).get());
+        assertNull(acb.getAsync(junitKey + 0).get());
+        assertEquals(junitVal + 1, cb.get(junitKey + 1));
+    }
+
+    /**
+     * <p>
+     * An Integer stored under its codec id is read back as an Integer both ways.
+     * </p>
+     */
+    @Test
+    public void testCodecRoundTrip() throws Exception {
+        CodecRegistry codecs = new CodecRegistry();
+        cb.setCodecs(codecs);
+        acb.setCodecs(codecs);
+        cb.set(junitKey, 0, 42);
+        assertEquals(42, acb.getAsync(junitKey).get());
+        assertTrue(acb.setAsync(junitKey, 0, 43).get());
+        assertEquals(43, cb.get(junitKey));
+    }
+
+    /**
+     * <p>
+     * A server slower than the operation timeout fails the future with a timeout.
+     * </p>
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        assertTrue(acb.setAsync(junitKey, 0, junitVal).get());
+        server.setReplyDelayMillis(3000);
+        long start = System.currentTimeMillis();
+        try {
+            acb.getAsync(junitKey).get();
+            fail("The get timed out");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CachingException);
+            assertTrue(ex.getCause().getCause() instanceof TimeoutException);
+        } finally {
+            server.setReplyDelayMillis(0);
+        }
+        assertTrue("Failed before the reply", System.currentTimeMillis() - start < 3000);
+        assertEquals(1, pool.getMetrics().getTimeoutCount());
+    }
+
+    /**
+     * <p>
+     * An operation queued before shutdown still completes, one queued after fails right away.
+     * </p>
+     */
+    @Test
+    public void testShutdown() throws Exception {
+        assertTrue(acb.setAsync(junitKey, 0, junitVal).get());
+        server.setReplyDelayMillis(200);
+        CompletableFuture<Object> pending = acb.getAsync(junitKey);
+        acb.shutdown();
+        try {
+            acb.getAsync(junitKey).get();
+            fail("The broker is shut down");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CachingException);
+        }
+        assertEquals(junitVal, pending.get());
+    }
+}
@@ -0,0 +1,60 @@
+import com.sandeepmore.pool.CacheObjectFactory;
+import junit.framework.TestCase;
+import net.spy.memcached.MemcachedClient;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+
+
+/**
+ * <p/>
+ * JUnit test for the client validation of the CacheObjectFactory
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Clients that cannot reach their server fail validation within the probe timeout
+ * <LI> Objects that are not clients are never valid
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitCacheObjectFactoryTest extends TestCase {
+
+    private long probeTimeout = 200;
+
+    /**
+     * <p>
+     * A client pointing to a closed port is invalid and is shut down by destroyObject.
+     * </p>
+     */
+    @Test
+    public void testDeadClientIsInvalid() throws Exception {
+        // grab a free port and close it so nothing listens there
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        CacheObjectFactory cof = new CacheObjectFactory("localhost:" + port, 1000, probeTimeout);
+        MemcachedClient client = (MemcachedClient) cof.makeObject();
+        try {
+            long start = System.currentTimeMillis();
+            assertFalse(cof.validateObject(client));
+            assertTrue(System.currentTimeMillis() - start < probeTimeout * 5);
+        } finally {
+            cof.destroyObject(client);
+        }
+    }
+
+    /**
+     * <p>
+     * Only memcached clients can be validated.
+     * </p>
+     */
+    @Test
+    public void testNonClientIsInvalid() throws Exception {
+        CacheObjectFactory cof = new CacheObjectFactory("localhost:11211");
+        assertFalse(cof.validateObject("not a client"));
+        cof.destroyObject("not a client");
+    }
+}
@@ -0,0 +1,93 @@
+import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.pool.CachingPoolRegistry;
+import com.sandeepmore.pool.ClusterCachingPool;
+import com.sandeepmore.pool.ICachingPool;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.ResourceBundle;
+
+
+/**
+ * <p/>
+ * JUnit test for the registry of named pools
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Named pools keep their own server and sizing
+ * <LI> A name always returns the same pool
+ * <LI> Settings a named pool does not override come from the default ones
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitCachingPoolRegistryTest extends TestCase {
+
+    private String junitKey = "junit";
+
+    /**
+     * <p>
+     * Two pools initialized with different settings keep them.
+     * </p>
+     */
+    @Test
+    public void testNamedPoolsAreIndependent() {
+        ICachingPool session = CachingPoolRegistry.init(junitKey + "Session", "localhost:11211", 8, 10, "fail", 0);
+        ICachingPool batch = CachingPoolRegistry.init(junitKey + "Batch", "localhost:11212", 2, 1000, "block", 0);
+        try {
+            assertNotSame(session, batch);
+            assertEquals(8, ((CachingPool) session).getMaxActive());
+            assertEquals(2, ((CachingPool) batch).getMaxActive());
+            assertEquals("localhost:11211", session.getServer());
+            assertEquals("localhost:11212", batch.getServer());
+            assertSame("A second init keeps the first pool", session,
+                    CachingPoolRegistry.init(junitKey + "Session", "localhost:11213", 20, 10, "grow", 0));
+            assertSame(session, CachingPoolRegistry.getPool(junitKey + "Session"));
+            assertTrue(CachingPoolRegistry.getNames().contains(junitKey + "Batch"));
+        } finally {
+            CachingPoolRegistry.remove(junitKey + "Session");
+            CachingPoolRegistry.remove(junitKey + "Batch");
+        }
+        assertFalse(CachingPoolRegistry.getNames().contains(junitKey + "Session"));
+    }
+
+    /**
+     * <p>
+     * A pool without settings of its own is built from the default ones.
+     * </p>
+     */
+    @Test
+    public void testDefaultsAreInherited() {
+        ResourceBundle props = ResourceBundle.getBundle("com.sandeepmore.pooling");
+        ICachingPool pool = CachingPoolRegistry.getPool(junitKey + "Inherited");
+        try {
+            assertEquals(props.getString("memcached.server"), pool.getServer());
+            assertEquals(Integer.parseInt(props.getString("memcached.poolObjects").trim()), ((CachingPool) pool).getMaxActive());
+            assertEquals(junitKey + "Inherited", ((CachingPool) pool).getName());
+        } finally {
+            CachingPoolRegistry.remove(junitKey + "Inherited");
+        }
+    }
+
+    /**
+     * <p>
+     * Pools built by the caller can be registered once per name.
+     * </p>
+     */
+    @Test
+    public void testRegister() {
+        ICachingPool pool = new ClusterCachingPool(Arrays.asList("localhost:11211", "localhost:11212"), 1, 10, "fail", 3, 30);
+        CachingPoolRegistry.register(junitKey + "Cluster", pool);
+        try {
+            assertSame(pool, CachingPoolRegistry.getPool(junitKey + "Cluster"));
+            CachingPoolRegistry.register(junitKey + "Cluster", pool);
+            fail("A name can only be registered once");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            CachingPoolRegistry.remove(junitKey + "Cluster");
+        }
+    }
+}
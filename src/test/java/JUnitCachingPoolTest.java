@@ -0,0 +1,132 @@
+import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.pool.CachingPoolRegistry;
+import com.sandeepmore.pool.ICachingPool;
+import com.sandeepmore.testing.LoopbackMemcached;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+
+
+/**
+ * <p/>
+ * JUnit test for the commons-pool backed CachingPool
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> A new client of a live server passes validation
+ * <LI> A server that is down fails the borrow as unreachable, not as a full pool
+ * <LI> A warmed up pool is ready once all its clients are verified, not while its server is down
+ * <LI> Closing the pool unregisters its metrics MBean and fails later borrows
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitCachingPoolTest extends TestCase {
+
+    private String junitKey = "junitPool";
+    private LoopbackMemcached server;
+
+    protected void setUp() throws Exception {
+        server = new LoopbackMemcached();
+    }
+
+    protected void tearDown() throws Exception {
+        ICachingPool pool = CachingPoolRegistry.remove(junitKey);
+        if (pool != null) {
+            ((CachingPool) pool).close();
+        }
+        server.close();
+    }
+
+    /**
+     * <p>
+     * Borrowing from a live server hands out a client.
+     * </p>
+     */
+    @Test
+    public void testBorrow() throws Exception {
+        ICachingPool pool = CachingPoolRegistry.init(junitKey, server.getServer(), 2, 1000, "fail", 0);
+        Object client = pool.borrowObject();
+        assertNotNull(client);
+        pool.returnObject(client);
+    }
+
+    /**
+     * <p>
+     * A client that cannot reach its server fails validation, the borrow reports the server down.
+     * </p>
+     */
+    @Test
+    public void testServerDown() throws Exception {
+        String down = server.getServer();
+        server.close();
+        ICachingPool pool = CachingPoolRegistry.init(junitKey, down, 2, 1000, "fail", 0);
+        try {
+            pool.borrowObject();
+            fail("The server is down");
+        } catch (ConnectException ex) {
+            assertEquals(1, pool.getMetrics().getErrorCount());
+            assertEquals(0, pool.getMetrics().getPoolExhaustedCount());
+        }
+    }
+
+    /**
+     * <p>
+     * A closed pool is gone from the MBean server and hands out no more clients.
+     * </p>
+     */
+    @Test
+    public void testClose() throws Exception {
+        CachingPool pool = (CachingPool) CachingPoolRegistry.init(junitKey, server.getServer(), 2, 1000, "fail", 0);
+        pool.returnObject(pool.borrowObject());
+        ObjectName name = pool.getMetrics().getObjectName();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        pool.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertEquals(0, pool.getNumIdle());
+        try {
+            pool.borrowObject();
+            fail("The pool is closed");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        // closing twice is harmless
+        pool.close();
+    }
+
+    /**
+     * <p>
+     * The warm up creates and verifies every client before the pool reports ready, they stay idle in the pool.
+     * </p>
+     */
+    @Test
+    public void testWarmup() throws Exception {
+        ICachingPool pool = CachingPoolRegistry.init(junitKey, server.getServer(), 4, 1000, "block", 3);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pool.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("The warm up finished", pool.isReady());
+        assertEquals(3, pool.getNumIdle());
+        assertEquals(0, pool.getNumActive());
+    }
+
+    /**
+     * <p>
+     * A pool warming up against a server that is down does not report ready.
+     * </p>
+     */
+    @Test
+    public void testWarmupServerDown() throws Exception {
+        String down = server.getServer();
+        server.close();
+        ICachingPool pool = CachingPoolRegistry.init(junitKey, down, 4, 1000, "block", 3);
+        Thread.sleep(1000);
+        assertFalse("No client was verified", pool.isReady());
+        assertEquals(0, pool.getNumIdle());
+    }
+}
@@ -0,0 +1,118 @@
+import com.sandeepmore.caching.AsyncCachingBroker;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import net.spy.memcached.CASValue;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * <p/>
+ * JUnit test for values stored in chunks
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> A value above the chunk size is split and reassembled by GET, GETS, GETBYTES and UPDATE
+ * <LI> A chunk that does not match the CRC of the manifest or is missing reads as a miss
+ * <LI> The async broker fails a chunked read rather than returning the manifest
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitChunkedValuesTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private int chunkSize = 1000;
+    private String junitVal;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        cb.setChunkSize(chunkSize);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; value.length() < 10 * chunkSize; i++) {
+            value.append(i).append(',');
+        }
+        junitVal = value.toString();
+        cb.set(junitKey, 0, junitVal);
+    }
+
+    /**
+     * <p>
+     * Every read path returns the whole value.
+     * </p>
+     */
+    @Test
+    public void testSplitAndReassemble() throws Exception {
+        assertTrue("The value is split", server.getKeys().size() >= 10);
+        assertEquals(junitVal, cb.get(junitKey));
+        CASValue<Object> value = cb.gets(junitKey);
+        assertEquals(junitVal, value.getValue());
+        assertTrue("The encoded bytes are reassembled", cb.getBytes(junitKey).length > chunkSize);
+        assertEquals(junitVal + "x", cb.update(junitKey, 0, new UnaryOperator<Object>() {
+            public Object apply(Object current) {
+                return current + "x";
+            }
+        }));
+        assertEquals(junitVal + "x", cb.get(junitKey));
+    }
+
+    /**
+     * <p>
+     * A chunk overwritten with other bytes fails the CRC and the value reads as a miss.
+     * </p>
+     */
+    @Test
+    public void testCrcMismatch() throws Exception {
+        String chunk = chunkKey(1);
+        cb.setBytes(chunk, 0, new byte[cb.getBytes(chunk).length]);
+        assertNull("A corrupted value is a miss", cb.get(junitKey));
+        assertNull(cb.gets(junitKey));
+    }
+
+    /**
+     * <p>
+     * A missing chunk reads as a miss, an update replaces the value through the CAS of its manifest.
+     * </p>
+     */
+    @Test
+    public void testMissingChunk() throws Exception {
+        cb.delete(chunkKey(0));
+        assertNull("A value missing a chunk is a miss", cb.get(junitKey));
+        assertEquals("new", cb.update(junitKey, 0, new UnaryOperator<Object>() {
+            public Object apply(Object current) {
+                assertNull(current);
+                return "new";
+            }
+        }));
+        assertEquals("new", cb.get(junitKey));
+    }
+
+    /**
+     * <p>
+     * The async broker reports a chunked value instead of returning its manifest.
+     * </p>
+     */
+    @Test
+    public void testAsyncRead() throws Exception {
+        AsyncCachingBroker acb = new AsyncCachingBroker(pool);
+        try {
+            acb.getAsync(junitKey).get();
+            fail("A chunked value is not read by the async broker");
+        } catch (ExecutionException e) {
+            // expected
+        } finally {
+            acb.shutdown();
+        }
+    }
+
+    private String chunkKey(int index) {
+        for (String key : server.getKeys()) {
+            if (key.startsWith(junitKey + "#") && key.endsWith(":" + index)) {
+                return key;
+            }
+        }
+        throw new AssertionError("No chunk " + index);
+    }
+}
@@ -0,0 +1,112 @@
+import com.sandeepmore.caching.codec.BuiltinCodecs;
+import com.sandeepmore.caching.codec.CodecRegistry;
+import com.sandeepmore.caching.codec.RawTranscoder;
+import com.sandeepmore.caching.codec.ValueCodec;
+import junit.framework.TestCase;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * <p/>
+ * JUnit test for the value codecs
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Round trips through the built-in codecs
+ * <LI> Codecs registered per type and per key prefix
+ * <LI> Values written without codecs stay readable
+ * <LI> Raw bytes are stored without a copy and read back as byte[]
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitCodecRegistryTest extends TestCase {
+
+    private String junitVal = "Memcached using pooling";
+
+    /**
+     * <p>
+     * Built-in types survive a round trip and are not serialized.
+     * </p>
+     */
+    @Test
+    public void testBuiltinRoundTrips() {
+        CodecRegistry codecs = new CodecRegistry();
+        Object[] values = {junitVal, 42, -42L, true, (short) -7, (byte) 3, 1.5f, -2.25d, 'x'};
+        for (Object value : values) {
+            CachedData data = codecs.encode(value);
+            assertEquals("Round trip of " + value.getClass(), value, codecs.decode(data));
+        }
+        byte[] raw = junitVal.getBytes();
+        assertSame("byte[] is stored as is", raw, codecs.encode(raw).getData());
+        assertEquals("Strings are stored as plain UTF-8", junitVal, new String(codecs.encode(junitVal).getData()));
+    }
+
+    /**
+     * <p>
+     * Types without a codec fall back to Java serialization, older values stay readable.
+     * </p>
+     */
+    @Test
+    public void testFallbackAndLegacyValues() {
+        CodecRegistry codecs = new CodecRegistry();
+        List<String> list = new ArrayList<String>(Arrays.asList(junitVal, junitVal));
+        assertEquals("Serializable fallback", list, codecs.decode(codecs.encode(list)));
+        CachedData legacy = new SerializingTranscoder().encode(junitVal);
+        assertEquals("Value written without codecs", junitVal, codecs.decode(legacy));
+    }
+
+    /**
+     * <p>
+     * Codecs registered per type and per key prefix are used for encoding and picked by flags on decoding.
+     * </p>
+     */
+    @Test
+    public void testUserCodecs() {
+        CodecRegistry codecs = new CodecRegistry();
+        codecs.register(StringBuilder.class, 16, new ValueCodec<StringBuilder>() {
+            public byte[] encode(StringBuilder value) {
+                return BuiltinCodecs.STRING.encode(value.reverse().toString());
+            }
+
+            public StringBuilder decode(byte[] data) {
+                return new StringBuilder(BuiltinCodecs.STRING.decode(data)).reverse();
+            }
+        });
+        StringBuilder sb = new StringBuilder(junitVal);
+        assertEquals(junitVal, codecs.decode(codecs.encode(sb)).toString());
+
+        codecs.registerPrefix("raw:", 17, BuiltinCodecs.BYTES);
+        byte[] raw = junitVal.getBytes();
+        CachedData data = codecs.transcoderFor("raw:junit").encode(raw);
+        assertTrue(Arrays.equals(raw, (byte[]) codecs.decode(data)));
+        assertSame("Other keys use the registry", codecs, codecs.transcoderFor("junit"));
+        try {
+            codecs.registerPrefix("other:", 17, BuiltinCodecs.BYTES);
+            fail("Codec ids must be unique");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    /**
+     * <p>
+     * The raw transcoder neither copies nor wraps, and the registry reads its values as byte[].
+     * </p>
+     */
+    @Test
+    public void testRawBytes() {
+        byte[] raw = junitVal.getBytes();
+        CachedData data = RawTranscoder.INSTANCE.encode(raw);
+        assertSame(raw, data.getData());
+        assertSame(raw, RawTranscoder.INSTANCE.decode(data));
+        assertTrue(Arrays.equals(raw, (byte[]) new CodecRegistry().decode(data)));
+    }
+}
@@ -0,0 +1,146 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.CounterAggregator;
+import com.sandeepmore.pool.SharedClientPool;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * <p/>
+ * JUnit test for the counter aggregation
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> Deltas stay local until a flush and GETCOUNTER reads through them
+ * <LI> Flushes on the interval, on the threshold and on close
+ * <LI> A flush creates missing counters and applies negative deltas
+ * <LI> Reading a counter waits for a flush writing that counter only
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitCounterAggregatorTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private int numOfThreads = 8;
+    private int numOfValues = 1000;
+
+    protected void tearDown() throws Exception {
+        cb.disableCounterAggregation();
+        super.tearDown();
+    }
+
+    /**
+     * <p>
+     * Concurrent increments are held locally, read through and written on close.
+     * </p>
+     */
+    @Test
+    public void testReadThroughAndClose() throws Exception {
+        final CounterAggregator counters = cb.enableCounterAggregation(60000, Long.MAX_VALUE, 0);
+        ExecutorService callers = Executors.newFixedThreadPool(numOfThreads);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int t = 0; t < numOfThreads; t++) {
+                results.add(callers.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int i = 0; i < numOfValues; i++) {
+                            counters.increment(junitKey);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            callers.shutdown();
+        }
+        long total = numOfThreads * numOfValues;
+        assertEquals("Nothing is flushed yet", 0, server.size());
+        assertEquals(total, counters.getPending(junitKey));
+        assertEquals(total, cb.getCounter(junitKey));
+        cb.disableCounterAggregation();
+        assertEquals(1, counters.getFlushCount());
+        assertEquals(total, cb.getCounter(junitKey));
+    }
+
+    /**
+     * <p>
+     * A counter drifting past the threshold is flushed before the interval.
+     * </p>
+     */
+    @Test
+    public void testThresholdFlush() throws Exception {
+        CounterAggregator counters = cb.enableCounterAggregation(60000, 100, 0);
+        counters.add(junitKey, 150);
+        for (int i = 0; i < 200 && counters.getFlushedCount() == 0; i++) {
+            // a delta being flushed is still read through
+            assertEquals(150, cb.getCounter(junitKey));
+            Thread.sleep(10);
+        }
+        assertEquals(1, counters.getFlushCount());
+        assertEquals(0, counters.getPending(junitKey));
+        assertEquals(150, cb.getCounter(junitKey));
+    }
+
+    /**
+     * <p>
+     * The interval flush creates a missing counter and subtracts from an existing one, never below 0.
+     * </p>
+     */
+    @Test
+    public void testIntervalFlush() throws Exception {
+        cb.incr(junitKey, 10, 10, 0);
+        CounterAggregator counters = cb.enableCounterAggregation(50, Long.MAX_VALUE, 0);
+        counters.add(junitKey, -3);
+        counters.add(junitKey + "New", 5);
+        counters.add(junitKey + "Negative", -5);
+        for (int i = 0; i < 200 && counters.getFlushedCount() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, counters.getFlushedCount());
+        assertEquals(0, counters.getFailedCount());
+        assertEquals(7, cb.getCounter(junitKey));
+        assertEquals(5, cb.getCounter(junitKey + "New"));
+        assertEquals(0, cb.getCounter(junitKey + "Negative"));
+    }
+
+    /**
+     * <p>
+     * A slow flush of one counter does not hold up reads of another, the flushed one is read once written.
+     * </p>
+     */
+    @Test
+    public void testReadDuringFlush() throws Exception {
+        SharedClientPool clients = new SharedClientPool(server.getServer(), 2);
+        CachingBroker broker = new CachingBroker(clients);
+        try {
+            broker.incr(junitKey + "Other", 1, 1, 0);
+            CounterAggregator counters = broker.enableCounterAggregation(60000, 100, 0);
+            // the threshold flush is held by the server, the reads that follow are answered right away
+            server.setReplyDelayMillis(500);
+            counters.add(junitKey, 150);
+            Thread.sleep(100);
+            server.setReplyDelayMillis(0);
+            long start = System.nanoTime();
+            assertEquals(1, broker.getCounter(junitKey + "Other"));
+            assertTrue("Not held up by the flush", System.nanoTime() - start < 300000000L);
+            assertEquals(150, broker.getCounter(junitKey));
+            assertEquals(0, counters.getPending(junitKey));
+        } finally {
+            server.setReplyDelayMillis(0);
+            broker.disableCounterAggregation();
+            clients.shutdown();
+        }
+    }
+}
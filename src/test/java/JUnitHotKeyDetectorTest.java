@@ -0,0 +1,133 @@
+import com.sandeepmore.caching.HotKeyDetector;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Map;
+
+
+/**
+ * <p/>
+ * JUnit test for the hot key detector
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Telling hot keys from cold ones
+ * <LI> Reporting the hottest keys first
+ * <LI> Estimating the rate of a key read steadily
+ * <LI> Keeping apart keys with the same hashCode
+ * <LI> Cooling down a key nobody reads any more
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitHotKeyDetectorTest extends TestCase {
+
+    private String junitKey = "junit-hot";
+    private int numOfValues = 2000;
+
+    /**
+     * <p>
+     * A key read thousands of times is hot, keys read once are not.
+     * </p>
+     */
+    @Test
+    public void testHotKey() {
+        HotKeyDetector detector = new HotKeyDetector(1, 500, 8, 4096, 100, 1000);
+        for (int i = 0; i < numOfValues; i++) {
+            detector.record(junitKey);
+            detector.record("junit-cold-" + i);
+        }
+        assertTrue(detector.isHot(junitKey));
+        assertTrue(detector.estimate(junitKey) >= numOfValues / 2);
+        int hotCold = 0;
+        for (int i = 0; i < numOfValues; i++) {
+            if (detector.isHot("junit-cold-" + i)) {
+                hotCold++;
+            }
+        }
+        assertEquals(0, hotCold);
+    }
+
+    /**
+     * <p>
+     * The hottest key is reported first.
+     * </p>
+     */
+    @Test
+    public void testHotKeysOrder() {
+        HotKeyDetector detector = new HotKeyDetector(1, 100, 8, 4096, 100, 1000);
+        for (int i = 0; i < numOfValues; i++) {
+            detector.record(junitKey + "-1");
+            if (i % 2 == 0) {
+                detector.record(junitKey + "-2");
+            }
+        }
+        Map<String, Long> hot = detector.getHotKeys();
+        assertEquals(2, hot.size());
+        assertEquals(junitKey + "-1", hot.keySet().iterator().next());
+    }
+
+    /**
+     * <p>
+     * A key read steadily for a few seconds is estimated at its rate, not twice it.
+     * </p>
+     */
+    @Test
+    public void testSteadyRate() throws Exception {
+        HotKeyDetector detector = new HotKeyDetector(1, 4000, 8, 4096, 100, 1000);
+        long start = System.nanoTime();
+        long recorded = 0;
+        long elapsedMillis;
+        // 3000 reads per second for 2.8 seconds
+        while ((elapsedMillis = (System.nanoTime() - start) / 1000000) < 2800) {
+            for (; recorded < elapsedMillis * 3; recorded++) {
+                detector.record(junitKey);
+            }
+            Thread.sleep(5);
+        }
+        long estimate = detector.estimate(junitKey);
+        assertTrue("Estimated " + estimate, estimate > 2000 && estimate < 4000);
+        assertFalse(detector.isHot(junitKey));
+        assertTrue(detector.getHotKeys().isEmpty());
+    }
+
+    /**
+     * <p>
+     * "Aa" and "BB" have the same hashCode, reading one does not make the other hot.
+     * </p>
+     */
+    @Test
+    public void testSameHashCode() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        HotKeyDetector detector = new HotKeyDetector(1, 500, 8, 4096, 100, 1000);
+        for (int i = 0; i < numOfValues; i++) {
+            detector.record("Aa");
+        }
+        assertTrue(detector.isHot("Aa"));
+        assertFalse(detector.isHot("BB"));
+        assertEquals(0, detector.estimate("BB"));
+        detector.close();
+    }
+
+    /**
+     * <p>
+     * A hot key leaves the hot keys once it is no longer read, without any other read coming through.
+     * </p>
+     */
+    @Test
+    public void testCoolDown() throws Exception {
+        HotKeyDetector detector = new HotKeyDetector(1, 500, 8, 4096, 100, 1000);
+        for (int i = 0; i < numOfValues; i++) {
+            detector.record(junitKey);
+        }
+        assertEquals(1, detector.getHotKeys().size());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!detector.getHotKeys().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("The key cooled down", detector.getHotKeys().isEmpty());
+        assertFalse(detector.isHot(junitKey));
+        detector.close();
+    }
+}
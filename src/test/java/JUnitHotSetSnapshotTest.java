@@ -0,0 +1,119 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.HotSetSnapshot;
+import com.sandeepmore.caching.NearCache;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+
+/**
+ * <p/>
+ * JUnit test for the hot set snapshot
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Values hit more than once are recorded and restored in a new near cache
+ * <LI> A snapshot cut short keeps the records before the cut
+ * <LI> A damaged header or another version restores nothing
+ * <LI> Only the owner can read the snapshot
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitHotSetSnapshotTest extends TestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "Hot set value";
+    private int numOfValues = 50;
+    private File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("junit-hotset", ".snap");
+        CachingBroker cb = new CachingBroker(null, new NearCache(1000, 60000));
+        for (int i = 0; i < numOfValues; i++) {
+            cb.getNearCache().put(junitKey + i, junitVal + i, 1800);
+            // a second hit makes the entry frequent
+            cb.getNearCache().get(junitKey + i);
+        }
+        // a single hit is not recorded
+        cb.getNearCache().put(junitKey + "Once", junitVal, 1800);
+        HotSetSnapshot snapshot = cb.enableHotSetSnapshot(file, 60000, 1000, true);
+        assertEquals(numOfValues, snapshot.write());
+        cb.disableHotSetSnapshot();
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * <p>
+     * Every frequent value comes back in the near cache of a new broker.
+     * </p>
+     */
+    @Test
+    public void testRestore() {
+        CachingBroker cb = new CachingBroker(null, new NearCache(1000, 60000));
+        assertEquals(numOfValues, cb.restoreHotSet(file));
+        for (int i = 0; i < numOfValues; i++) {
+            assertEquals(junitVal + i, cb.getNearCache().get(junitKey + i));
+        }
+        assertNull(cb.getNearCache().get(junitKey + "Once"));
+    }
+
+    /**
+     * <p>
+     * The snapshot holds cached values, it is readable and writable by its owner only.
+     * </p>
+     */
+    @Test
+    public void testOwnerOnly() throws IOException {
+        if (file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+        }
+    }
+
+    /**
+     * <p>
+     * A truncated snapshot restores the records written before the cut.
+     * </p>
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        CachingBroker cb = new CachingBroker(null, new NearCache(1000, 60000));
+        int restored = cb.restoreHotSet(file);
+        assertTrue("Some records survive the cut", restored > 0);
+        assertTrue("The cut records are dropped", restored < numOfValues);
+    }
+
+    /**
+     * <p>
+     * A snapshot of another version is ignored.
+     * </p>
+     */
+    @Test
+    public void testOtherVersion() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(99);
+        } finally {
+            raf.close();
+        }
+        CachingBroker cb = new CachingBroker(null, new NearCache(1000, 60000));
+        assertEquals(0, cb.restoreHotSet(file));
+        assertEquals(0, cb.getNearCache().size());
+    }
+}
@@ -0,0 +1,100 @@
+import com.sandeepmore.pool.KetamaRing;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+
+/**
+ * <p/>
+ * JUnit test for the ketama ring used by the cluster pool
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Keys are spread over every node
+ * <LI> Adding a node remaps about 1/N of the keys
+ * <LI> An unavailable node only moves its own keys
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitKetamaRingTest extends TestCase {
+
+    private String junitKey = "junit";
+    private int numOfValues = 10000;
+    private List<String> servers = Arrays.asList("cache1:11211", "cache2:11211", "cache3:11211", "cache4:11211");
+
+    /**
+     * <p>
+     * Every node gets a fair share of the keys.
+     * </p>
+     */
+    @Test
+    public void testKeysAreSpread() {
+        KetamaRing<String> ring = new KetamaRing<String>(servers);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < numOfValues; i++) {
+            String node = ring.primary(junitKey + i);
+            counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+        }
+        assertEquals("Every node owns keys", servers.size(), counts.size());
+        for (int count : counts.values()) {
+            assertTrue("Node share is roughly even: " + count, count > numOfValues / servers.size() / 2);
+        }
+    }
+
+    /**
+     * <p>
+     * Adding a fifth node only moves the keys it takes over.
+     * </p>
+     */
+    @Test
+    public void testAddingNodeRemapsFewKeys() {
+        KetamaRing<String> ring = new KetamaRing<String>(servers);
+        List<String> grown = new ArrayList<String>(servers);
+        grown.add("cache5:11211");
+        KetamaRing<String> grownRing = new KetamaRing<String>(grown);
+        int moved = 0;
+        for (int i = 0; i < numOfValues; i++) {
+            String before = ring.primary(junitKey + i);
+            String after = grownRing.primary(junitKey + i);
+            if (!before.equals(after)) {
+                assertEquals("Moved keys go to the new node", "cache5:11211", after);
+                moved++;
+            }
+        }
+        assertTrue("About 1/N of the keys moved: " + moved, moved < numOfValues * 0.3);
+    }
+
+    /**
+     * <p>
+     * Keys of an unavailable node move, all other keys stay put.
+     * </p>
+     */
+    @Test
+    public void testUnavailableNodeOnlyMovesItsKeys() {
+        KetamaRing<String> ring = new KetamaRing<String>(servers);
+        Predicate<String> withoutCache2 = new Predicate<String>() {
+            public boolean test(String node) {
+                return !"cache2:11211".equals(node);
+            }
+        };
+        for (int i = 0; i < numOfValues; i++) {
+            String primary = ring.primary(junitKey + i);
+            String routed = ring.route(junitKey + i, withoutCache2);
+            if ("cache2:11211".equals(primary)) {
+                assertFalse("Keys of the ejected node are remapped", "cache2:11211".equals(routed));
+            } else {
+                assertEquals("Other keys stay on their node", primary, routed);
+            }
+        }
+        assertEquals("Replicas are distinct nodes", 3, new HashSet<String>(ring.sequence(junitKey, 3)).size());
+    }
+}
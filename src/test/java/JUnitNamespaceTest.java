@@ -0,0 +1,80 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+
+/**
+ * <p/>
+ * JUnit test for the namespaced GET, SET and the namespace invalidation
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> Invalidating a namespace drops all its keys and no other
+ * <LI> Another broker sees the invalidation once its copy of the generation expires
+ * <LI> A generation counter lost from memcached does not bring back older keys
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitNamespaceTest extends LoopbackBrokerTestCase {
+
+    private String junitNs = "junitNs";
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+    private int numOfValues = 20;
+
+    /**
+     * <p>
+     * Every key of an invalidated namespace is gone, other namespaces keep theirs.
+     * </p>
+     */
+    @Test
+    public void testInvalidate() throws Exception {
+        for (int i = 0; i < numOfValues; i++) {
+            cb.set(junitNs, junitKey + i, 0, junitVal + i);
+        }
+        cb.set(junitNs + "Other", junitKey, 0, junitVal);
+        assertEquals(junitVal + 0, cb.get(junitNs, junitKey + 0));
+        cb.invalidateNamespace(junitNs);
+        for (int i = 0; i < numOfValues; i++) {
+            assertNull(cb.get(junitNs, junitKey + i));
+        }
+        assertEquals(junitVal, cb.get(junitNs + "Other", junitKey));
+        cb.set(junitNs, junitKey + 0, 0, junitVal);
+        assertEquals("The new generation takes sets", junitVal, cb.get(junitNs, junitKey + 0));
+    }
+
+    /**
+     * <p>
+     * A broker that read the generation before the invalidation keeps it for its TTL only.
+     * </p>
+     */
+    @Test
+    public void testOtherBroker() throws Exception {
+        CachingBroker other = new CachingBroker(pool);
+        other.setNamespaceTtlMillis(200);
+        cb.set(junitNs, junitKey, 0, junitVal);
+        assertEquals(junitVal, other.get(junitNs, junitKey));
+        cb.invalidateNamespace(junitNs);
+        assertNull(cb.get(junitNs, junitKey));
+        assertEquals("Still on its copy of the generation", junitVal, other.get(junitNs, junitKey));
+        Thread.sleep(300);
+        assertNull(other.get(junitNs, junitKey));
+    }
+
+    /**
+     * <p>
+     * A generation counter created again starts above the lost one.
+     * </p>
+     */
+    @Test
+    public void testLostGeneration() throws Exception {
+        cb.setNamespaceTtlMillis(0);
+        cb.set(junitNs, junitKey, 0, junitVal);
+        assertEquals(junitVal, cb.get(junitNs, junitKey));
+        Thread.sleep(5);
+        cb.delete("nsgen:" + junitNs);
+        assertNull(cb.get(junitNs, junitKey));
+    }
+}
@@ -0,0 +1,85 @@
+import com.sandeepmore.caching.NearCache;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+
+/**
+ * <p/>
+ * JUnit test for the in-process near cache
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> PUT, GET and INVALIDATE
+ * <LI> Expiry capped by the memcached TTL and the local max age
+ * <LI> Size bound and the hit, miss and eviction counters
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitNearCacheTest extends TestCase {
+
+    private int numOfValues = 100;
+
+    /**
+     * <p>
+     * Test PUT, GET and INVALIDATE for a single value.
+     * </p>
+     */
+    @Test
+    public void testPutGetInvalidate() {
+        NearCache near = new NearCache(numOfValues, 60000);
+        near.put("junit", "Near cache value", 1800);
+        assertEquals("Get value from the near cache", "Near cache value", near.get("junit"));
+        near.invalidate("junit");
+        assertNull("Invalidated value is gone", near.get("junit"));
+        assertEquals(1, near.getHitCount());
+        assertEquals(1, near.getMissCount());
+    }
+
+    /**
+     * <p>
+     * Entries expire with the local max age even if memcached would keep them longer.
+     * </p>
+     */
+    @Test
+    public void testMaxAgeExpiry() throws InterruptedException {
+        NearCache near = new NearCache(numOfValues, 50);
+        near.put("junit", "Near cache value", 1800);
+        assertNotNull(near.get("junit"));
+        Thread.sleep(100);
+        assertNull("Value expired with the local max age", near.get("junit"));
+    }
+
+    /**
+     * <p>
+     * Entries expire with the memcached TTL they were stored with.
+     * </p>
+     */
+    @Test
+    public void testTtlExpiry() throws InterruptedException {
+        NearCache near = new NearCache(numOfValues, 60000);
+        near.put("junit", "Near cache value", 1);
+        assertNotNull(near.get("junit"));
+        Thread.sleep(1100);
+        assertNull("Value expired with the memcached TTL", near.get("junit"));
+    }
+
+    /**
+     * <p>
+     * The cache stays within its bound and keeps the entries that are hit repeatedly.
+     * </p>
+     */
+    @Test
+    public void testEvictionKeepsFrequentKeys() {
+        NearCache near = new NearCache(numOfValues, 60000, 1);
+        near.put("hot", "hot value");
+        near.get("hot");
+        for (int i = 0; i < numOfValues * 10; i++) {
+            near.put("junit" + i, "Near cache value" + i);
+        }
+        assertTrue("Near cache stays bounded", near.size() <= numOfValues);
+        assertEquals("Frequent key survives a scan", "hot value", near.get("hot"));
+        assertTrue(near.getEvictionCount() >= numOfValues * 9);
+    }
+}
@@ -0,0 +1,61 @@
+import com.sandeepmore.pool.PermitCachingPool;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+
+/**
+ * <p/>
+ * JUnit test for the permit based pool
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> The pool size must be positive
+ * <LI> A closed pool hands out no clients
+ * <LI> Returning nothing leaves the counts alone
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitPermitCachingPoolTest extends TestCase {
+
+    private String junitServer = "localhost:11299";
+
+    /**
+     * <p>
+     * A pool without permits is rejected.
+     * </p>
+     */
+    @Test
+    public void testPositiveSize() {
+        try {
+            new PermitCachingPool(junitServer, 0, 10);
+            fail("A pool needs at least one client");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * <p>
+     * Borrowing from a closed pool fails right away.
+     * </p>
+     */
+    @Test
+    public void testClosed() throws Exception {
+        PermitCachingPool pool = new PermitCachingPool(junitServer, 4, -1);
+        assertEquals(4, pool.getMaxActive());
+        assertEquals(junitServer, pool.getServer());
+        pool.returnObject(null);
+        assertEquals(0, pool.getNumActive());
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(0, pool.getNumWaiting());
+        pool.close();
+        try {
+            pool.borrowObject();
+            fail("A closed pool hands out no clients");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import com.sandeepmore.pool.ICachingPool;
+import com.sandeepmore.pool.LatencyHistogram;
+import com.sandeepmore.pool.PoolMetrics;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+
+/**
+ * <p/>
+ * JUnit test for the pool metrics
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Latency histogram percentiles and windows
+ * <LI> Hit, miss and exhausted counters
+ * <LI> Registration of the pool MBean
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitPoolMetricsTest extends TestCase {
+
+    private int numOfValues = 1000;
+
+    /**
+     * <p>
+     * Percentiles land within the 12.5% bucket precision.
+     * </p>
+     */
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= numOfValues; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(numOfValues, histogram.getCount());
+        assertEquals(numOfValues * 1000L, histogram.getMax());
+        assertWithin(500000L, histogram.getPercentile(50));
+        assertWithin(990000L, histogram.getPercentile(99));
+        assertEquals(0, new LatencyHistogram().getPercentile(99));
+    }
+
+    /**
+     * <p>
+     * Two snapshots subtracted give the percentiles of the window between them.
+     * </p>
+     */
+    @Test
+    public void testHistogramWindow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < numOfValues; i++) {
+            histogram.record(1000L);
+        }
+        long[] before = histogram.snapshot();
+        for (int i = 0; i < numOfValues; i++) {
+            histogram.record(1000000L);
+        }
+        long[] after = histogram.snapshot();
+        for (int i = 0; i < after.length; i++) {
+            after[i] -= before[i];
+        }
+        assertWithin(1000000L, LatencyHistogram.percentile(after, 50));
+    }
+
+    /**
+     * <p>
+     * Counters add up and the MBean is visible on the platform MBean server.
+     * </p>
+     */
+    @Test
+    public void testCountersAndMBean() throws Exception {
+        PoolMetrics metrics = new PoolMetrics(new StubPool());
+        metrics.recordGet(1000, true);
+        metrics.recordGet(1000, false);
+        metrics.recordGetMulti(1000, 3, 1);
+        metrics.recordPoolExhausted();
+        assertEquals(3, metrics.getGetCount());
+        assertEquals(4, metrics.getHitCount());
+        assertEquals(2, metrics.getMissCount());
+        assertEquals(1, metrics.getPoolExhaustedCount());
+
+        metrics.register("junit:11211");
+        try {
+            assertNotNull(metrics.getObjectName());
+            assertEquals(7, ManagementFactory.getPlatformMBeanServer().getAttribute(metrics.getObjectName(), "NumIdle"));
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                actual >= expected * 0.875 && actual <= expected * 1.125);
+    }
+
+    private static class StubPool implements ICachingPool {
+        public Object borrowObject() {
+            return null;
+        }
+
+        public void returnObject(Object obj) {
+        }
+
+        public String getServer() {
+            return "junit:11211";
+        }
+
+        public int getNumActive() {
+            return 3;
+        }
+
+        public int getNumIdle() {
+            return 7;
+        }
+
+        public boolean isReady() {
+            return true;
+        }
+
+        public PoolMetrics getMetrics() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import com.sandeepmore.pool.PoolSizer;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+
+/**
+ * <p/>
+ * JUnit test for the adaptive pool sizing decisions
+ * </P>
+ * <p/>
+ * This test does not need a memcached server, it covers
+ * <UL>
+ * <LI> Growing on borrow wait and exhaustion
+ * <LI> Shrinking on unused capacity
+ * <LI> Floor and ceiling bounds
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitPoolSizerTest extends TestCase {
+
+    private long targetWait = 5000000L;
+
+    /**
+     * <p>
+     * A slow borrow or an exhausted pool grows the pool by a quarter, up to the ceiling.
+     * </p>
+     */
+    @Test
+    public void testGrow() {
+        assertEquals(10, PoolSizer.nextSize(8, 2, 50, targetWait * 2, targetWait, 0, 0));
+        assertEquals(10, PoolSizer.nextSize(8, 2, 50, 0, targetWait, 3, 0));
+        assertEquals(3, PoolSizer.nextSize(2, 2, 50, 0, targetWait, 1, 0));
+        assertEquals(50, PoolSizer.nextSize(48, 2, 50, 0, targetWait, 1, 0));
+    }
+
+    /**
+     * <p>
+     * Capacity unused through the window is halved, down to the floor.
+     * </p>
+     */
+    @Test
+    public void testShrink() {
+        assertEquals(16, PoolSizer.nextSize(20, 2, 50, 0, targetWait, 0, 8));
+        assertEquals(19, PoolSizer.nextSize(20, 2, 50, 0, targetWait, 0, 1));
+        assertEquals(2, PoolSizer.nextSize(3, 2, 50, 0, targetWait, 0, 3));
+    }
+
+    /**
+     * <p>
+     * A fully used pool without waits keeps its size.
+     * </p>
+     */
+    @Test
+    public void testSteady() {
+        assertEquals(20, PoolSizer.nextSize(20, 2, 50, targetWait, targetWait, 0, 0));
+        assertEquals(20, PoolSizer.nextSize(20, 2, 50, 0, targetWait, 0, Integer.MAX_VALUE));
+    }
+}
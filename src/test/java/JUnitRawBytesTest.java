@@ -0,0 +1,61 @@
+import com.sandeepmore.caching.AsyncCachingBroker;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+/**
+ * <p/>
+ * JUnit test for the raw bytes API
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> SETBYTES and GETBYTES keep the bytes as they are
+ * <LI> GET, GETMULTI and the async GET read raw values back as byte[] without codecs
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitRawBytesTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private byte[] junitVal = {1, 2, 3, 'a', 'b', 'c'};
+
+    /**
+     * <p>
+     * Bytes set from an array or a buffer come back as they were.
+     * </p>
+     */
+    @Test
+    public void testSetGetBytes() throws Exception {
+        cb.setBytes(junitKey, 0, junitVal);
+        assertTrue(Arrays.equals(junitVal, cb.getBytes(junitKey)));
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put((byte) 9).put(junitVal).flip().get();
+        cb.setBytes(junitKey + "Buffer", 0, buffer);
+        assertTrue(Arrays.equals(junitVal, cb.getBytes(junitKey + "Buffer")));
+        assertEquals("The buffer position is not moved", 1, buffer.position());
+    }
+
+    /**
+     * <p>
+     * Raw values read back as byte[] through the object read paths.
+     * </p>
+     */
+    @Test
+    public void testObjectReads() throws Exception {
+        cb.setBytes(junitKey, 0, junitVal);
+        assertTrue(Arrays.equals(junitVal, (byte[]) cb.get(junitKey)));
+        assertTrue(Arrays.equals(junitVal, (byte[]) cb.getMulti(Collections.singletonList(junitKey)).get(junitKey)));
+        AsyncCachingBroker acb = new AsyncCachingBroker(pool);
+        try {
+            assertTrue(Arrays.equals(junitVal, (byte[]) acb.getAsync(junitKey).get()));
+        } finally {
+            acb.shutdown();
+        }
+    }
+}
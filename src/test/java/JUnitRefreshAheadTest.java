@@ -0,0 +1,135 @@
+import com.sandeepmore.caching.AsyncCachingBroker;
+import com.sandeepmore.caching.NearCache;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * <p/>
+ * JUnit test for the refresh-ahead GET
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> A fresh value is served without calling the loader
+ * <LI> A stale value is served right away and refreshed once in the background
+ * <LI> A refresh turned down by a full executor is tried again by a later caller
+ * <LI> Every other read path returns the loaded value, not the refresh time stored with it
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitRefreshAheadTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+    private int numOfValues = 50;
+    private AtomicInteger loads = new AtomicInteger();
+    private Callable<Object> loader = new Callable<Object>() {
+        public Object call() throws Exception {
+            Thread.sleep(200);
+            return junitVal + loads.incrementAndGet();
+        }
+    };
+
+    /**
+     * <p>
+     * Readers of a stale value do not wait for the loader, one of them schedules the refresh.
+     * </p>
+     */
+    @Test
+    public void testRefreshAhead() throws Exception {
+        // stale after a quarter of 2 seconds
+        assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+        assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+        assertEquals(1, loads.get());
+        Thread.sleep(600);
+        long start = System.nanoTime();
+        for (int i = 0; i < numOfValues; i++) {
+            assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+        }
+        assertTrue("Stale reads do not wait for the loader", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+        waitForRefreshes(1);
+        assertEquals(junitVal + 2, cb.get(junitKey, 2, 0.25, loader));
+        assertEquals("One refresh for all the stale reads", 2, loads.get());
+    }
+
+    /**
+     * <p>
+     * A refresh-ahead key reads as its value through the plain, bulk, CAS, near cache and async gets.
+     * </p>
+     */
+    @Test
+    public void testPlainReads() throws Exception {
+        assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+        assertEquals(junitVal + 1, cb.get(junitKey));
+        assertEquals(junitVal + 1, cb.getMulti(Collections.singleton(junitKey)).get(junitKey));
+        assertEquals(junitVal + 1, cb.gets(junitKey).getValue());
+        AsyncCachingBroker acb = new AsyncCachingBroker(pool);
+        try {
+            assertEquals(junitVal + 1, acb.getAsync(junitKey).get());
+        } finally {
+            acb.shutdown();
+        }
+        cb.setNearCache(new NearCache(100, 60000));
+        assertEquals("Read into the near cache", junitVal + 1, cb.get(junitKey));
+        assertEquals("Read from the near cache", junitVal + 1, cb.get(junitKey));
+        assertEquals(junitVal + 1, cb.getMulti(Collections.singleton(junitKey)).get(junitKey));
+        assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+        assertEquals(1, loads.get());
+    }
+
+    /**
+     * <p>
+     * A refresh the executor has no room for is skipped, the next stale read schedules it.
+     * </p>
+     */
+    @Test
+    public void testRejectedRefresh() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        cb.setRefreshExecutor(executor);
+        try {
+            assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+            Thread.sleep(600);
+            final CountDownLatch busy = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        busy.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+            assertEquals(1, cb.getRefreshRejectedCount());
+            busy.countDown();
+            for (int i = 0; i < 100 && executor.getActiveCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(junitVal + 1, cb.get(junitKey, 2, 0.25, loader));
+            waitForRefreshes(1);
+            assertEquals(junitVal + 2, cb.get(junitKey, 2, 0.25, loader));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Refreshes run in the background, wait until they stored their value.
+     */
+    private void waitForRefreshes(int count) throws Exception {
+        for (int i = 0; i < 200 && cb.getRefreshCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, cb.getRefreshCount());
+    }
+}
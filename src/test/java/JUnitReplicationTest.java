@@ -0,0 +1,140 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.Replication;
+import com.sandeepmore.pool.ClusterCachingPool;
+import com.sandeepmore.pool.SharedClientPool;
+import com.sandeepmore.testing.LoopbackMemcached;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * <p/>
+ * JUnit test for replication and hedged gets
+ * </P>
+ * <p/>
+ * This test runs against two loopback memcached, it covers
+ * <UL>
+ * <LI> A get slow on its owner is answered by the copy
+ * <LI> Hedges are capped by the budget of the second
+ * <LI> A miss on the copy falls back to the owner
+ * <LI> Reading a counter with an increment of 0 keeps its copies, a real increment drops them
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitReplicationTest extends TestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+    private LoopbackMemcached slow;
+    private LoopbackMemcached fast;
+    private ClusterCachingPool cluster;
+    private CachingBroker cb;
+    private Replication replication;
+
+    protected void setUp() throws Exception {
+        slow = new LoopbackMemcached();
+        fast = new LoopbackMemcached();
+        cluster = new ClusterCachingPool(Arrays.asList(slow.getServer(), fast.getServer()), 4, 3000, "block", 3, 30);
+        cb = new CachingBroker(cluster);
+        replication = cb.enableReplication(2, 0.1);
+    }
+
+    protected void tearDown() throws Exception {
+        // cluster pools have no shutdown, their clients go with the JVM
+        slow.close();
+        fast.close();
+    }
+
+    /**
+     * <p>
+     * Gets owned by a slow node are hedged onto the copy until the budget of the second is spent.
+     * </p>
+     */
+    @Test
+    public void testHedgeBudget() throws Exception {
+        List<String> keys = slowKeys(7);
+        for (String key : keys) {
+            cb.set(key, 0, junitVal);
+        }
+        waitForCopies(keys.size());
+        slow.setReplyDelayMillis(100);
+        for (String key : keys) {
+            assertEquals(junitVal, cb.get(key));
+        }
+        assertEquals("Five hedges are always allowed in a second", 5, replication.getHedgeCount());
+        assertEquals(5, replication.getHedgeWinCount());
+        assertEquals(2, replication.getHedgeDeniedCount());
+    }
+
+    /**
+     * <p>
+     * A key missing on the copy is still read from the owner.
+     * </p>
+     */
+    @Test
+    public void testMissFallback() throws Exception {
+        String key = slowKeys(1).get(0);
+        // raw bytes only go to the owner
+        cb.setBytes(key, 0, junitVal.getBytes("UTF-8"));
+        slow.setReplyDelayMillis(100);
+        assertEquals(junitVal, new String((byte[]) cb.get(key), "UTF-8"));
+        assertEquals(1, replication.getHedgeCount());
+        assertEquals(0, replication.getHedgeWinCount());
+    }
+
+    /**
+     * <p>
+     * An incr by 0 only reads the counter, the copy stays. An incr by 1 changes it and drops the copy.
+     * </p>
+     */
+    @Test
+    public void testCounterReadKeepsCopies() throws Exception {
+        String key = slowKeys(1).get(0);
+        cb.setBytes(key, 0, "5".getBytes("UTF-8"));
+        // plant a copy on the other node
+        SharedClientPool copyPool = new SharedClientPool(fast.getServer(), 1);
+        try {
+            new CachingBroker(copyPool).setBytes(key, 0, "5".getBytes("UTF-8"));
+            waitForCopies(1);
+            assertEquals(5, cb.incr(key, 0, 0, 0));
+            // the delete of a copy is not waited for, give it time to land
+            Thread.sleep(200);
+            assertTrue("The copy is kept", fast.getKeys().contains(key));
+            assertEquals(6, cb.incr(key, 1, 0, 0));
+            for (int i = 0; i < 100 && fast.size() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertFalse("The stale copy is dropped", fast.getKeys().contains(key));
+        } finally {
+            copyPool.shutdown();
+        }
+    }
+
+    /**
+     * Keys owned by the slow node.
+     */
+    private List<String> slowKeys(int count) {
+        List<String> keys = new ArrayList<String>(count);
+        for (int i = 0; keys.size() < count; i++) {
+            if (cluster.route(junitKey + i).getServer().equals(slow.getServer())) {
+                keys.add(junitKey + i);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Sets and their copies are not waited for, wait until the fast node has them.
+     */
+    private void waitForCopies(int count) throws Exception {
+        for (int i = 0; i < 100 && fast.size() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, fast.size());
+    }
+}
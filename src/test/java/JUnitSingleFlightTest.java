@@ -0,0 +1,151 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.CachingException;
+import com.sandeepmore.pool.SharedClientPool;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * <p/>
+ * JUnit test for the coalesced loading GET
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> Concurrent misses on a key call the loader once and share its value
+ * <LI> A failed load fails every waiter and the next call loads again
+ * <LI> The load stays in flight until its value is on memcached, a caller on another client does not load again
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitSingleFlightTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+    private int numOfThreads = 16;
+    private ExecutorService callers;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        callers = Executors.newFixedThreadPool(numOfThreads);
+    }
+
+    protected void tearDown() throws Exception {
+        callers.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * <p>
+     * Threads missing the same key together run one load and all get its value.
+     * </p>
+     */
+    @Test
+    public void testCoalescedMisses() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        List<Future<Object>> results = getAll(new Callable<Object>() {
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(200);
+                return junitVal;
+            }
+        });
+        for (Future<Object> result : results) {
+            assertEquals(junitVal, result.get());
+        }
+        assertEquals(1, loads.get());
+        assertEquals("The loaded value is stored", junitVal, cb.get(junitKey));
+    }
+
+    /**
+     * <p>
+     * A loader failure reaches every waiting thread, it is not cached.
+     * </p>
+     */
+    @Test
+    public void testLoaderFailure() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<Object> failing = new Callable<Object>() {
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(200);
+                throw new IllegalStateException("junit");
+            }
+        };
+        for (Future<Object> result : getAll(failing)) {
+            try {
+                result.get();
+                fail("The load failed");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof CachingException);
+            }
+        }
+        assertEquals(1, loads.get());
+        try {
+            cb.get(junitKey, 0, failing);
+            fail("The load failed");
+        } catch (CachingException ex) {
+            assertEquals(2, loads.get());
+        }
+    }
+
+    /**
+     * <p>
+     * With several clients the next caller may use another connection than the store, it still finds the value.
+     * </p>
+     */
+    @Test
+    public void testStoredBeforeFlightEnds() throws Exception {
+        SharedClientPool clients = new SharedClientPool(server.getServer(), 4);
+        try {
+            CachingBroker broker = new CachingBroker(clients);
+            final AtomicInteger loads = new AtomicInteger();
+            Callable<Object> loader = new Callable<Object>() {
+                public Object call() throws Exception {
+                    loads.incrementAndGet();
+                    return junitVal;
+                }
+            };
+            // a slow server, a store that is not waited for is still on the wire when the get returns
+            server.setReplyDelayMillis(100);
+            assertEquals(junitVal, broker.get(junitKey, 0, loader));
+            assertTrue("The loaded value is on memcached", server.getKeys().contains(junitKey));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(junitVal, broker.get(junitKey, 0, loader));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            server.setReplyDelayMillis(0);
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Call the loading get from every thread at once.
+     */
+    private List<Future<Object>> getAll(final Callable<Object> loader) {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Object>> results = new ArrayList<Future<Object>>(numOfThreads);
+        for (int i = 0; i < numOfThreads; i++) {
+            results.add(callers.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    start.await();
+                    return cb.get(junitKey, 0, loader);
+                }
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+}
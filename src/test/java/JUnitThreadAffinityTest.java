@@ -0,0 +1,176 @@
+import com.sandeepmore.pool.CachingPool;
+import com.sandeepmore.pool.CachingPoolRegistry;
+import com.sandeepmore.testing.LoopbackMemcached;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * <p/>
+ * JUnit test for the thread affine borrows of the CachingPool
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> A thread gets its bound client back on every borrow, the client stays borrowed from the pool
+ * <LI> Another thread, or a nested borrow while the bound client is in use, gets a different client
+ * <LI> The client of a dead thread goes back to the pool, or is invalidated if it died while using it
+ * <LI> The reaper reclaims an idle client, but not while its thread holds it
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitThreadAffinityTest extends TestCase {
+
+    private String junitKey = "junitAffinity";
+    private LoopbackMemcached server;
+    private CachingPool pool;
+
+    protected void setUp() throws Exception {
+        server = new LoopbackMemcached();
+        pool = (CachingPool) CachingPoolRegistry.init(junitKey, server.getServer(), 4, 1000, "fail", 0);
+    }
+
+    protected void tearDown() throws Exception {
+        CachingPoolRegistry.remove(junitKey);
+        pool.close();
+        server.close();
+    }
+
+    /**
+     * <p>
+     * Borrowing again on the same thread hands out the bound client without going through the pool.
+     * </p>
+     */
+    @Test
+    public void testRebind() throws Exception {
+        pool.enableThreadAffinity(60000);
+        Object client = pool.borrowObject();
+        pool.returnObject(client);
+        assertEquals(1, pool.getNumBound());
+        assertEquals("The bound client stays borrowed", 1, pool.getNumActive());
+        for (int i = 0; i < 10; i++) {
+            Object again = pool.borrowObject();
+            assertSame(client, again);
+            pool.returnObject(again);
+        }
+        assertEquals(1, pool.getNumBound());
+        assertEquals(1, pool.getNumActive());
+    }
+
+    /**
+     * <p>
+     * A thread never gets the client bound to another thread, and a nested borrow gets a pooled one.
+     * </p>
+     */
+    @Test
+    public void testOtherThread() throws Exception {
+        pool.enableThreadAffinity(60000);
+        final Object client = pool.borrowObject();
+        // the bound client is in use, the nested borrow goes to the pool and is not bound
+        Object nested = pool.borrowObject();
+        assertNotSame(client, nested);
+        pool.returnObject(nested);
+        pool.returnObject(client);
+        assertEquals(1, pool.getNumBound());
+        assertEquals(1, pool.getNumIdle());
+
+        final AtomicReference<Object> other = new AtomicReference<Object>();
+        final AtomicReference<Object> rebound = new AtomicReference<Object>();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Object borrowed = pool.borrowObject();
+                    other.set(borrowed);
+                    pool.returnObject(borrowed);
+                    rebound.set(pool.borrowObject());
+                    pool.returnObject(rebound.get());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(other.get());
+        assertNotSame(client, other.get());
+        assertSame(other.get(), rebound.get());
+        assertEquals(2, pool.getNumBound());
+        assertSame(client, pool.borrowObject());
+        pool.returnObject(client);
+    }
+
+    /**
+     * <p>
+     * A client returned by a thread that died goes back to the pool, one it died holding is invalidated.
+     * </p>
+     */
+    @Test
+    public void testDeadThread() throws Exception {
+        // a reaper run every second, well before the clients count as idle
+        pool.enableThreadAffinity(8000);
+        Thread returning = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    pool.returnObject(pool.borrowObject());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        returning.start();
+        returning.join();
+        Thread holding = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    pool.borrowObject();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        holding.start();
+        holding.join();
+        assertEquals(2, pool.getNumBound());
+        assertEquals(2, pool.getNumActive());
+
+        awaitUnbound(3000);
+        assertEquals(0, pool.getNumActive());
+        assertEquals("Only the returned client is reused", 1, pool.getNumIdle());
+    }
+
+    /**
+     * <p>
+     * An idle bound client goes back to the pool, the reaper leaves it alone while its thread uses it.
+     * </p>
+     */
+    @Test
+    public void testIdleHandoff() throws Exception {
+        // a reaper run every 100ms
+        pool.enableThreadAffinity(200);
+        Object client = pool.borrowObject();
+        Thread.sleep(600);
+        assertEquals("The client is in use", 1, pool.getNumBound());
+        pool.returnObject(client);
+        assertSame(client, pool.borrowObject());
+        pool.returnObject(client);
+
+        awaitUnbound(2000);
+        assertEquals(0, pool.getNumActive());
+        assertEquals(1, pool.getNumIdle());
+        // the thread borrows from the pool again and gets bound anew
+        assertSame(client, pool.borrowObject());
+        pool.returnObject(client);
+        assertEquals(1, pool.getNumBound());
+    }
+
+    private void awaitUnbound(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pool.getNumBound() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("The reaper reclaimed the clients", 0, pool.getNumBound());
+    }
+}
@@ -0,0 +1,154 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.CachingException;
+import com.sandeepmore.caching.NearCache;
+import com.sandeepmore.pool.SharedClientPool;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import net.spy.memcached.CASResponse;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * <p/>
+ * JUnit test for the CAS UPDATE
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> A missing key is created, a null result leaves the key untouched
+ * <LI> An update losing the race to another write retries on the new value
+ * <LI> Concurrent updates of one key lose no increment, every stored one is counted
+ * <LI> A get answered while a CAS is in flight leaves no old value in the near cache
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitUpdateTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+    private int numOfThreads = 8;
+    private int numOfValues = 50;
+
+    /**
+     * <p>
+     * UPDATE adds a missing key and a null result stores nothing.
+     * </p>
+     */
+    @Test
+    public void testCreateAndSkip() throws Exception {
+        assertEquals(junitVal, cb.update(junitKey, 0, v -> v == null ? junitVal : null));
+        assertNull(cb.update(junitKey, 0, v -> null));
+        assertEquals(junitVal, cb.get(junitKey));
+    }
+
+    /**
+     * <p>
+     * A write landing between the read and the CAS makes the update read again and apply on top of it.
+     * </p>
+     */
+    @Test
+    public void testRetry() throws Exception {
+        cb.set(junitKey, 0, junitVal);
+        final AtomicInteger calls = new AtomicInteger();
+        Object updated = cb.update(junitKey, 0, new UnaryOperator<Object>() {
+            public Object apply(Object v) {
+                if (calls.incrementAndGet() == 1) {
+                    // another writer gets in first
+                    cb.set(junitKey, 0, junitVal + "Other");
+                }
+                return v + "Updated";
+            }
+        });
+        assertEquals(junitVal + "OtherUpdated", updated);
+        assertEquals(2, calls.get());
+        assertEquals(junitVal + "OtherUpdated", cb.get(junitKey));
+        assertEquals(1, pool.getMetrics().getCasRetryCount());
+    }
+
+    /**
+     * <p>
+     * Threads incrementing one key through UPDATE end with every increment counted.
+     * </p>
+     */
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final AtomicInteger stored = new AtomicInteger();
+        ExecutorService callers = Executors.newFixedThreadPool(numOfThreads);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int t = 0; t < numOfThreads; t++) {
+                results.add(callers.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        for (int i = 0; i < numOfValues; i++) {
+                            try {
+                                cb.update(junitKey, 0, v -> v == null ? 1 : (Integer) v + 1);
+                                stored.incrementAndGet();
+                            } catch (CachingException ex) {
+                                // threads in a tight loop on one key may lose every attempt, nothing is stored then
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            callers.shutdown();
+        }
+        assertTrue(stored.get() > 0);
+        assertEquals(stored.get(), cb.get(junitKey));
+        assertEquals(stored.get(), pool.getMetrics().getCasCount());
+        assertTrue("Threads raced", pool.getMetrics().getCasRetryCount() > 0);
+    }
+
+    /**
+     * <p>
+     * A get that read the old value before the CAS and cached it while the CAS ran does not outlive the CAS.
+     * </p>
+     */
+    @Test
+    public void testNearCacheAfterCas() throws Exception {
+        SharedClientPool clients = new SharedClientPool(server.getServer(), 2);
+        final CachingBroker broker = new CachingBroker(clients);
+        try {
+            broker.set(junitKey, 0, junitVal);
+            long casId = broker.gets(junitKey).getCas();
+            broker.setNearCache(new NearCache(100, 60000));
+            final AtomicReference<Object> read = new AtomicReference<Object>();
+            // the get is answered once the CAS has invalidated the near cache, before the CAS is
+            server.setReplyDelayMillis(300);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        read.set(broker.get(junitKey));
+                    } catch (CachingException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                }
+            });
+            reader.start();
+            Thread.sleep(100);
+            server.setReplyDelayMillis(600);
+            assertEquals(CASResponse.OK, broker.cas(junitKey, casId, 0, junitVal + "Cas"));
+            reader.join();
+            server.setReplyDelayMillis(0);
+            assertEquals("The get read the old value", junitVal, read.get());
+            assertEquals(junitVal + "Cas", broker.get(junitKey));
+        } finally {
+            server.setReplyDelayMillis(0);
+            clients.shutdown();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.caching.WriteBehindQueue;
+import com.sandeepmore.pool.SharedClientPool;
+import com.sandeepmore.testing.LoopbackBrokerTestCase;
+import org.junit.Test;
+
+
+/**
+ * <p/>
+ * JUnit test for the write-behind queue
+ * </P>
+ * <p/>
+ * This test runs against the loopback memcached, it covers
+ * <UL>
+ * <LI> Writes to a key coalesce and the last one wins
+ * <LI> The BLOCK, DISCARD and WRITE_THROUGH backpressure modes
+ * <LI> Deletes are never discarded
+ * <LI> CAS, counters and raw bytes write out what is queued for their key first
+ * <LI> They also wait for a write of their key the drainer has in flight on another client
+ * </P>
+ *
+ * @author Sandeep More
+ */
+public class JUnitWriteBehindQueueTest extends LoopbackBrokerTestCase {
+
+    private String junitKey = "junit";
+    private String junitVal = "junitVal";
+
+    protected void tearDown() throws Exception {
+        cb.disableWriteBehind();
+        super.tearDown();
+    }
+
+    /**
+     * <p>
+     * Queued writes are read back before they are written, and the last write to a key wins.
+     * </p>
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        WriteBehindQueue queue = cb.enableWriteBehind(100, 10, WriteBehindQueue.Backpressure.BLOCK);
+        for (int i = 0; i < 50; i++) {
+            cb.set(junitKey, 0, junitVal + i);
+        }
+        cb.set(junitKey + "Deleted", 0, junitVal);
+        cb.delete(junitKey + "Deleted");
+        assertEquals(junitVal + 49, cb.get(junitKey));
+        cb.disableWriteBehind();
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(junitVal + 49, cb.get(junitKey));
+        assertNull(cb.get(junitKey + "Deleted"));
+    }
+
+    /**
+     * <p>
+     * A full queue with BLOCK holds the caller until a slot frees, also when the queue closes meanwhile.
+     * </p>
+     */
+    @Test
+    public void testBlock() throws Exception {
+        WriteBehindQueue queue = fill(WriteBehindQueue.Backpressure.BLOCK);
+        Thread blocked = new Thread(new Runnable() {
+            public void run() {
+                cb.set(junitKey + "Blocked", 0, junitVal);
+            }
+        });
+        blocked.start();
+        Thread.sleep(50);
+        assertTrue("The writer waits for a slot", blocked.isAlive());
+        cb.disableWriteBehind();
+        blocked.join(5000);
+        assertFalse(blocked.isAlive());
+        server.setReplyDelayMillis(0);
+        assertEquals(junitVal, cb.get(junitKey + "Blocked"));
+        assertEquals(0, queue.getDiscardedCount());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    /**
+     * <p>
+     * A full queue with DISCARD drops sets but writes deletes through.
+     * </p>
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        cb.set(junitKey + "Deleted", 0, junitVal);
+        WriteBehindQueue queue = fill(WriteBehindQueue.Backpressure.DISCARD);
+        cb.set(junitKey + "Discarded", 0, junitVal);
+        cb.delete(junitKey + "Deleted");
+        assertEquals(1, queue.getDiscardedCount());
+        assertEquals(1, queue.getWrittenThroughCount());
+        server.setReplyDelayMillis(0);
+        cb.disableWriteBehind();
+        assertNull(cb.get(junitKey + "Discarded"));
+        assertNull("The delete is not dropped", cb.get(junitKey + "Deleted"));
+    }
+
+    /**
+     * <p>
+     * A full queue with WRITE_THROUGH writes synchronously.
+     * </p>
+     */
+    @Test
+    public void testWriteThrough() throws Exception {
+        WriteBehindQueue queue = fill(WriteBehindQueue.Backpressure.WRITE_THROUGH);
+        cb.set(junitKey + "Through", 0, junitVal);
+        assertEquals(1, queue.getWrittenThroughCount());
+        server.setReplyDelayMillis(0);
+        cb.disableWriteBehind();
+        assertEquals(junitVal, cb.get(junitKey + "Through"));
+    }
+
+    /**
+     * <p>
+     * A counter, an update and raw bytes are not overwritten later by an older queued set.
+     * </p>
+     */
+    @Test
+    public void testDirectWrites() throws Exception {
+        WriteBehindQueue queue = fill(WriteBehindQueue.Backpressure.BLOCK);
+        cb.set(junitKey + "Counter", 0, "5");
+        assertEquals(6, cb.incr(junitKey + "Counter", 1, 0, 0));
+        cb.set(junitKey + "Update", 0, junitVal);
+        assertEquals(junitVal + "Updated", cb.update(junitKey + "Update", 0, v -> v + "Updated"));
+        cb.set(junitKey + "Bytes", 0, junitVal);
+        cb.setBytes(junitKey + "Bytes", 0, new byte[]{1});
+        server.setReplyDelayMillis(0);
+        cb.disableWriteBehind();
+        assertEquals(6, cb.getCounter(junitKey + "Counter"));
+        assertEquals(junitVal + "Updated", cb.get(junitKey + "Update"));
+        assertEquals(1, cb.getBytes(junitKey + "Bytes").length);
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    /**
+     * <p>
+     * An update on one client waits for the set the drainer is writing on another, it does not get overwritten.
+     * </p>
+     */
+    @Test
+    public void testInFlightWrite() throws Exception {
+        SharedClientPool clients = new SharedClientPool(server.getServer(), 2);
+        CachingBroker broker = new CachingBroker(clients);
+        try {
+            WriteBehindQueue queue = broker.enableWriteBehind(10, 1, WriteBehindQueue.Backpressure.BLOCK);
+            // the set is held by the server, the update that follows is answered right away
+            server.setReplyDelayMillis(500);
+            broker.set(junitKey, 0, junitVal);
+            for (int i = 0; i < 100 && queue.getPendingCount() > 0; i++) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+            server.setReplyDelayMillis(0);
+            assertEquals(junitVal + "Updated", broker.update(junitKey, 0, v -> v + "Updated"));
+            assertEquals(junitVal + "Updated", cb.get(junitKey));
+        } finally {
+            server.setReplyDelayMillis(0);
+            broker.disableWriteBehind();
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Slow the server down and fill a queue of one slot, one write is on the drainer and one waits in the queue.
+     */
+    private WriteBehindQueue fill(WriteBehindQueue.Backpressure backpressure) throws Exception {
+        server.setReplyDelayMillis(300);
+        WriteBehindQueue queue = cb.enableWriteBehind(1, 1, backpressure);
+        cb.set(junitKey + "Draining", 0, junitVal);
+        Thread.sleep(50);
+        cb.set(junitKey + "Queued", 0, junitVal);
+        assertEquals(1, queue.getPendingCount());
+        return queue;
+    }
+}
@@ -0,0 +1,32 @@
+package com.sandeepmore.testing;
+
+import com.sandeepmore.caching.CachingBroker;
+import com.sandeepmore.pool.SharedClientPool;
+import junit.framework.TestCase;
+
+/**
+ * Base fixture for broker tests against the {@link LoopbackMemcached}: every test gets a fresh server, a
+ * {@link SharedClientPool} of one client and a {@link CachingBroker} over it.
+ * <p/>
+ * The pool has one client, so a set is on memcached before the next read. Subclasses overriding
+ * {@link #setUp()} or {@link #tearDown()} call the super method, setUp first and tearDown last.
+ *
+ * @author Sandeep More
+ */
+public abstract class LoopbackBrokerTestCase extends TestCase {
+
+    protected LoopbackMemcached server;
+    protected SharedClientPool pool;
+    protected CachingBroker cb;
+
+    protected void setUp() throws Exception {
+        server = new LoopbackMemcached();
+        pool = new SharedClientPool(server.getServer(), 1);
+        cb = new CachingBroker(pool);
+    }
+
+    protected void tearDown() throws Exception {
+        pool.shutdown();
+        server.close();
+    }
+}
@@ -0,0 +1,392 @@
+package com.sandeepmore.testing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal in-JVM memcached speaking the binary protocol, enough for spymemcached's
+ * {@link net.spy.memcached.BinaryConnectionFactory}: get/getk/getq/getkq, set/add/replace with cas,
+ * delete, incr/decr, touch, noop, version, flush and an empty stat.
+ * <p/>
+ * It listens on the loopback interface only and keeps everything in a {@link ConcurrentHashMap}, so benchmarks
+ * measure the client, pool and broker rather than a real server and tests run without one. Expiry is honoured
+ * lazily on read. {@link #setReplyDelayMillis(long)} turns it into a slow node.
+ *
+ * @author Sandeep More
+ */
+public final class LoopbackMemcached implements AutoCloseable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte REQUEST = (byte) 0x80;
+    private static final byte RESPONSE = (byte) 0x81;
+
+    private static final int GET = 0x00;
+    private static final int SET = 0x01;
+    private static final int ADD = 0x02;
+    private static final int REPLACE = 0x03;
+    private static final int DELETE = 0x04;
+    private static final int INCR = 0x05;
+    private static final int DECR = 0x06;
+    private static final int QUIT = 0x07;
+    private static final int FLUSH = 0x08;
+    private static final int GETQ = 0x09;
+    private static final int NOOP = 0x0a;
+    private static final int VERSION = 0x0b;
+    private static final int GETK = 0x0c;
+    private static final int GETKQ = 0x0d;
+    private static final int STAT = 0x10;
+    private static final int TOUCH = 0x1c;
+
+    private static final short OK = 0x0000;
+    private static final short NOT_FOUND = 0x0001;
+    private static final short EXISTS = 0x0002;
+    private static final short NOT_STORED = 0x0005;
+    private static final short NON_NUMERIC = 0x0006;
+    private static final short UNKNOWN_COMMAND = 0x0081;
+
+    private static final int MAX_RELATIVE_EXP = 60 * 60 * 24 * 30;
+
+    private final ServerSocket serverSocket;
+    private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+    private final AtomicLong casCounter = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile long replyDelayMillis = 0;
+
+    /**
+     * Start listening on an ephemeral loopback port.
+     */
+    public LoopbackMemcached() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "loopback-memcached-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return host:port string to hand to a {@link com.sandeepmore.pool.CacheObjectFactory}.
+     */
+    public String getServer() {
+        return "127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Hold every reply for the given time, 0 to reply right away.
+     */
+    public void setReplyDelayMillis(long replyDelayMillis) {
+        this.replyDelayMillis = replyDelayMillis;
+    }
+
+    /**
+     * @return The number of items held, expired ones included until they are read.
+     */
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * @return The keys held, expired ones included until they are read.
+     */
+    public Set<String> getKeys() {
+        return new HashSet<String>(items.keySet());
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread worker = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "loopback-memcached-" + socket.getPort());
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            byte[] header = new byte[24];
+            while (running) {
+                in.readFully(header);
+                ByteBuffer h = ByteBuffer.wrap(header);
+                if (h.get() != REQUEST) {
+                    throw new IOException("Bad magic");
+                }
+                int opcode = h.get() & 0xFF;
+                int keyLength = h.getShort() & 0xFFFF;
+                int extrasLength = h.get() & 0xFF;
+                h.get(); // data type
+                h.getShort(); // vbucket
+                int bodyLength = h.getInt();
+                int opaque = h.getInt();
+                long cas = h.getLong();
+                byte[] extras = new byte[extrasLength];
+                in.readFully(extras);
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                byte[] value = new byte[bodyLength - keyLength - extrasLength];
+                in.readFully(value);
+                String key = new String(keyBytes, ASCII);
+                if (opcode == QUIT) {
+                    break;
+                }
+                long delay = replyDelayMillis;
+                if (delay > 0) {
+                    out.flush();
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                handle(out, opcode, opaque, cas, ByteBuffer.wrap(extras), key, keyBytes, value);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // client went away
+        } catch (IOException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void handle(OutputStream out, int opcode, int opaque, long cas, ByteBuffer extras, String key,
+                        byte[] keyBytes, byte[] value) throws IOException {
+        switch (opcode) {
+            case GET:
+            case GETQ:
+            case GETK:
+            case GETKQ: {
+                Item item = live(key);
+                boolean quiet = opcode == GETQ || opcode == GETKQ;
+                boolean withKey = opcode == GETK || opcode == GETKQ;
+                if (item == null) {
+                    if (!quiet) {
+                        respond(out, opcode, NOT_FOUND, opaque, 0, null, withKey ? keyBytes : null, null);
+                    }
+                    return;
+                }
+                ByteBuffer flags = ByteBuffer.allocate(4).putInt(item.flags);
+                respond(out, opcode, OK, opaque, item.cas, flags.array(), withKey ? keyBytes : null, item.value);
+                return;
+            }
+            case SET:
+            case ADD:
+            case REPLACE: {
+                int flags = extras.getInt();
+                int exp = extras.getInt();
+                short status = store(opcode, key, cas, new Item(value, flags, expiresAt(exp), casCounter.incrementAndGet()));
+                Item stored = status == OK ? items.get(key) : null;
+                respond(out, opcode, status, opaque, stored == null ? 0 : stored.cas, null, null, null);
+                return;
+            }
+            case DELETE: {
+                Item item = live(key);
+                short status = item != null && items.remove(key, item) ? OK : NOT_FOUND;
+                respond(out, opcode, status, opaque, 0, null, null, null);
+                return;
+            }
+            case INCR:
+            case DECR: {
+                long delta = extras.getLong();
+                long initial = extras.getLong();
+                int exp = extras.getInt();
+                mutate(out, opcode, opaque, key, delta, initial, exp);
+                return;
+            }
+            case TOUCH: {
+                Item item = live(key);
+                if (item == null) {
+                    respond(out, opcode, NOT_FOUND, opaque, 0, null, null, null);
+                    return;
+                }
+                items.replace(key, item, new Item(item.value, item.flags, expiresAt(extras.getInt()), item.cas));
+                respond(out, opcode, OK, opaque, item.cas, null, null, null);
+                return;
+            }
+            case FLUSH:
+                items.clear();
+                respond(out, opcode, OK, opaque, 0, null, null, null);
+                return;
+            case NOOP:
+            case STAT:
+                respond(out, opcode, OK, opaque, 0, null, null, null);
+                return;
+            case VERSION:
+                respond(out, opcode, OK, opaque, 0, null, null, "1.4.0-loopback".getBytes(ASCII));
+                return;
+            default:
+                respond(out, opcode, UNKNOWN_COMMAND, opaque, 0, null, null, null);
+        }
+    }
+
+    private short store(int opcode, String key, long cas, Item item) {
+        while (true) {
+            Item current = live(key);
+            if (opcode == ADD) {
+                if (current != null) {
+                    return NOT_STORED;
+                }
+                if (items.putIfAbsent(key, item) == null) {
+                    return OK;
+                }
+                continue;
+            }
+            if (current == null) {
+                if (opcode == REPLACE || cas != 0) {
+                    return NOT_FOUND;
+                }
+                if (items.putIfAbsent(key, item) == null) {
+                    return OK;
+                }
+                continue;
+            }
+            if (cas != 0 && cas != current.cas) {
+                return EXISTS;
+            }
+            if (items.replace(key, current, item)) {
+                return OK;
+            }
+        }
+    }
+
+    private void mutate(OutputStream out, int opcode, int opaque, String key, long delta, long initial, int exp)
+            throws IOException {
+        while (true) {
+            Item current = live(key);
+            Item next;
+            long result;
+            if (current == null) {
+                if (exp == 0xFFFFFFFF) {
+                    respond(out, opcode, NOT_FOUND, opaque, 0, null, null, null);
+                    return;
+                }
+                result = initial;
+                next = new Item(Long.toString(result).getBytes(ASCII), 0, expiresAt(exp), casCounter.incrementAndGet());
+                if (items.putIfAbsent(key, next) != null) {
+                    continue;
+                }
+            } else {
+                long previous;
+                try {
+                    previous = Long.parseLong(new String(current.value, ASCII).trim());
+                } catch (NumberFormatException e) {
+                    respond(out, opcode, NON_NUMERIC, opaque, 0, null, null, null);
+                    return;
+                }
+                result = opcode == INCR ? previous + delta : Math.max(0, previous - delta);
+                next = new Item(Long.toString(result).getBytes(ASCII), current.flags, current.expiresAt, casCounter.incrementAndGet());
+                if (!items.replace(key, current, next)) {
+                    continue;
+                }
+            }
+            respond(out, opcode, OK, opaque, next.cas, null, null, ByteBuffer.allocate(8).putLong(result).array());
+            return;
+        }
+    }
+
+    private Item live(String key) {
+        Item item = items.get(key);
+        if (item != null && item.expiresAt != 0 && item.expiresAt <= System.currentTimeMillis()) {
+            items.remove(key, item);
+            return null;
+        }
+        return item;
+    }
+
+    private static long expiresAt(int exp) {
+        if (exp == 0) {
+            return 0;
+        }
+        if (exp <= MAX_RELATIVE_EXP) {
+            return System.currentTimeMillis() + exp * 1000L;
+        }
+        return (exp & 0xFFFFFFFFL) * 1000L;
+    }
+
+    private static void respond(OutputStream out, int opcode, short status, int opaque, long cas, byte[] extras,
+                                byte[] key, byte[] value) throws IOException {
+        int extrasLength = extras == null ? 0 : extras.length;
+        int keyLength = key == null ? 0 : key.length;
+        int valueLength = value == null ? 0 : value.length;
+        ByteBuffer header = ByteBuffer.allocate(24);
+        header.put(RESPONSE);
+        header.put((byte) opcode);
+        header.putShort((short) keyLength);
+        header.put((byte) extrasLength);
+        header.put((byte) 0);
+        header.putShort(status);
+        header.putInt(extrasLength + keyLength + valueLength);
+        header.putInt(opaque);
+        header.putLong(cas);
+        out.write(header.array());
+        if (extras != null) {
+            out.write(extras);
+        }
+        if (key != null) {
+            out.write(key);
+        }
+        if (value != null) {
+            out.write(value);
+        }
+    }
+
+    private static final class Item {
+        final byte[] value;
+        final int flags;
+        final long expiresAt;
+        final long cas;
+
+        Item(byte[] value, int flags, long expiresAt, long cas) {
+            this.value = value;
+            this.flags = flags;
+            this.expiresAt = expiresAt;
+            this.cas = cas;
+        }
+    }
+}